@@ -1,7 +1,10 @@
-import java.time.LocalDate;
+import java.util.List;
 import java.util.Scanner;
 
 public class ATMApplication {
+	// Every request carries a deadline this far out, which BANK passes on to its calls to UTIL
+	private static final long REQUEST_TIMEOUT_MILLIS = 10_000;
+
 	private Client client;
 	private Scanner scanner;
 
@@ -21,6 +24,7 @@ public class ATMApplication {
 
 	public ATMApplication() {
 		client = new Client();
+		client.setDefaultTimeout(REQUEST_TIMEOUT_MILLIS);
 		scanner = new Scanner(System.in);
 	}
 
@@ -93,15 +97,14 @@ public class ATMApplication {
 		System.out.print("Enter PIN: ");
 		String pin = scanner.nextLine();
 
-		Message request = new Message("ATM", "BANK", Message.Type.LOGIN, null);
-		request.addData("name", username);
-		request.addData("pin", pin);
+		Message request = new BankMessages.LoginRequest(username, pin).toMessage("ATM", "BANK");
 
 		try {
 			Message response = client.sendMessage(request);
 			if (response.getMessageType().equals(Message.Type.SUCCESS)) {
-				checkingAccountId = (String) response.getData("checkingAccountId");
-				savingAccountId = (String) response.getData("savingAccountId");
+				BankMessages.AccountsResponse accounts = BankMessages.AccountsResponse.from(response);
+				checkingAccountId = accounts.checkingAccountId();
+				savingAccountId = accounts.savingAccountId();
 				System.out.println("Login successful. Welcome, " + username + "!");
 				return 1;
 			} else {
@@ -120,15 +123,14 @@ public class ATMApplication {
 		System.out.print("Enter PIN: ");
 		String pin = scanner.nextLine();
 
-		Message request = new Message("ATM", "BANK", Message.Type.SIGNUP, null);
-		request.addData("name", username);
-		request.addData("pin", pin);
+		Message request = new BankMessages.SignupRequest(username, pin).toMessage("ATM", "BANK");
 
 		try {
 			Message response = client.sendMessage(request);
 			if (response.getMessageType().equals(Message.Type.SUCCESS)) {
-				checkingAccountId = (String) response.getData("checkingAccountId");
-				savingAccountId = (String) response.getData("savingAccountId");
+				BankMessages.AccountsResponse accounts = BankMessages.AccountsResponse.from(response);
+				checkingAccountId = accounts.checkingAccountId();
+				savingAccountId = accounts.savingAccountId();
 				System.out.println("Signup successful. Welcome, " + username + "!");
 				return 1;
 			} else {
@@ -209,13 +211,12 @@ public class ATMApplication {
 		}
 
 		private void handleBalance() {
-			Message request = new Message("ATM", "BANK", Message.Type.VIEW_BALANCE, null);
-			request.addData("accountId", checkingAccountId);
+			Message request = new BankMessages.BalanceRequest(checkingAccountId).toMessage("ATM", "BANK");
 
 			try {
 				Message response = client.sendMessage(request);
 				if (response.getMessageType().equals(Message.Type.SUCCESS)) {
-					System.out.println("Checking Balance: $" + response.getData("balance"));
+					System.out.println("Checking Balance: $" + BankMessages.BalanceResponse.from(response).balance());
 				} else {
 					System.out.println("Error: " + response.getData("Error"));
 				}
@@ -235,14 +236,12 @@ public class ATMApplication {
 					return;
 				}
 
-				Message request = new Message("ATM", "BANK", Message.Type.DEPOSIT, null);
-				request.addData("accountId", checkingAccountId);
-				request.addData("amount", amount);
+				Message request = new BankMessages.DepositRequest(checkingAccountId, amount).toMessage("ATM", "BANK");
 
 				Message response = client.sendMessage(request);
 				if (response.getMessageType().equals(Message.Type.SUCCESS)) {
 					System.out.println("Deposit successful!");
-					System.out.println("New balance: $" + response.getData("newBalance"));
+					System.out.println("New balance: $" + BankMessages.NewBalanceResponse.from(response).newBalance());
 				} else {
 					System.out.println("Deposit failed: " + response.getData("Error"));
 				}
@@ -264,15 +263,13 @@ public class ATMApplication {
 					return;
 				}
 
-				Message request = new Message("ATM", "BANK", Message.Type.WITHDRAW, null);
-				request.addData("accountId", checkingAccountId);
-				request.addData("amount", amount);
+				Message request = new BankMessages.WithdrawRequest(checkingAccountId, amount).toMessage("ATM", "BANK");
 
 				Message response = client.sendMessage(request);
 				switch (response.getMessageType()) {
 					case SUCCESS:
 						System.out.println("Withdrawal successful!");
-						System.out.println("New balance: $" + response.getData("newBalance"));
+						System.out.println("New balance: $" + BankMessages.NewBalanceResponse.from(response).newBalance());
 						break;
 					case DECLINED:
 						System.out.println("Withdrawal declined: " + response.getData("Reason"));
@@ -339,13 +336,12 @@ public class ATMApplication {
 		}
 
 		private void handleBalance() {
-			Message request = new Message("ATM", "BANK", Message.Type.VIEW_BALANCE, null);
-			request.addData("accountId", savingAccountId);
+			Message request = new BankMessages.BalanceRequest(savingAccountId).toMessage("ATM", "BANK");
 
 			try {
 				Message response = client.sendMessage(request);
 				if (response.getMessageType().equals(Message.Type.SUCCESS)) {
-					System.out.println("Savings Balance: $" + response.getData("balance"));
+					System.out.println("Savings Balance: $" + BankMessages.BalanceResponse.from(response).balance());
 				} else {
 					System.out.println("Error: " + response.getData("Error"));
 				}
@@ -365,14 +361,12 @@ public class ATMApplication {
 					return;
 				}
 
-				Message request = new Message("ATM", "BANK", Message.Type.DEPOSIT, null);
-				request.addData("accountId", savingAccountId);
-				request.addData("amount", amount);
+				Message request = new BankMessages.DepositRequest(savingAccountId, amount).toMessage("ATM", "BANK");
 
 				Message response = client.sendMessage(request);
 				if (response.getMessageType().equals(Message.Type.SUCCESS)) {
 					System.out.println("Deposit successful!");
-					System.out.println("New balance: $" + response.getData("newBalance"));
+					System.out.println("New balance: $" + BankMessages.NewBalanceResponse.from(response).newBalance());
 				} else {
 					System.out.println("Deposit failed: " + response.getData("Error"));
 				}
@@ -403,16 +397,15 @@ public class ATMApplication {
 				return;
 			}
 
-			Message request = new Message("ATM", "BANK", Message.Type.TRANSFER, null);
-			request.addData("sourceAccountId", sourceAccountId);
-			request.addData("targetAccountId", targetAccountId);
-			request.addData("amount", amount);
+			Message request = new BankMessages.TransferRequest(sourceAccountId, targetAccountId, amount).toMessage("ATM",
+					"BANK");
 
 			Message response = client.sendMessage(request);
 			if (response.getMessageType().equals(Message.Type.SUCCESS)) {
+				BankMessages.TransferResponse transfer = BankMessages.TransferResponse.from(response);
 				System.out.println("Transfer successful!");
-				System.out.println("New Source balance: $" + response.getData("newSourceBalance"));
-				System.out.println("New Destination balance: $" + response.getData("newTargetBalance"));
+				System.out.println("New Source balance: $" + transfer.newSourceBalance());
+				System.out.println("New Destination balance: $" + transfer.newTargetBalance());
 			} else {
 				System.out.println("Transfer failed: " + response.getData("Error"));
 			}
@@ -505,16 +498,14 @@ public class ATMApplication {
 			System.out.print("Choose account password: ");
 			String password = scanner.nextLine();
 
-			Message request = new Message("ATM", "UTIL", Message.Type.SIGNUP, null);
-			request.addData("username", username);
-			request.addData("password", password);
+			Message request = new UtilityMessages.SignupRequest(username, password).toMessage("ATM", "UTIL");
 
 			try {
 				Message response = client.sendMessage(request);
 				if (response.getMessageType().equals(Message.Type.SUCCESS)) {
-					utilityAccountId = (String) response.getData("accountNumber");
+					utilityAccountId = UtilityMessages.AccountResponse.from(response).accountNumber();
 					System.out.println("Utility account created successfully!");
-					System.out.println("Account Number: " + response.getData("accountNumber"));
+					System.out.println("Account Number: " + utilityAccountId);
 				} else {
 					System.out.println("Signup failed: " + response.getData("Error"));
 				}
@@ -529,16 +520,14 @@ public class ATMApplication {
 			System.out.print("Enter password: ");
 			String password = scanner.nextLine();
 
-			Message request = new Message("ATM", "UTIL", Message.Type.LOGIN, null);
-			request.addData("nameOrNumber", nameOrNumber);
-			request.addData("password", password);
+			Message request = new UtilityMessages.LoginRequest(nameOrNumber, password).toMessage("ATM", "UTIL");
 
 			try {
 				Message response = client.sendMessage(request);
 				if (response.getMessageType().equals(Message.Type.SUCCESS)) {
-					utilityAccountId = (String) response.getData("accountNumber");
+					utilityAccountId = UtilityMessages.AccountResponse.from(response).accountNumber();
 					System.out.println("Login successful!");
-					System.out.println("Account Number: " + response.getData("accountNumber"));
+					System.out.println("Account Number: " + utilityAccountId);
 				} else {
 					System.out.println("Login failed: " + response.getData("Error"));
 				}
@@ -548,14 +537,13 @@ public class ATMApplication {
 		}
 
 		private void handleViewBill() {
-			Message request = new Message("ATM", "UTIL", Message.Type.VIEW_NEXT_BILL, null);
-			request.addData("accountId", utilityAccountId);
+			Message request = new UtilityMessages.NextBillRequest(utilityAccountId).toMessage("ATM", "UTIL");
 
 			try {
 				Message response = client.sendMessage(request);
 				if (response.getMessageType().equals(Message.Type.SUCCESS)) {
-					System.out.format("Next Bill: %s\t(Due %tD)\n", response.getData("billAmount"),
-							(LocalDate) response.getData("billDueDate"));
+					UtilityMessages.NextBillResponse bill = UtilityMessages.NextBillResponse.from(response);
+					System.out.format("Next Bill: %s\t(Due %tD)\n", bill.amount(), bill.dueDate());
 				} else {
 					System.out.println("Error: " + response.getData("Error"));
 				}
@@ -565,26 +553,19 @@ public class ATMApplication {
 		}
 
 		private void handleBillHistory() {
-			Message request = new Message("ATM", "UTIL", Message.Type.VIEW_BILL_HISTORY, null);
-			request.addData("accountId", utilityAccountId);
+			Message request = new UtilityMessages.BillHistoryRequest(utilityAccountId).toMessage("ATM", "UTIL");
 
 			try {
 				Message response = client.sendMessage(request);
 				if (response.getMessageType().equals(Message.Type.SUCCESS)) {
 					System.out.println("Bill History: ");
-					for (int i = 0; i < 3; i++) {
-						String billTag = String.format("bills[%d]", i);
-						String billId = (String) response.getData(billTag + ".id");
-						Double billAmount = (Double) response.getData(billTag + ".amount");
-						LocalDate billDueDate = (LocalDate) response.getData(billTag + ".dueDate");
-						LocalDate billPaidDate = (LocalDate) response.getData(billTag + ".paidDate");
-						if (billId != null) {
-							System.out.format("Bill ID: %s\tAmount: $%.2f\tDue: %tD\tPaid: %tD\n", billId, billAmount, billDueDate,
-									billPaidDate);
-						} else {
-							System.out.println("No more bills available.");
-							break;
-						}
+					List<UtilityMessages.PaidBill> bills = UtilityMessages.BillHistoryResponse.from(response).bills();
+					for (UtilityMessages.PaidBill bill : bills) {
+						System.out.format("Bill ID: %d\tAmount: $%.2f\tDue: %tD\tPaid: %tD\n", bill.id(), bill.amount(),
+								bill.dueDate(), bill.paidDate());
+					}
+					if (bills.size() < UtilityMessages.BILL_HISTORY_LIMIT) {
+						System.out.println("No more bills available.");
 					}
 				} else {
 					System.out.println("Error: " + response.getData("Error"));
@@ -605,16 +586,15 @@ public class ATMApplication {
 					return;
 				}
 
-				Message request = new Message("ATM", "BANK", Message.Type.PAY_BILL, null);
-				request.addData("bankAccountId", checkingAccountId);
-				request.addData("utilAccountId", utilityAccountId);
-				request.addData("amount", amount);
+				Message request = new BankMessages.PayBillRequest(checkingAccountId, utilityAccountId, amount)
+						.toMessage("ATM", "BANK");
 
 				Message response = client.sendMessage(request);
 				switch (response.getMessageType()) {
 					case SUCCESS:
 						System.out.println("Payment successful!");
-						System.out.println("New Checking balance: $" + response.getData("newBalance"));
+						System.out.println(
+								"New Checking balance: $" + BankMessages.NewBalanceResponse.from(response).newBalance());
 						break;
 					case DECLINED:
 						System.out.println("Payment declined: " + response.getData("Reason"));
@@ -0,0 +1,44 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Read-write locks striped by key (an account number, or "pin:" and a PIN). A single request holds the read side
+// of its own keys' stripes, so requests on different accounts never wait for each other; an atomic batch holds
+// the write side of every stripe its sub-requests touch, so no other request changes those accounts until the
+// batch has committed or rolled back. Stripes are taken in index order, so two batches cannot deadlock, and the
+// batch's thread can still take the read side for its own sub-requests.
+public class AccountLocks {
+	private static final int STRIPES = 1024;
+
+	private final ReentrantReadWriteLock[] stripes = new ReentrantReadWriteLock[STRIPES];
+
+	public AccountLocks() {
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new ReentrantReadWriteLock();
+		}
+	}
+
+	// Returns the locks taken, for unlock
+	public List<Lock> lock(Collection<String> keys, boolean exclusive) {
+		TreeSet<Integer> indexes = new TreeSet<>();
+		for (String key : keys) {
+			indexes.add(Math.floorMod(key.hashCode(), STRIPES));
+		}
+		List<Lock> held = new ArrayList<>(indexes.size());
+		for (int index : indexes) {
+			Lock lock = exclusive ? stripes[index].writeLock() : stripes[index].readLock();
+			lock.lock();
+			held.add(lock);
+		}
+		return held;
+	}
+
+	public static void unlock(List<Lock> held) {
+		for (int i = held.size() - 1; i >= 0; i--) {
+			held.get(i).unlock();
+		}
+	}
+}
@@ -0,0 +1,346 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+// Accounts split into partitions by account number. Each partition has one thread that runs every operation on
+// its accounts in arrival order and is the only thread to touch their in-memory state, so none of it needs a
+// lock. That state is authoritative: an operation checks its limits against it, applies the change and appends
+// the change to the BankJournal, and completes once the journal has it on disk; the JournalCheckpointer brings
+// bank.db up to date later. A transfer between partitions is debited on the source's partition and credited and
+// journaled, as one record, on the target's; if the credit is refused the debit is handed back to the source.
+// Each partition holds a bounded share of the accounts and reads the rest from bank.db on its thread when they are
+// asked for. An account is only evicted once the checkpointer has folded everything journaled for it, so the
+// table row of an account that is not held is always current. If the journal fails a change after it was applied
+// (it stops once it cannot sync), that change may or may not be on disk, so the accounts in memory can no longer be
+// trusted: every partition then refuses further operations until BANK restarts and replays the journal.
+public class AccountPartitions {
+	private final Partition[] partitions;
+	private final BankJournal journal;
+	private final ClockCache.Loader<String, BankAccount> loader;
+	private final AtomicLong loads = new AtomicLong();
+	private volatile Throwable failure;
+
+	private static class Partition {
+		// Changed only on the partition thread
+		private final ClockCache<String, BankAccount> accounts;
+		private final ThreadPoolExecutor executor;
+
+		private Partition(int index, int capacity, Predicate<BankAccount> evictable) {
+			this.accounts = new ClockCache<>(capacity, evictable);
+			this.executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+				Thread thread = new Thread(r, "bank-partition-" + index);
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
+	// A change together with the balance it left, read on the partition thread that applied it
+	record Applied(BankJournal.Change change, double balance) {
+	}
+
+	// Holds every account it is given and loads none
+	public AccountPartitions(int count, BankJournal journal) {
+		this(count, journal, Integer.MAX_VALUE, accountId -> null, () -> Long.MAX_VALUE);
+	}
+
+	// Holds about capacity accounts; checkpointed gives the last journal sequence folded into bank.db
+	public AccountPartitions(int count, BankJournal journal, int capacity, ClockCache.Loader<String, BankAccount> loader,
+			LongSupplier checkpointed) {
+		this.partitions = new Partition[Math.max(1, count)];
+		int share = (int) Math.ceil(capacity / (double) partitions.length);
+		Predicate<BankAccount> evictable = account -> account.transfersInFlight == 0
+				&& account.journaledThrough <= checkpointed.getAsLong();
+		for (int i = 0; i < partitions.length; i++) {
+			partitions[i] = new Partition(i, share, evictable);
+		}
+		this.journal = journal;
+		this.loader = loader;
+		RpcMetrics.gauge("bank.partitions", () -> (double) partitions.length);
+		RpcMetrics.gauge("bank.partitions.queued", () -> {
+			double queued = 0;
+			for (Partition partition : partitions) {
+				queued += partition.executor.getQueue().size();
+			}
+			return queued;
+		});
+		RpcMetrics.gauge("bank.accounts.held", () -> {
+			double held = 0;
+			for (Partition partition : partitions) {
+				held += partition.accounts.size();
+			}
+			return held;
+		});
+		RpcMetrics.gauge("bank.accounts.loaded", () -> (double) loads.get());
+		RpcMetrics.gauge("bank.accounts.evicted", () -> {
+			double evicted = 0;
+			for (Partition partition : partitions) {
+				evicted += partition.accounts.evictions();
+			}
+			return evicted;
+		});
+	}
+
+	public int size() {
+		return partitions.length;
+	}
+
+	// Replaces any account held under the same number
+	public void add(BankAccount account) {
+		String accountId = account.getAccountNumber();
+		account.partitions = this;
+		call(accountId, () -> {
+			partitionOf(accountId).accounts.remove(accountId);
+			return partitionOf(accountId).accounts.putIfAbsent(accountId, account);
+		}).join();
+	}
+
+	// Returns null if bank.db has no such account either. Concurrent misses for one account queue on its partition
+	// thread, where the first reads it and the rest find it held.
+	public BankAccount get(String accountId) throws Exception {
+		BankAccount account = cached(accountId);
+		return account != null ? account : BankWriter.await(call(accountId, () -> resident(accountId)));
+	}
+
+	// Evicts what was held back by changes not yet in bank.db; called after each checkpoint
+	public void trim() {
+		for (Partition partition : partitions) {
+			partition.executor.execute(partition.accounts::trim);
+		}
+	}
+
+	// The account if it is held, without reading bank.db
+	public BankAccount cached(String accountId) {
+		return partitionOf(accountId).accounts.get(accountId);
+	}
+
+	// Runs the task on the account's partition thread
+	public <T> CompletableFuture<T> call(BankAccount account, Callable<T> task) {
+		return call(account.getAccountNumber(), task);
+	}
+
+	private <T> CompletableFuture<T> call(String accountId, Callable<T> task) {
+		CompletableFuture<T> result = new CompletableFuture<>();
+		partitionOf(accountId).executor.execute(() -> {
+			if (failure != null) {
+				result.completeExceptionally(new IOException("Bank accounts stopped: " + failure.getMessage(), failure));
+				return;
+			}
+			try {
+				result.complete(task.call());
+			} catch (Exception e) {
+				result.completeExceptionally(e);
+			}
+		});
+		return result;
+	}
+
+	// Each completes with the account's balance after the change, once the change is durable
+	public CompletableFuture<Double> deposit(BankAccount account, double amount) {
+		return call(account, () -> {
+			BankAccount held = held(account);
+			return append(held, BankJournal.DEPOSIT, held.applyDeposit(amount));
+		}).thenCompose(durable -> durable);
+	}
+
+	public CompletableFuture<Double> withdraw(CheckingAccount account, double amount) {
+		return call(account, () -> {
+			CheckingAccount held = (CheckingAccount) held(account);
+			return append(held, BankJournal.WITHDRAW, held.applyWithdraw(amount));
+		}).thenCompose(durable -> durable);
+	}
+
+	// A bill payment's withdrawal, journaled before UTIL is asked for the payment so the funds cannot be spent
+	// meanwhile; release hands them back if UTIL does not take it
+	public CompletableFuture<Applied> reserve(CheckingAccount account, double amount) {
+		return call(account, () -> {
+			CheckingAccount held = (CheckingAccount) held(account);
+			BankJournal.Change change = held.applyWithdraw(amount);
+			return append(held, BankJournal.WITHDRAW, change).thenApply(balance -> new Applied(change, balance));
+		}).thenCompose(durable -> durable);
+	}
+
+	public CompletableFuture<Double> release(BankAccount account, Applied reservation) {
+		return call(account, () -> {
+			BankAccount held = held(account);
+			BankJournal.Change change = reservation.change();
+			return append(held, BankJournal.RESTORE, change != null ? held.apply(change.inverse()) : null);
+		}).thenCompose(durable -> durable);
+	}
+
+	public CompletableFuture<BankMessages.TransferResponse> transfer(BankAccount source, BankAccount target,
+			double amount) {
+		if (amount <= 0) {
+			return CompletableFuture.failedFuture(new Exception("Transfer amount must be positive."));
+		}
+		// A source with a transfer in flight is not evicted, so each step on its partition finds the same account
+		return call(source, () -> {
+			BankAccount from = held(source);
+			BankJournal.Change change = from.applyTransferDebit(amount);
+			from.transfersInFlight++;
+			return new Applied(change, from.balance);
+		}).thenCompose(debit -> call(target, () -> {
+			BankAccount to = null;
+			BankJournal.Change credit = null;
+			try {
+				to = held(target);
+				credit = to.applyTransferCredit(amount);
+				double targetBalance = to.balance;
+				CompletableFuture<Long> durable = journal(BankJournal.TRANSFER, debit.change(), credit);
+				long sequence = journal.lastSequence();
+				to.journaledThrough = sequence;
+				BankAccount credited = to;
+				double creditedAmount = credit.balance();
+				durable.thenRun(() -> credited.journaled(creditedAmount));
+				call(source, () -> {
+					BankAccount from = held(source);
+					from.transfersInFlight--;
+					from.journaledThrough = sequence;
+					durable.thenRun(() -> from.journaled(debit.change().balance()));
+					return null;
+				});
+				return durable.thenApply(written -> new BankMessages.TransferResponse(debit.balance(), targetBalance));
+			} catch (Exception e) {
+				if (credit != null) {
+					to.apply(credit.inverse());
+				}
+				// Fails with the same exception once the debit is back on the source
+				CompletableFuture<BankMessages.TransferResponse> refunded = call(source, () -> {
+					BankAccount from = held(source);
+					from.apply(debit.change().inverse());
+					from.transfersInFlight--;
+					throw e;
+				});
+				return refunded;
+			}
+		})).thenCompose(durable -> durable);
+	}
+
+	// Writes a ledger row reversing a transfer whose accounts have been restored to what they held before it
+	public CompletableFuture<Long> reverse(BankMessages.TransferRequest transfer) throws IOException {
+		return journal(BankJournal.REVERSAL,
+				new BankJournal.Change(transfer.targetAccountId(), -transfer.amount(), 0, 0, 0),
+				new BankJournal.Change(transfer.sourceAccountId(), transfer.amount(), 0, 0, 0));
+	}
+
+	// The balance without changes not yet durable in the journal
+	public CompletableFuture<Double> journaledBalance(BankAccount account) {
+		return call(account, () -> held(account).getJournaledBalance());
+	}
+
+	public CompletableFuture<BankAccount.Snapshot> snapshot(BankAccount account) {
+		return call(account, () -> held(account).currentSnapshot());
+	}
+
+	// Every account's state, each read between operations on its own partition thread
+	public CompletableFuture<List<BankAccount.Snapshot>> snapshotAll() {
+		List<CompletableFuture<List<BankAccount.Snapshot>>> parts = new ArrayList<>();
+		for (Partition partition : partitions) {
+			parts.add(CompletableFuture.supplyAsync(() -> {
+				List<BankAccount.Snapshot> snapshots = new ArrayList<>();
+				for (BankAccount account : partition.accounts.values()) {
+					snapshots.add(account.currentSnapshot());
+				}
+				return snapshots;
+			}, partition.executor));
+		}
+		return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+			List<BankAccount.Snapshot> snapshots = new ArrayList<>();
+			for (CompletableFuture<List<BankAccount.Snapshot>> part : parts) {
+				snapshots.addAll(part.join());
+			}
+			return snapshots;
+		});
+	}
+
+	public CompletableFuture<Double> restore(BankAccount account, BankAccount.Snapshot snapshot) {
+		return call(account, () -> {
+			BankAccount held = held(account);
+			return append(held, BankJournal.RESTORE, held.revertTo(snapshot));
+		}).thenCompose(durable -> durable);
+	}
+
+	// Journaled as a restore of the same balance with the daily totals at zero
+	public CompletableFuture<Double> resetDailyLimits(BankAccount account) {
+		return call(account, () -> {
+			BankAccount held = held(account);
+			return append(held, BankJournal.RESTORE, held.applyDailyReset());
+		}).thenCompose(durable -> durable);
+	}
+
+	// The account object operations must change, which is not the one the caller holds if that one has been evicted
+	// since (and perhaps read back in). Partition thread only.
+	private BankAccount held(BankAccount account) throws Exception {
+		BankAccount held = resident(account.getAccountNumber());
+		if (held == null) {
+			throw new Exception("Account not found: " + account.getAccountNumber());
+		}
+		return held;
+	}
+
+	// Partition thread only
+	private BankAccount resident(String accountId) throws Exception {
+		ClockCache<String, BankAccount> accounts = partitionOf(accountId).accounts;
+		BankAccount account = accounts.get(accountId);
+		if (account == null) {
+			account = loader.load(accountId);
+			loads.incrementAndGet();
+			if (account != null) {
+				account.partitions = this;
+				account = accounts.putIfAbsent(accountId, account);
+			}
+		}
+		return account;
+	}
+
+	// Called on the partition thread right after the change was applied; a change the journal cannot take is
+	// taken back out of the account
+	private CompletableFuture<Double> append(BankAccount account, byte kind, BankJournal.Change change)
+			throws IOException {
+		double balance = account.balance;
+		if (change == null) {
+			return CompletableFuture.completedFuture(balance);
+		}
+		try {
+			CompletableFuture<Long> durable = journal(kind, change);
+			// Possibly a later record's sequence, which only holds the account a little longer
+			account.journaledThrough = journal.lastSequence();
+			return durable.thenApply(sequence -> {
+				account.journaled(change.balance());
+				return balance;
+			});
+		} catch (IOException e) {
+			account.apply(change.inverse());
+			throw e;
+		}
+	}
+
+	// Appends to the journal, stopping every partition if the record is then not confirmed
+	private CompletableFuture<Long> journal(byte kind, BankJournal.Change... changes) throws IOException {
+		CompletableFuture<Long> durable = journal.append(kind, changes);
+		durable.exceptionally(e -> {
+			if (failure == null) {
+				failure = e;
+				System.err.println("Error journaling bank change, refusing further operations: " + e.getMessage());
+			}
+			return null;
+		});
+		return durable;
+	}
+
+	int partitionIndex(String accountId) {
+		return Math.floorMod(accountId.hashCode(), partitions.length);
+	}
+
+	private Partition partitionOf(String accountId) {
+		return partitions[partitionIndex(accountId)];
+	}
+}
@@ -0,0 +1,306 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Account state kept off the heap: fixed-width records in one direct buffer, found through an open-addressing
+// hash of int slots in another, keyed by a long account ID instead of the account number string. It holds what
+// the partitions keep per account (balance, the three daily totals, type and a version stamp) and applies the
+// same checks as BankAccount and its subclasses. Like the in-memory state of an account, a table is meant to be
+// owned by one partition thread and is not thread-safe.
+public class AccountTable {
+	public static final byte CHECKING = 1;
+	public static final byte SAVING = 2;
+
+	// Record layout
+	private static final int ID = 0;
+	private static final int BALANCE = 8;
+	private static final int DEPOSITS = 16;
+	private static final int WITHDRAWALS = 24;
+	private static final int TRANSFERS = 32;
+	private static final int VERSION = 40;
+	private static final int TYPE = 48;
+	static final int RECORD_SIZE = 56;
+	// Slots hold a record number plus one, so zero marks an empty slot
+	private static final int SLOT_SIZE = 4;
+	private static final int MIN_SLOTS = 16;
+	// One buffer reaches at most this many bytes
+	private static final long MAX_BUFFER_BYTES = Integer.MAX_VALUE;
+
+	// The top byte of an ID says how to read the rest: the number of a generated "Checking<n>" or "Saving<n>"
+	// account number, or a position in the dictionary of account numbers that have no such form
+	private static final byte CHECKING_NUMBER = 1;
+	private static final byte SAVING_NUMBER = 2;
+	private static final byte DICTIONARY = 3;
+	private static final long NUMBER_MASK = (1L << 56) - 1;
+	// Decimal digits that always fit below the top byte
+	private static final int MAX_DIGITS = 16;
+
+	private ByteBuffer records;
+	private ByteBuffer slots;
+	private int slotMask;
+	private int size;
+	private final Map<String, Long> dictionary = new HashMap<>();
+	private final List<String> dictionaryNumbers = new ArrayList<>();
+
+	public AccountTable(int expectedAccounts) {
+		int capacity = Math.max(1, expectedAccounts);
+		this.records = ByteBuffer.allocateDirect(bufferBytes((long) capacity * RECORD_SIZE));
+		this.slots = ByteBuffer.allocateDirect(bufferBytes(slotCount(capacity) * SLOT_SIZE));
+		this.slotMask = slots.capacity() / SLOT_SIZE - 1;
+	}
+
+	// The account's ID, or -1 if the table has never seen the account number. Generated account numbers map to an
+	// ID without a lookup, so only the others cost a dictionary entry on the heap
+	public long id(String accountNumber) {
+		long id = numberId(accountNumber);
+		if (id >= 0) {
+			return id;
+		}
+		Long entry = dictionary.get(accountNumber);
+		return entry == null ? -1 : entry;
+	}
+
+	public String accountNumber(long id) {
+		long number = id & NUMBER_MASK;
+		byte prefix = (byte) (id >>> 56);
+		if (prefix == CHECKING_NUMBER) {
+			return "Checking" + number;
+		} else if (prefix == SAVING_NUMBER) {
+			return "Saving" + number;
+		} else if (prefix == DICTIONARY && number < dictionaryNumbers.size()) {
+			return dictionaryNumbers.get((int) number);
+		}
+		return "unknown ID " + id;
+	}
+
+	// "Checking12" and "Saving12" become distinct IDs, the prefix in the top byte and the number below it. Only
+	// the form Long.toString gives back qualifies, so accountNumber(id) returns the same string
+	private static long numberId(String accountNumber) {
+		byte prefix;
+		String digits;
+		if (accountNumber.startsWith("Checking")) {
+			prefix = CHECKING_NUMBER;
+			digits = accountNumber.substring("Checking".length());
+		} else if (accountNumber.startsWith("Saving")) {
+			prefix = SAVING_NUMBER;
+			digits = accountNumber.substring("Saving".length());
+		} else {
+			return -1;
+		}
+		if (digits.isEmpty() || digits.length() > MAX_DIGITS || digits.length() > 1 && digits.charAt(0) == '0') {
+			return -1;
+		}
+		long number = 0;
+		for (int i = 0; i < digits.length(); i++) {
+			char digit = digits.charAt(i);
+			if (digit < '0' || digit > '9') {
+				return -1;
+			}
+			number = number * 10 + (digit - '0');
+		}
+		return (long) prefix << 56 | number;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	// Off-heap bytes in use, including the free space the buffers keep for growth
+	public long capacityBytes() {
+		return (long) records.capacity() + slots.capacity();
+	}
+
+	// Returns the account's ID; type is CHECKING or SAVING
+	public long add(String accountNumber, byte type, double balance, double dailyDeposits, double dailyWithdrawals,
+			double dailyTransfers) {
+		if (type != CHECKING && type != SAVING) {
+			throw new IllegalArgumentException("Unknown account type: " + type);
+		}
+		long id = id(accountNumber);
+		if (id >= 0 && find(id) >= 0) {
+			throw new IllegalArgumentException("Account already in the table: " + accountNumber);
+		}
+		// Grows both buffers before anything changes, so a table that cannot grow is left as it was
+		long needed = (size + 1L) * RECORD_SIZE;
+		if (needed > records.capacity()) {
+			ByteBuffer grown = ByteBuffer.allocateDirect(bufferBytes(Math.max(needed,
+					Math.min(records.capacity() * 2L, MAX_BUFFER_BYTES / RECORD_SIZE * RECORD_SIZE))));
+			grown.put(records.duplicate().clear().limit(size * RECORD_SIZE));
+			records = grown;
+		}
+		long slotBytes = slotCount(size + 1) * SLOT_SIZE;
+		if (slotBytes > slots.capacity()) {
+			rehash(bufferBytes(slotBytes));
+		}
+		if (id < 0) {
+			id = (long) DICTIONARY << 56 | dictionaryNumbers.size();
+			dictionary.put(accountNumber, id);
+			dictionaryNumbers.add(accountNumber);
+		}
+		int record = size * RECORD_SIZE;
+		records.putLong(record + ID, id);
+		records.putDouble(record + BALANCE, balance);
+		records.putDouble(record + DEPOSITS, dailyDeposits);
+		records.putDouble(record + WITHDRAWALS, dailyWithdrawals);
+		records.putDouble(record + TRANSFERS, dailyTransfers);
+		records.putLong(record + VERSION, 0);
+		records.putInt(record + TYPE, type);
+		insertSlot(id, size);
+		size++;
+		return id;
+	}
+
+	public boolean contains(long id) {
+		return find(id) >= 0;
+	}
+
+	public double balance(long id) throws Exception {
+		return records.getDouble(record(id) + BALANCE);
+	}
+
+	public byte type(long id) throws Exception {
+		return (byte) records.getInt(record(id) + TYPE);
+	}
+
+	// Counts the changes applied, so a reader can tell whether the account moved
+	public long version(long id) throws Exception {
+		return records.getLong(record(id) + VERSION);
+	}
+
+	// Each returns the account's balance after the change
+	public double deposit(long id, double amount) throws Exception {
+		if (amount <= 0) {
+			throw new Exception("Deposit amount must be positive.");
+		}
+		int record = record(id);
+		checkCredit(record, amount);
+		apply(record, amount, amount, 0, 0);
+		return records.getDouble(record + BALANCE);
+	}
+
+	public double withdraw(long id, double amount) throws Exception {
+		int record = record(id);
+		if (records.getInt(record + TYPE) != CHECKING) {
+			throw new Exception("Withdrawals are only allowed from Checking accounts.");
+		}
+		if (amount <= 0) {
+			throw new Exception("Withdrawal amount must be positive.");
+		}
+		if (amount > records.getDouble(record + BALANCE)) {
+			throw new Exception("Insufficient funds. Cannot withdraw " + amount);
+		} else if (records.getDouble(record + WITHDRAWALS) + amount > CheckingAccount.DAILY_WITHDRAWAL_LIMIT) {
+			throw new Exception("Daily withdrawal limit exceeded. Cannot withdraw " + amount);
+		}
+		apply(record, -amount, 0, amount, 0);
+		return records.getDouble(record + BALANCE);
+	}
+
+	// Both sides are checked before either changes, so a refused transfer leaves both accounts as they were
+	public double transfer(long sourceId, long targetId, double amount) throws Exception {
+		if (amount <= 0) {
+			throw new Exception("Transfer amount must be positive.");
+		}
+		int source = record(sourceId);
+		int target = record(targetId);
+		if (amount > records.getDouble(source + BALANCE)) {
+			throw new Exception("Insufficient funds. Cannot transfer " + amount);
+		}
+		boolean saving = records.getInt(source + TYPE) == SAVING;
+		if (saving && records.getDouble(source + TRANSFERS) + amount > SavingAccount.DAILY_TRANSFER_LIMIT) {
+			throw new Exception("Daily transfer limit exceeded. Cannot transfer " + amount);
+		}
+		checkCredit(target, amount);
+		// Only savings transfers count against a daily total, as in applyTransferDebit
+		apply(source, -amount, 0, 0, saving ? amount : 0);
+		apply(target, amount, amount, 0, 0);
+		return records.getDouble(source + BALANCE);
+	}
+
+	// A copy of the account's record, which restore puts back as a change of its own
+	public ByteBuffer snapshot(long id) throws Exception {
+		ByteBuffer copy = ByteBuffer.allocate(RECORD_SIZE);
+		int record = record(id);
+		copy.put(records.duplicate().clear().position(record).limit(record + RECORD_SIZE)).flip();
+		return copy;
+	}
+
+	public void restore(ByteBuffer snapshot) throws Exception {
+		int record = record(snapshot.getLong(ID));
+		apply(record, snapshot.getDouble(BALANCE) - records.getDouble(record + BALANCE),
+				snapshot.getDouble(DEPOSITS) - records.getDouble(record + DEPOSITS),
+				snapshot.getDouble(WITHDRAWALS) - records.getDouble(record + WITHDRAWALS),
+				snapshot.getDouble(TRANSFERS) - records.getDouble(record + TRANSFERS));
+	}
+
+	private void checkCredit(int record, double amount) throws Exception {
+		if (records.getDouble(record + DEPOSITS) + amount > BankAccount.DAILY_DEPOSIT_LIMIT) {
+			throw new Exception("Daily deposit limit exceeded. Cannot deposit " + amount);
+		}
+	}
+
+	private void apply(int record, double balance, double deposits, double withdrawals, double transfers) {
+		records.putDouble(record + BALANCE, records.getDouble(record + BALANCE) + balance);
+		records.putDouble(record + DEPOSITS, records.getDouble(record + DEPOSITS) + deposits);
+		records.putDouble(record + WITHDRAWALS, records.getDouble(record + WITHDRAWALS) + withdrawals);
+		records.putDouble(record + TRANSFERS, records.getDouble(record + TRANSFERS) + transfers);
+		records.putLong(record + VERSION, records.getLong(record + VERSION) + 1);
+	}
+
+	// The byte offset of the account's record
+	private int record(long id) throws Exception {
+		int number = find(id);
+		if (number < 0) {
+			throw new Exception("Account not found: " + accountNumber(id));
+		}
+		return number * RECORD_SIZE;
+	}
+
+	// The record number, or -1
+	private int find(long id) {
+		for (int slot = hash(id) & slotMask;; slot = slot + 1 & slotMask) {
+			int entry = slots.getInt(slot * SLOT_SIZE);
+			if (entry == 0) {
+				return -1;
+			}
+			if (records.getLong((entry - 1) * RECORD_SIZE + ID) == id) {
+				return entry - 1;
+			}
+		}
+	}
+
+	private void insertSlot(long id, int number) {
+		int slot = hash(id) & slotMask;
+		while (slots.getInt(slot * SLOT_SIZE) != 0) {
+			slot = slot + 1 & slotMask;
+		}
+		slots.putInt(slot * SLOT_SIZE, number + 1);
+	}
+
+	private void rehash(int slotBytes) {
+		slots = ByteBuffer.allocateDirect(slotBytes);
+		slotMask = slotBytes / SLOT_SIZE - 1;
+		for (int number = 0; number < size; number++) {
+			insertSlot(records.getLong(number * RECORD_SIZE + ID), number);
+		}
+	}
+
+	// A power of two that keeps the slots at most half full
+	private static long slotCount(int accounts) {
+		return Math.max(MIN_SLOTS, Long.highestOneBit(Math.max(1, accounts * 2L - 1)) << 1);
+	}
+
+	private static int bufferBytes(long bytes) {
+		if (bytes > MAX_BUFFER_BYTES) {
+			throw new IllegalStateException("Account table cannot grow past " + MAX_BUFFER_BYTES + " bytes per buffer");
+		}
+		return (int) bytes;
+	}
+
+	// Spreads sequential account numbers across the slots
+	private static int hash(long id) {
+		long mixed = id * 0x9E3779B97F4A7C15L;
+		return (int) (mixed ^ mixed >>> 32);
+	}
+}
@@ -0,0 +1,141 @@
+import com.sun.management.GarbageCollectionNotificationInfo;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+
+// Holds the same accounts as partition state (account objects in a ClockCache) and as an AccountTable, reports
+// the memory each takes per account, then runs an even mix of deposits and transfers on each from one thread, as
+// a partition would, and reports the collections it caused and how long a full collection takes with each store
+// live: java AccountTableBenchmark [accounts] [seconds]
+public class AccountTableBenchmark {
+	private static final double AMOUNT = 0.01;
+
+	private static final AtomicLong pauses = new AtomicLong();
+	private static final AtomicLong pauseMillis = new AtomicLong();
+	private static final AtomicLong longestPause = new AtomicLong();
+
+	public static void main(String[] args) throws Exception {
+		int accounts = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		watchCollections();
+		// One store at a time, so each collection only finds that one live
+		runObjects(accounts, seconds);
+		runTable(accounts, seconds);
+	}
+
+	private static String accountNumber(int i) {
+		return (i % 2 == 0 ? "Checking" : "Saving") + (i + 1);
+	}
+
+	// The account numbers count towards the objects' size, since each account holds its own
+	private static void runObjects(int accounts, int seconds) throws InterruptedException {
+		long before = usedHeap();
+		String[] numbers = new String[accounts];
+		ClockCache<String, BankAccount> objects = new ClockCache<>(accounts);
+		for (int i = 0; i < accounts; i++) {
+			numbers[i] = accountNumber(i);
+			BankAccount account = i % 2 == 0 ? new CheckingAccount(null, numbers[i], 1000)
+					: new SavingAccount(null, numbers[i], 1000, 0, 0);
+			objects.putIfAbsent(numbers[i], account);
+		}
+		long objectBytes = usedHeap() - before;
+		report("objects", objectBytes, 0, accounts);
+		run("objects", seconds, random -> {
+			BankAccount account = objects.get(numbers[random.nextInt(accounts)]);
+			if (random.nextBoolean()) {
+				account.applyDeposit(AMOUNT);
+			} else {
+				BankAccount target = objects.get(numbers[random.nextInt(accounts)]);
+				account.applyTransferDebit(AMOUNT);
+				target.applyTransferCredit(AMOUNT);
+			}
+		});
+		System.out.println(objects.size() + " accounts held");
+	}
+
+	private static void runTable(int accounts, int seconds) throws InterruptedException {
+		long[] ids = new long[accounts];
+		long before = usedHeap();
+		AccountTable table = new AccountTable(accounts);
+		for (int i = 0; i < accounts; i++) {
+			ids[i] = table.add(accountNumber(i), i % 2 == 0 ? AccountTable.CHECKING : AccountTable.SAVING, 1000, 0, 0,
+					0);
+		}
+		long tableHeapBytes = usedHeap() - before;
+		report("table", tableHeapBytes, table.capacityBytes(), accounts);
+		run("table", seconds, random -> {
+			long id = ids[random.nextInt(accounts)];
+			if (random.nextBoolean()) {
+				table.deposit(id, AMOUNT);
+			} else {
+				table.transfer(id, ids[random.nextInt(accounts)], AMOUNT);
+			}
+		});
+		System.out.println(table.size() + " accounts held");
+	}
+
+	private interface Operation {
+		void run(ThreadLocalRandom random) throws Exception;
+	}
+
+	private static void run(String name, int seconds, Operation operation) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		long countBefore = pauses.get();
+		long millisBefore = pauseMillis.get();
+		longestPause.set(0);
+		long done = 0;
+		long failed = 0;
+		long end = System.nanoTime() + seconds * 1_000_000_000L;
+		while (System.nanoTime() < end) {
+			try {
+				operation.run(random);
+				done++;
+			} catch (Exception e) {
+				failed++;
+			}
+		}
+		System.out.printf("%s: %.0f ops/s, %d failed, %d collections taking %d ms, longest %d ms%n", name,
+				done / (double) seconds, failed, pauses.get() - countBefore, pauseMillis.get() - millisBefore,
+				longestPause.get());
+	}
+
+	private static void report(String name, long heapBytes, long offHeapBytes, int accounts)
+			throws InterruptedException {
+		long start = System.nanoTime();
+		System.gc();
+		long millis = (System.nanoTime() - start) / 1_000_000;
+		// Lets the collection's notification arrive before the run starts counting
+		Thread.sleep(100);
+		System.out.printf("%s: %.1f heap bytes + %.1f off-heap bytes per account, full collection %d ms%n", name,
+				heapBytes / (double) accounts, offHeapBytes / (double) accounts, millis);
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	// Adds up the time of every collection the JVM reports
+	private static void watchCollections() {
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			((NotificationEmitter) collector).addNotificationListener((notification, handback) -> {
+				if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+					return;
+				}
+				GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo
+						.from((CompositeData) notification.getUserData());
+				long duration = info.getGcInfo().getDuration();
+				pauses.incrementAndGet();
+				pauseMillis.addAndGet(duration);
+				longestPause.accumulateAndGet(duration, Math::max);
+			}, null, null);
+		}
+	}
+}
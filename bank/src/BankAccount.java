@@ -1,76 +1,76 @@
-import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.Date;
+import java.util.concurrent.CompletableFuture;
 
+// The limit rules live in the apply* methods below, which change this object's copy of the balance and daily
+// totals. Once BankSystem's partitions hold an account, its public operations go to them and through the journal.
+// Outside BankSystem (tests, tools) each operation runs as one BankWriter work that reads the row into this object,
+// applies the same rule and writes the row back, so the single writer orders it against every other change.
 public abstract class BankAccount {
-	protected static final String DB_URL = "jdbc:sqlite:bank.db";
+	protected static final String DB_URL = System.getProperty("bank.db.url", "jdbc:sqlite:bank.db");
 
 	protected static Integer accountCounter = 0;
+	protected final BankDataSource dataSource;
 	protected String accountNumber;
-	protected double balance;
+	// Written only by the account's partition thread (or its owner, outside BankSystem) and read by anyone
+	protected volatile double balance;
+	// Counts the changes applied in memory, so a reader can tell whether the account moved under it
+	private volatile long version;
+	// Transfers debited from this account whose journal record is not written yet (partition thread only)
+	int transfersInFlight;
+	// A journal sequence at or past the last record holding a change to this account (partition thread only)
+	long journaledThrough;
+	// Set once BankSystem's partitions hold the account
+	volatile AccountPartitions partitions;
+	// The balance counting only the changes the journal has made durable; guarded by this
+	private double journaledBalance;
 
 	protected double dailyDeposits;
+	protected double dailyWithdrawals;
+	protected double dailyTransfers;
 	protected static final double DAILY_DEPOSIT_LIMIT = 5000.0;
 	protected Date transactionDate;
 
+	// Changes this object's state by one of the apply* rules and returns the change, or null if it made none
+	interface Operation {
+		BankJournal.Change apply() throws Exception;
+	}
+
 	public BankAccount(String accountNumber, double initialBalance) {
-		this.accountNumber = accountNumber;
-		this.balance = initialBalance;
+		this(BankDataSource.getDefault(), accountNumber, initialBalance);
 	}
 
 	public BankAccount(double initialBalance) {
-		this.accountNumber = "Account" + (++accountCounter);
-		this.balance = initialBalance;
+		this(BankDataSource.getDefault(), "Account" + (++accountCounter), initialBalance);
 	}
 
-	abstract public void transfer(double amount, BankAccount targetAccount) throws Exception;
-
-	public void saveAccount(String accountType) {
-		try (Connection conn = DriverManager.getConnection(DB_URL);
-				PreparedStatement pstmt = conn.prepareStatement(
-						"INSERT OR REPLACE INTO accounts (accountNumber, balance, dailyWithdrawals, dailyTransfers, dailyDeposits, accountType) "
-								+
-								"VALUES (?, ?, ?, ?, ?, ?)")) {
-			pstmt.setString(1, accountNumber);
-			pstmt.setDouble(2, balance);
-			pstmt.setDouble(3, 0.0);
-			pstmt.setDouble(4, 0.0);
-			pstmt.setDouble(5, 0.0);
-			pstmt.setString(6, accountType);
-			pstmt.executeUpdate();
-		} catch (SQLException e) {
-			System.out.println("Error saving account: " + e.getMessage());
-		}
+	public BankAccount(BankDataSource dataSource, String accountNumber, double initialBalance) {
+		this.dataSource = dataSource;
+		this.accountNumber = accountNumber;
+		this.balance = initialBalance;
+		this.journaledBalance = initialBalance;
 	}
 
-	protected double getDailyDeposits() {
-		try (Connection conn = DriverManager.getConnection(DB_URL);
-				PreparedStatement pstmt = conn.prepareStatement("SELECT dailyDeposits FROM accounts WHERE accountNumber = ?")) {
-			pstmt.setString(1, accountNumber);
-			ResultSet rs = pstmt.executeQuery();
-			if (rs.next()) {
-				return rs.getDouble("dailyDeposits");
-			}
-		} catch (SQLException e) {
-			System.out.println("Error retrieving daily deposits: " + e.getMessage());
+	// Both legs commit together or not at all, see TransferEngine
+	public void transfer(double amount, BankAccount targetAccount) throws Exception {
+		AccountPartitions held = partitions;
+		if (held != null && targetAccount.partitions == held) {
+			BankWriter.await(held.transfer(this, targetAccount, amount));
+		} else {
+			dataSource.getTransferEngine().transfer(this, targetAccount, amount);
 		}
-		return 0.0;
 	}
 
-	protected void updateBalanceAndDailyDeposits(double newBalance, double newDailyDeposits) {
-		try (Connection conn = DriverManager.getConnection(DB_URL);
-				PreparedStatement pstmt = conn.prepareStatement(
-						"UPDATE accounts SET balance = ?, dailyDeposits = ? WHERE accountNumber = ?")) {
-			pstmt.setDouble(1, newBalance);
-			pstmt.setDouble(2, newDailyDeposits);
-			pstmt.setString(3, accountNumber);
-			pstmt.executeUpdate();
-			this.balance = newBalance;
+	public void saveAccount(String accountType) {
+		try {
+			dataSource.write(
+					"INSERT OR REPLACE INTO accounts (accountNumber, balance, dailyWithdrawals, dailyTransfers, dailyDeposits, accountType) "
+							+ "VALUES (?, ?, ?, ?, ?, ?)",
+					accountNumber, balance, 0.0, 0.0, 0.0, accountType);
 		} catch (SQLException e) {
-			System.out.println("Error updating balance and deposits: " + e.getMessage());
+			System.out.println("Error saving account: " + e.getMessage());
 		}
 	}
 
@@ -79,13 +79,28 @@ public abstract class BankAccount {
 	}
 
 	public double getBalance() {
-		try (Connection conn = DriverManager.getConnection(DB_URL);
-				PreparedStatement pstmt = conn.prepareStatement("SELECT balance FROM accounts WHERE accountNumber = ?")) {
+		AccountPartitions held = partitions;
+		if (held != null) {
+			try {
+				return BankWriter.await(held.journaledBalance(this));
+			} catch (Exception e) {
+				System.out.println("Error retrieving balance: " + e.getMessage());
+				return getJournaledBalance();
+			}
+		}
+		this.balance = readBalance();
+		return this.balance;
+	}
+
+	// The stored balance, leaving this object's copy alone
+	protected double readBalance() {
+		try (BankDataSource.PooledConnection conn = dataSource.getConnection()) {
+			PreparedStatement pstmt = conn.prepare("SELECT balance FROM accounts WHERE accountNumber = ?");
 			pstmt.setString(1, accountNumber);
-			ResultSet rs = pstmt.executeQuery();
-			if (rs.next()) {
-				this.balance = rs.getDouble("balance");
-				return this.balance;
+			try (ResultSet rs = pstmt.executeQuery()) {
+				if (rs.next()) {
+					return rs.getDouble("balance");
+				}
 			}
 		} catch (SQLException e) {
 			System.out.println("Error retrieving balance: " + e.getMessage());
@@ -94,26 +109,210 @@ public abstract class BankAccount {
 	}
 
 	public void deposit(double amount) throws Exception {
+		BankWriter.await(submitDeposit(amount));
+	}
+
+	// Completes once the deposit is durable; the future fails if the deposit is rejected
+	public CompletableFuture<Void> submitDeposit(double amount) {
+		AccountPartitions held = partitions;
+		if (held != null) {
+			return held.deposit(this, amount).thenAccept(balance -> {
+			});
+		}
+		return store(() -> applyDeposit(amount));
+	}
+
+	// Reads the stored row into this object; writer thread only
+	void load(BankWriter.Statements statements) throws Exception {
+		try (ResultSet rs = statements.query(
+				"SELECT balance, dailyDeposits, dailyWithdrawals, dailyTransfers FROM accounts WHERE accountNumber = ?",
+				accountNumber)) {
+			if (!rs.next()) {
+				throw new Exception("Account not found: " + accountNumber);
+			}
+			this.balance = rs.getDouble("balance");
+			setDailyTotals(rs.getDouble("dailyDeposits"), rs.getDouble("dailyWithdrawals"),
+					rs.getDouble("dailyTransfers"));
+		}
+	}
+
+	// Writes this object's balance and daily totals to its row; writer thread only
+	void save(BankWriter.Statements statements) throws SQLException {
+		statements.update("UPDATE accounts SET balance = ?, dailyDeposits = ?, dailyWithdrawals = ?, dailyTransfers = ? "
+				+ "WHERE accountNumber = ?", balance, dailyDeposits, dailyWithdrawals, dailyTransfers, accountNumber);
+	}
+
+	// A standalone change: the row is read, the operation applied to it and the result written back
+	CompletableFuture<Void> store(Operation operation) {
+		return dataSource.submitTransaction(statements -> {
+			load(statements);
+			if (operation.apply() != null) {
+				save(statements);
+			}
+			return null;
+		});
+	}
+
+	// The operations below work on this object's copy of the balance and daily totals. BankSystem keeps that copy
+	// authoritative, journals the returned change and folds it into the table later (see AccountPartitions), and
+	// calls them only on the account's partition thread; standalone accounts call them through store.
+
+	void setDailyTotals(double deposits, double withdrawals, double transfers) {
+		this.dailyDeposits = deposits;
+		this.dailyWithdrawals = withdrawals;
+		this.dailyTransfers = transfers;
+	}
+
+	BankJournal.Change applyDeposit(double amount) throws Exception {
 		if (amount <= 0) {
 			throw new Exception("Deposit amount must be positive.");
 		}
-		double currentBalance = getBalance();
-		double currentDailyDeposits = getDailyDeposits();
-		if (currentDailyDeposits + amount > DAILY_DEPOSIT_LIMIT) {
+		return applyTransferCredit(amount);
+	}
+
+	BankJournal.Change applyTransferCredit(double amount) throws Exception {
+		if (dailyDeposits + amount > DAILY_DEPOSIT_LIMIT) {
 			throw new Exception("Daily deposit limit exceeded. Cannot deposit " + amount);
-		} else {
-			updateBalanceAndDailyDeposits(currentBalance + amount, currentDailyDeposits + amount);
+		}
+		return apply(new BankJournal.Change(accountNumber, amount, amount, 0, 0));
+	}
+
+	abstract BankJournal.Change applyTransferDebit(double amount) throws Exception;
+
+	BankJournal.Change apply(BankJournal.Change change) {
+		balance += change.balance();
+		dailyDeposits += change.deposits();
+		dailyWithdrawals += change.withdrawals();
+		dailyTransfers += change.transfers();
+		version++;
+		return change;
+	}
+
+	// The balance as BankSystem knows it, without going to the database. It includes changes still on their way to
+	// the journal, which a crash would lose; getJournaledBalance leaves those out.
+	public double getCachedBalance() {
+		return balance;
+	}
+
+	public synchronized double getJournaledBalance() {
+		return journaledBalance;
+	}
+
+	// Called once a change to the balance is durable, from the journal's sync thread or the partition thread
+	synchronized void journaled(double change) {
+		journaledBalance += change;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	Snapshot currentSnapshot() {
+		return new Snapshot(accountNumber, balance, dailyDeposits, dailyWithdrawals, dailyTransfers, version,
+				transfersInFlight == 0, journaledThrough);
+	}
+
+	BankJournal.Change revertTo(Snapshot snapshot) {
+		return apply(new BankJournal.Change(accountNumber, snapshot.balance - balance,
+				snapshot.dailyDeposits - dailyDeposits, snapshot.dailyWithdrawals - dailyWithdrawals,
+				snapshot.dailyTransfers - dailyTransfers));
+	}
+
+	BankJournal.Change applyDailyReset() {
+		return apply(new BankJournal.Change(accountNumber, 0, -dailyDeposits, -dailyWithdrawals, -dailyTransfers));
+	}
+
+	// Balance and daily counters as stored, so a failed atomic batch can put them back
+	public static class Snapshot {
+		private final String accountNumber;
+		private final double balance;
+		private final double dailyDeposits;
+		private final double dailyWithdrawals;
+		private final double dailyTransfers;
+		private final long version;
+		private final boolean journaled;
+		private final long journaledThrough;
+
+		Snapshot(String accountNumber, double balance, double dailyDeposits, double dailyWithdrawals,
+				double dailyTransfers, long version, boolean journaled, long journaledThrough) {
+			this.accountNumber = accountNumber;
+			this.balance = balance;
+			this.dailyDeposits = dailyDeposits;
+			this.dailyWithdrawals = dailyWithdrawals;
+			this.dailyTransfers = dailyTransfers;
+			this.version = version;
+			this.journaled = journaled;
+			this.journaledThrough = journaledThrough;
+		}
+
+		public String getAccountNumber() {
+			return accountNumber;
+		}
+
+		public double getBalance() {
+			return balance;
+		}
+
+		public long getVersion() {
+			return version;
+		}
+
+		// Whether every change in it has been written to the journal
+		public boolean isJournaled() {
+			return journaled;
+		}
+
+		// A journal sequence at or past the last record holding a change in it
+		long getJournaledThrough() {
+			return journaledThrough;
+		}
+	}
+
+	public Snapshot snapshot() {
+		try {
+			AccountPartitions held = partitions;
+			if (held != null) {
+				return BankWriter.await(held.snapshot(this));
+			}
+			try (BankDataSource.PooledConnection conn = dataSource.getConnection()) {
+				PreparedStatement pstmt = conn.prepare(
+						"SELECT balance, dailyDeposits, dailyWithdrawals, dailyTransfers FROM accounts WHERE accountNumber = ?");
+				pstmt.setString(1, accountNumber);
+				try (ResultSet rs = pstmt.executeQuery()) {
+					if (rs.next()) {
+						return new Snapshot(accountNumber, rs.getDouble("balance"), rs.getDouble("dailyDeposits"),
+								rs.getDouble("dailyWithdrawals"), rs.getDouble("dailyTransfers"), version, true, 0);
+					}
+				}
+			}
+		} catch (Exception e) {
+			System.out.println("Error reading account snapshot: " + e.getMessage());
+		}
+		return currentSnapshot();
+	}
+
+	public void restore(Snapshot snapshot) {
+		try {
+			AccountPartitions held = partitions;
+			if (held != null) {
+				BankWriter.await(held.restore(this, snapshot));
+			} else {
+				BankWriter.await(store(() -> revertTo(snapshot)));
+			}
+		} catch (Exception e) {
+			System.out.println("Error restoring account: " + e.getMessage());
 		}
 	}
 
 	public void resetDailyLimits() {
-		try (Connection conn = DriverManager.getConnection(DB_URL);
-				PreparedStatement pstmt = conn.prepareStatement(
-						"UPDATE accounts SET dailyDeposits = 0, dailyWithdrawals = 0, dailyTransfers = 0 WHERE accountNumber = ?")) {
-			pstmt.setString(1, accountNumber);
-			pstmt.executeUpdate();
-			this.dailyDeposits = 0;
-		} catch (SQLException e) {
+		try {
+			AccountPartitions held = partitions;
+			if (held != null) {
+				BankWriter.await(held.resetDailyLimits(this));
+			} else {
+				BankWriter.await(store(this::applyDailyReset));
+			}
+		} catch (Exception e) {
 			System.out.println("Error resetting daily limits: " + e.getMessage());
 		}
 	}
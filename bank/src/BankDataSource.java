@@ -0,0 +1,199 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A small pool of SQLite connections for the bank database. Connections are opened on first demand up to the
+// pool size and then reused, and each keeps the statements prepared on it, so opening a connection and parsing
+// SQL happen once instead of on every query. Borrow wait, active and idle counts are reported with METRICS.
+// Pooled connections are for reads; writes go through the single BankWriter. There is one data source, and with it
+// one writer, per database URL.
+public class BankDataSource {
+	private static final int DEFAULT_POOL_SIZE = 4;
+	private static final long BORROW_TIMEOUT_MILLIS = 5000;
+	static final int BUSY_TIMEOUT_MILLIS = 5000;
+
+	private static final Map<String, BankDataSource> dataSources = new HashMap<>();
+
+	private final String url;
+	private final int poolSize;
+	private final BlockingQueue<PooledConnection> idle;
+	private final AtomicInteger opened = new AtomicInteger();
+	private final LatencyHistogram borrowWait;
+	private final BankWriter writer;
+	private TransferEngine transferEngine;
+
+	// For accounts and users created without a data source, e.g. in tests
+	public static BankDataSource getDefault() {
+		return forUrl(BankAccount.DB_URL, DEFAULT_POOL_SIZE);
+	}
+
+	// The pool size only applies to the first caller for a URL; later callers share that data source
+	public static synchronized BankDataSource forUrl(String url, int poolSize) {
+		return dataSources.computeIfAbsent(url, key -> new BankDataSource(key, poolSize));
+	}
+
+	private BankDataSource(String url, int poolSize) {
+		this.url = url;
+		this.poolSize = poolSize;
+		this.idle = new ArrayBlockingQueue<>(poolSize);
+		this.borrowWait = RpcMetrics.histogram("bank.db.borrow_wait");
+		RpcMetrics.gauge("bank.db.active", () -> (double) getActiveCount());
+		RpcMetrics.gauge("bank.db.idle", () -> (double) getIdleCount());
+		this.writer = new BankWriter(url);
+	}
+
+	// Runs an INSERT, UPDATE or DELETE on the writer thread and returns the number of rows changed once committed
+	public int write(String sql, Object... parameters) throws SQLException {
+		return writer.execute(sql, parameters);
+	}
+
+	// Queues a write without waiting; the future completes with the number of rows changed once committed
+	public CompletableFuture<Integer> submit(String sql, Object... parameters) {
+		return writer.submit(sql, parameters);
+	}
+
+	// Runs several writes on the writer thread as one transaction and returns the work's result once committed
+	public <T> T transaction(BankWriter.Work<T> work) throws Exception {
+		return writer.execute(work);
+	}
+
+	public <T> CompletableFuture<T> submitTransaction(BankWriter.Work<T> work) {
+		return writer.submit(work);
+	}
+
+	public synchronized TransferEngine getTransferEngine() {
+		if (transferEngine == null) {
+			transferEngine = new TransferEngine(this);
+		}
+		return transferEngine;
+	}
+
+	// Close the returned connection to give it back to the pool
+	public PooledConnection getConnection() throws SQLException {
+		long start = System.nanoTime();
+		PooledConnection connection = idle.poll();
+		if (connection == null) {
+			connection = openIfBelowLimit();
+		}
+		if (connection == null) {
+			try {
+				connection = idle.poll(BORROW_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted waiting for a database connection");
+			}
+			if (connection == null) {
+				throw new SQLException("Timed out waiting for a database connection");
+			}
+		}
+		borrowWait.record(System.nanoTime() - start);
+		return connection;
+	}
+
+	private PooledConnection openIfBelowLimit() throws SQLException {
+		while (true) {
+			int count = opened.get();
+			if (count >= poolSize) {
+				return null;
+			}
+			if (opened.compareAndSet(count, count + 1)) {
+				try {
+					return new PooledConnection(open());
+				} catch (SQLException e) {
+					opened.decrementAndGet();
+					throw e;
+				}
+			}
+		}
+	}
+
+	private Connection open() throws SQLException {
+		Connection connection = DriverManager.getConnection(url);
+		try (Statement pragmas = connection.createStatement()) {
+			// Waits out the moment a WAL checkpoint needs the file instead of failing with SQLITE_BUSY
+			pragmas.execute("PRAGMA busy_timeout = " + BUSY_TIMEOUT_MILLIS);
+		} catch (SQLException e) {
+			connection.close();
+			throw e;
+		}
+		return connection;
+	}
+
+	private void release(PooledConnection connection) {
+		boolean usable;
+		try {
+			usable = !connection.connection.isClosed() && connection.connection.getAutoCommit();
+		} catch (SQLException e) {
+			usable = false;
+		}
+		if (usable) {
+			idle.offer(connection);
+		} else {
+			// Left mid-transaction or broken; a fresh connection takes its place on demand
+			connection.discard();
+			opened.decrementAndGet();
+		}
+	}
+
+	public int getActiveCount() {
+		return Math.max(0, opened.get() - idle.size());
+	}
+
+	public int getIdleCount() {
+		return idle.size();
+	}
+
+	public void close() {
+		PooledConnection connection;
+		while ((connection = idle.poll()) != null) {
+			connection.discard();
+			opened.decrementAndGet();
+		}
+	}
+
+	// Used by one thread at a time between getConnection and close
+	public class PooledConnection implements AutoCloseable {
+		private final Connection connection;
+		private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+		private PooledConnection(Connection connection) {
+			this.connection = connection;
+		}
+
+		// The statement stays open for reuse and must not be closed by the caller; its result sets should be
+		public PreparedStatement prepare(String sql) throws SQLException {
+			PreparedStatement statement = statements.get(sql);
+			if (statement == null) {
+				statement = connection.prepareStatement(sql);
+				statements.put(sql, statement);
+			}
+			return statement;
+		}
+
+		public Connection getConnection() {
+			return connection;
+		}
+
+		@Override
+		public void close() {
+			release(this);
+		}
+
+		private void discard() {
+			try {
+				connection.close();
+			} catch (SQLException e) {
+				System.out.println("Error closing database connection: " + e.getMessage());
+			}
+		}
+	}
+}
@@ -0,0 +1,366 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+// Append-only log of account changes, written ahead of the accounts table. Each record holds the changes one
+// request made (both sides of a transfer in one record) and is framed as [length][CRC32][payload] in a
+// memory-mapped segment file, so a record torn by a crash fails its checksum and ends the replay. An append
+// completes once its record has been forced to disk; a single sync thread forces whatever has been appended
+// since its last pass, after waiting syncMillis to gather more, so concurrent appends share one fsync. If the
+// sync keeps failing, the waiting appends fail and the journal takes no more.
+// Full or rolled segments are sealed and left for the JournalCheckpointer to fold into bank.db, which hands them
+// back once folded. A few are kept, still mapped, to be reused as later segments; the rest are unmapped and
+// deleted. A reused segment still holds its old records past the new ones, so reading stops where the sequence
+// numbers stop following on.
+public class BankJournal {
+	public static final byte DEPOSIT = 1;
+	public static final byte WITHDRAW = 2;
+	public static final byte TRANSFER = 3;
+	public static final byte RESTORE = 4;
+	// A transfer undone by restoring its accounts: the checkpointer writes the reversing ledger row and applies no
+	// balance change
+	public static final byte REVERSAL = 5;
+
+	private static final int SEGMENT_SIZE = 8 * 1024 * 1024;
+	private static final int HEADER_SIZE = 8;
+	private static final long SYNC_RETRY_MILLIS = 100;
+	// Consecutive failed syncs before the journal stops
+	private static final int MAX_SYNC_ATTEMPTS = 10;
+	private static final int MAX_SPARE_SEGMENTS = 2;
+	private static final String SEGMENT_PREFIX = "journal-";
+	private static final String SPARE_PREFIX = "spare-";
+	private static final String SEGMENT_SUFFIX = ".log";
+
+	private final Path directory;
+	private final long syncMillis;
+	private final Deque<Pending> pending = new ArrayDeque<>();
+	private final List<Path> sealed = new ArrayList<>();
+	// Mappings of segments sealed since the journal opened, until they are handed back
+	private final Map<Path, MappedByteBuffer> sealedMappings = new HashMap<>();
+	private final Deque<Spare> spares = new ArrayDeque<>();
+	private final CRC32 crc = new CRC32();
+	private final LatencyHistogram syncTime;
+	private final AtomicLong syncs = new AtomicLong();
+	private long nextSequence;
+	private long segmentNumber;
+	private Path segment;
+	private MappedByteBuffer buffer;
+	// The buffer the sync thread is forcing, which must not be unmapped meanwhile
+	private MappedByteBuffer forcing;
+	// Set once syncing has failed for good
+	private IOException failure;
+
+	// The amounts one account's balance and daily totals moved by
+	public record Change(String accountNumber, double balance, double deposits, double withdrawals,
+			double transfers) {
+		public Change inverse() {
+			return new Change(accountNumber, -balance, -deposits, -withdrawals, -transfers);
+		}
+	}
+
+	public record Record(long sequence, long timestamp, byte kind, List<Change> changes) {
+	}
+
+	private record Pending(long sequence, CompletableFuture<Long> result) {
+	}
+
+	private record Spare(Path path, MappedByteBuffer buffer) {
+	}
+
+	public BankJournal(Path directory, long firstSequence, long syncMillis) throws IOException {
+		this.directory = directory;
+		this.syncMillis = syncMillis;
+		this.nextSequence = firstSequence;
+		Files.createDirectories(directory);
+		for (Path spare : files(directory, SPARE_PREFIX)) {
+			Files.delete(spare);
+		}
+		List<Path> existing = segments(directory);
+		// Segments left on disk belong to an earlier run and are replayed on the next start, not by this journal
+		this.segmentNumber = existing.isEmpty() ? 0 : segmentNumber(existing.get(existing.size() - 1));
+		openNextSegment();
+		this.syncTime = RpcMetrics.histogram("bank.journal.sync");
+		RpcMetrics.gauge("bank.journal.sequence", () -> (double) lastSequence());
+		RpcMetrics.gauge("bank.journal.syncs", () -> (double) syncs.get());
+		Thread thread = new Thread(this::syncLoop, "bank-journal-sync");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	// Completes with the record's sequence number once it is on disk; throws if the record could not be written
+	public synchronized CompletableFuture<Long> append(byte kind, Change... changes) throws IOException {
+		if (failure != null) {
+			throw new IOException("Bank journal stopped: " + failure.getMessage(), failure);
+		}
+		byte[] payload = encode(nextSequence, System.currentTimeMillis(), kind, changes);
+		if (buffer.remaining() < HEADER_SIZE + payload.length) {
+			sealSegment();
+		}
+		CompletableFuture<Long> result = new CompletableFuture<>();
+		crc.reset();
+		crc.update(payload);
+		buffer.putInt(payload.length);
+		buffer.putInt((int) crc.getValue());
+		buffer.put(payload);
+		pending.add(new Pending(nextSequence, result));
+		nextSequence++;
+		notifyAll();
+		return result;
+	}
+
+	public synchronized long lastSequence() {
+		return nextSequence - 1;
+	}
+
+	// Seals the current segment, if it holds anything, and hands over every sealed segment in order
+	public synchronized List<Path> roll() throws IOException {
+		if (buffer.position() > 0) {
+			sealSegment();
+		}
+		List<Path> segments = new ArrayList<>(sealed);
+		sealed.clear();
+		return segments;
+	}
+
+	// Returns segments a checkpoint could not fold, so the next roll hands them over again ahead of newer ones
+	public synchronized void putBack(List<Path> unfolded) {
+		sealed.addAll(0, unfolded);
+	}
+
+	// Takes back segments the checkpointer has folded; any not kept for reuse are unmapped and deleted
+	public synchronized void recycle(List<Path> folded) throws IOException {
+		for (Path path : folded) {
+			MappedByteBuffer mapping = sealedMappings.remove(path);
+			if (mapping != null && spares.size() < MAX_SPARE_SEGMENTS) {
+				// Renamed rather than left under its own name, so a restart does not replay it
+				Path spare = directory.resolve(SPARE_PREFIX + path.getFileName());
+				Files.move(path, spare);
+				spares.add(new Spare(spare, mapping));
+				continue;
+			}
+			if (mapping != null && mapping != forcing) {
+				unmap(mapping);
+			}
+			Files.deleteIfExists(path);
+		}
+	}
+
+	private void sealSegment() throws IOException {
+		// Everything in it must be durable before anyone can read it back as sealed
+		try {
+			buffer.force();
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		sealed.add(segment);
+		sealedMappings.put(segment, buffer);
+		openNextSegment();
+	}
+
+	private void openNextSegment() throws IOException {
+		segmentNumber++;
+		segment = directory.resolve(String.format("%s%06d%s", SEGMENT_PREFIX, segmentNumber, SEGMENT_SUFFIX));
+		Spare spare = spares.poll();
+		if (spare != null) {
+			// The mapping follows the file
+			Files.move(spare.path(), segment);
+			buffer = spare.buffer();
+			buffer.clear();
+			return;
+		}
+		try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+		}
+	}
+
+	private void syncLoop() {
+		int failedAttempts = 0;
+		while (true) {
+			MappedByteBuffer toForce;
+			long upTo;
+			try {
+				synchronized (this) {
+					while (pending.isEmpty()) {
+						wait();
+					}
+				}
+				if (syncMillis > 0) {
+					Thread.sleep(syncMillis);
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+			synchronized (this) {
+				toForce = buffer;
+				forcing = toForce;
+				upTo = nextSequence - 1;
+			}
+			long start = System.nanoTime();
+			try {
+				// Segments sealed in the meantime were forced as they were sealed
+				toForce.force();
+				failedAttempts = 0;
+			} catch (UncheckedIOException e) {
+				System.err.println("Error syncing bank journal: " + e.getMessage());
+				if (++failedAttempts >= MAX_SYNC_ATTEMPTS) {
+					stop(e.getCause());
+					return;
+				}
+				// The records are already in the file, so the appends wait for a later sync rather than fail
+				try {
+					Thread.sleep(SYNC_RETRY_MILLIS);
+				} catch (InterruptedException interrupted) {
+					return;
+				}
+				continue;
+			} finally {
+				synchronized (this) {
+					forcing = null;
+				}
+			}
+			syncTime.record(System.nanoTime() - start);
+			syncs.incrementAndGet();
+			List<Pending> done = new ArrayList<>();
+			synchronized (this) {
+				while (!pending.isEmpty() && pending.peek().sequence() <= upTo) {
+					done.add(pending.poll());
+				}
+			}
+			for (Pending write : done) {
+				write.result().complete(write.sequence());
+			}
+		}
+	}
+
+	// Fails every waiting append and refuses new ones. Those changes may or may not have reached the disk, so what
+	// became of them is only known once BANK restarts and replays the journal.
+	private void stop(IOException cause) {
+		List<Pending> failed;
+		synchronized (this) {
+			failure = cause;
+			failed = new ArrayList<>(pending);
+			pending.clear();
+		}
+		System.err.println("Bank journal stopped after " + MAX_SYNC_ATTEMPTS + " failed syncs, " + failed.size()
+				+ " changes not confirmed: " + cause.getMessage());
+		IOException error = new IOException("Bank journal could not be synced, change not confirmed: "
+				+ cause.getMessage(), cause);
+		for (Pending write : failed) {
+			write.result().completeExceptionally(error);
+		}
+	}
+
+	// Releases a mapping now rather than whenever the buffer is collected. Where the JDK does not allow that, the
+	// mapping is left to the collector.
+	private static void unmap(MappedByteBuffer mapping) {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field instance = unsafeClass.getDeclaredField("theUnsafe");
+			instance.setAccessible(true);
+			Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			invokeCleaner.invoke(instance.get(null), mapping);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			// Left to the collector
+		}
+	}
+
+	private static byte[] encode(long sequence, long timestamp, byte kind, Change[] changes) {
+		int size = 8 + 8 + 1 + 2;
+		byte[][] names = new byte[changes.length][];
+		for (int i = 0; i < changes.length; i++) {
+			names[i] = changes[i].accountNumber().getBytes(StandardCharsets.UTF_8);
+			size += 2 + names[i].length + 4 * 8;
+		}
+		ByteBuffer payload = ByteBuffer.allocate(size);
+		payload.putLong(sequence).putLong(timestamp).put(kind).putShort((short) changes.length);
+		for (int i = 0; i < changes.length; i++) {
+			payload.putShort((short) names[i].length).put(names[i]);
+			payload.putDouble(changes[i].balance()).putDouble(changes[i].deposits())
+					.putDouble(changes[i].withdrawals()).putDouble(changes[i].transfers());
+		}
+		return payload.array();
+	}
+
+	// The intact records of a segment in order; reading stops at the first empty or damaged frame, or at a record
+	// that does not follow on from the one before, left from the segment's earlier use
+	public static List<Record> read(Path segment) throws IOException {
+		List<Record> records = new ArrayList<>();
+		ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(segment));
+		CRC32 checksum = new CRC32();
+		while (data.remaining() >= HEADER_SIZE) {
+			int length = data.getInt();
+			int expected = data.getInt();
+			if (length <= 0 || length > data.remaining()) {
+				break;
+			}
+			byte[] payload = new byte[length];
+			data.get(payload);
+			checksum.reset();
+			checksum.update(payload);
+			if ((int) checksum.getValue() != expected) {
+				break;
+			}
+			Record record = decode(ByteBuffer.wrap(payload));
+			if (!records.isEmpty() && record.sequence() != records.get(records.size() - 1).sequence() + 1) {
+				break;
+			}
+			records.add(record);
+		}
+		return records;
+	}
+
+	private static Record decode(ByteBuffer payload) {
+		long sequence = payload.getLong();
+		long timestamp = payload.getLong();
+		byte kind = payload.get();
+		int count = payload.getShort();
+		List<Change> changes = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			byte[] name = new byte[payload.getShort()];
+			payload.get(name);
+			changes.add(new Change(new String(name, StandardCharsets.UTF_8), payload.getDouble(), payload.getDouble(),
+					payload.getDouble(), payload.getDouble()));
+		}
+		return new Record(sequence, timestamp, kind, changes);
+	}
+
+	public static List<Path> segments(Path directory) throws IOException {
+		return files(directory, SEGMENT_PREFIX);
+	}
+
+	private static List<Path> files(Path directory, String prefix) throws IOException {
+		if (!Files.isDirectory(directory)) {
+			return List.of();
+		}
+		try (Stream<Path> files = Files.list(directory)) {
+			return files.filter(file -> {
+				String name = file.getFileName().toString();
+				return name.startsWith(prefix) && name.endsWith(SEGMENT_SUFFIX);
+			}).sorted().toList();
+		}
+	}
+
+	private static long segmentNumber(Path segment) {
+		String name = segment.getFileName().toString();
+		return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+	}
+}
@@ -0,0 +1,281 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+// A copy of the accounts and users tables taken right after a checkpoint, so a restart can read accounts from a
+// memory-mapped file instead of through JDBC. Layout: a header (magic, format version, the journal sequence bank.db
+// held, counts, index offsets, the tables' change count and a CRC32 of everything after the header), the account
+// records, the user records, then an index of record offsets for each, sorted by account number and PIN in the
+// byte order SQLite sorts them in, so lookups are binary searches on the mapped file. It is only opened when
+// bank.db still holds exactly that sequence and change count, the count catching the writes the journal does not
+// record, such as signups; an account is read from it at most once, since once BANK has held it bank.db may have
+// moved on.
+public class BankSnapshot {
+	private static final int MAGIC = 0x424E4B53;
+	private static final int FORMAT_VERSION = 2;
+	private static final int HEADER_SIZE = 52;
+	private static final String[] TRACKED_TABLES = { "accounts", "users" };
+	private static final byte CHECKING = 1;
+	private static final byte SAVING = 2;
+
+	private final MappedByteBuffer data;
+	private final int accountCount;
+	private final int userCount;
+	private final int accountIndex;
+	private final int userIndex;
+	// Accounts already handed out, by index position
+	private final BitSet taken = new BitSet();
+
+	public record AccountRow(String accountNumber, boolean saving, double balance, double dailyDeposits,
+			double dailyWithdrawals, double dailyTransfers) {
+	}
+
+	public record UserRow(String pin, String name, String checkingAccount, String savingAccount) {
+	}
+
+	private BankSnapshot(MappedByteBuffer data) {
+		this.data = data;
+		this.accountCount = data.getInt(16);
+		this.userCount = data.getInt(20);
+		this.accountIndex = (int) data.getLong(24);
+		this.userIndex = (int) data.getLong(32);
+	}
+
+	// Counts every insert, update and delete on the accounts and users tables, whoever makes it, in a row the
+	// snapshot records and open compares against
+	public static void track(BankDataSource dataSource) throws SQLException {
+		dataSource.write("CREATE TABLE IF NOT EXISTS bank_changes (id INTEGER PRIMARY KEY CHECK (id = 0), count INTEGER)");
+		dataSource.write("INSERT OR IGNORE INTO bank_changes (id, count) VALUES (0, 0)");
+		for (String table : TRACKED_TABLES) {
+			for (String event : new String[] { "INSERT", "UPDATE", "DELETE" }) {
+				dataSource.write("CREATE TRIGGER IF NOT EXISTS bank_changes_" + table + "_" + event.toLowerCase()
+						+ " AFTER " + event + " ON " + table
+						+ " BEGIN UPDATE bank_changes SET count = count + 1 WHERE id = 0; END");
+			}
+		}
+	}
+
+	public static long changes(BankDataSource dataSource) throws SQLException {
+		try (BankDataSource.PooledConnection conn = dataSource.getConnection()) {
+			return changes(conn);
+		}
+	}
+
+	private static long changes(BankDataSource.PooledConnection conn) throws SQLException {
+		try (ResultSet rs = conn.prepare("SELECT count FROM bank_changes WHERE id = 0").executeQuery()) {
+			return rs.next() ? rs.getLong("count") : 0;
+		}
+	}
+
+	// Writes bank.db as it stands to a new file that then replaces the old one; the caller makes sure no checkpoint
+	// runs meanwhile, so the tables match the sequence recorded
+	public static void write(BankDataSource dataSource, Path file, long sequence) throws IOException, SQLException {
+		Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+		int[] accountOffsets = new int[1024];
+		int[] userOffsets = new int[1024];
+		int accounts = 0;
+		int users = 0;
+		long changes;
+		CRC32 crc = new CRC32();
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		try (OutputStream raw = new BufferedOutputStream(Files.newOutputStream(temporary))) {
+			// Filled in once the rest is written
+			raw.write(new byte[HEADER_SIZE]);
+			DataOutputStream out = new DataOutputStream(new CheckedOutputStream(raw, crc));
+			try (BankDataSource.PooledConnection conn = dataSource.getConnection()) {
+				Connection connection = conn.getConnection();
+				// One read transaction, so the change count and both tables are read as of the same commit
+				connection.setAutoCommit(false);
+				try {
+					changes = changes(conn);
+					try (ResultSet rs = conn.prepare("SELECT accountNumber, balance, dailyDeposits, dailyWithdrawals, "
+							+ "dailyTransfers, accountType FROM accounts ORDER BY accountNumber").executeQuery()) {
+						while (rs.next()) {
+							if (accounts == accountOffsets.length) {
+								accountOffsets = Arrays.copyOf(accountOffsets, accounts * 2);
+							}
+							accountOffsets[accounts++] = HEADER_SIZE + out.size();
+							writeString(out, rs.getString("accountNumber"));
+							out.writeByte("Saving".equals(rs.getString("accountType")) ? SAVING : CHECKING);
+							out.writeDouble(rs.getDouble("balance"));
+							out.writeDouble(rs.getDouble("dailyDeposits"));
+							out.writeDouble(rs.getDouble("dailyWithdrawals"));
+							out.writeDouble(rs.getDouble("dailyTransfers"));
+						}
+					}
+					try (ResultSet rs = conn.prepare("SELECT pin, name, checkingAccount, savingAccount FROM users ORDER BY pin")
+							.executeQuery()) {
+						while (rs.next()) {
+							if (users == userOffsets.length) {
+								userOffsets = Arrays.copyOf(userOffsets, users * 2);
+							}
+							userOffsets[users++] = HEADER_SIZE + out.size();
+							writeString(out, rs.getString("pin"));
+							writeString(out, rs.getString("name"));
+							writeString(out, rs.getString("checkingAccount"));
+							writeString(out, rs.getString("savingAccount"));
+						}
+					}
+				} finally {
+					connection.rollback();
+					connection.setAutoCommit(true);
+				}
+			}
+			long accountIndexOffset = HEADER_SIZE + (long) out.size();
+			for (int i = 0; i < accounts; i++) {
+				out.writeInt(accountOffsets[i]);
+			}
+			long userIndexOffset = HEADER_SIZE + (long) out.size();
+			for (int i = 0; i < users; i++) {
+				out.writeInt(userOffsets[i]);
+			}
+			out.flush();
+			// DataOutputStream counts up to Integer.MAX_VALUE, which is also as far as one mapping reaches
+			if (out.size() == Integer.MAX_VALUE) {
+				throw new IOException("Bank snapshot would not fit in one mapping");
+			}
+			header.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(sequence).putInt(accounts).putInt(users)
+					.putLong(accountIndexOffset).putLong(userIndexOffset).putLong(changes).putInt((int) crc.getValue())
+					.flip();
+		}
+		try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+			channel.write(header, 0);
+			channel.force(true);
+		}
+		Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	// The snapshot, or null if there is none or it cannot stand in for bank.db at the given sequence and change count
+	public static BankSnapshot open(Path file, long sequence, long changes) throws IOException {
+		if (!Files.isRegularFile(file)) {
+			return null;
+		}
+		MappedByteBuffer data;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+				System.out.println("Ignoring bank snapshot: unexpected size " + channel.size());
+				return null;
+			}
+			data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		if (data.getInt(0) != MAGIC || data.getInt(4) != FORMAT_VERSION) {
+			System.out.println("Ignoring bank snapshot: unknown format");
+			return null;
+		}
+		if (data.getLong(8) != sequence) {
+			System.out.println("Ignoring bank snapshot: taken at journal sequence " + data.getLong(8)
+					+ ", bank.db is at " + sequence);
+			return null;
+		}
+		if (data.getLong(40) != changes) {
+			System.out.println("Ignoring bank snapshot: bank.db changed outside the journal since it was taken");
+			return null;
+		}
+		CRC32 crc = new CRC32();
+		crc.update(data.slice(HEADER_SIZE, data.capacity() - HEADER_SIZE));
+		if ((int) crc.getValue() != data.getInt(48)) {
+			System.out.println("Ignoring bank snapshot: checksum mismatch");
+			return null;
+		}
+		return new BankSnapshot(data);
+	}
+
+	public int accountCount() {
+		return accountCount;
+	}
+
+	public int userCount() {
+		return userCount;
+	}
+
+	// The account as the snapshot has it, unless it is not there or was handed out before
+	public synchronized AccountRow takeAccount(String accountNumber) {
+		int position = find(accountIndex, accountCount, accountNumber);
+		if (position < 0 || taken.get(position)) {
+			return null;
+		}
+		taken.set(position);
+		ByteBuffer record = data.duplicate().position(data.getInt(accountIndex + position * 4));
+		String number = readString(record);
+		boolean saving = record.get() == SAVING;
+		return new AccountRow(number, saving, record.getDouble(), record.getDouble(), record.getDouble(),
+				record.getDouble());
+	}
+
+	// Users never change once stored, so they can be read any number of times
+	public UserRow user(String pin) {
+		int position = find(userIndex, userCount, pin);
+		if (position < 0) {
+			return null;
+		}
+		ByteBuffer record = data.duplicate().position(data.getInt(userIndex + position * 4));
+		return new UserRow(readString(record), readString(record), readString(record), readString(record));
+	}
+
+	private int find(int index, int count, String key) {
+		byte[] wanted = key.getBytes(StandardCharsets.UTF_8);
+		int low = 0;
+		int high = count - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int comparison = compareKey(data.getInt(index + middle * 4), wanted);
+			if (comparison < 0) {
+				low = middle + 1;
+			} else if (comparison > 0) {
+				high = middle - 1;
+			} else {
+				return middle;
+			}
+		}
+		return -1;
+	}
+
+	// Compares the key at the start of a record with the wanted one, byte by byte as unsigned values
+	private int compareKey(int offset, byte[] wanted) {
+		int length = data.getShort(offset);
+		for (int i = 0; i < Math.min(length, wanted.length); i++) {
+			int comparison = Integer.compare(data.get(offset + 2 + i) & 0xff, wanted[i] & 0xff);
+			if (comparison != 0) {
+				return comparison;
+			}
+		}
+		return Integer.compare(length, wanted.length);
+	}
+
+	// Null is written as length -1
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeShort(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeShort(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer record) {
+		int length = record.getShort();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		record.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -1,41 +1,132 @@
-import java.sql.Connection;
-import java.sql.DriverManager;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Lock;
 
 public class BankSystem {
 	private static final int PORT = 8081;
 	private static final String SYSTEM_ID = "BANK";
-	private static final String DB_URL = "jdbc:sqlite:bank.db";
-
-	private Map<String, CheckingAccount> checkingAccounts;
-	private Map<String, SavingAccount> savingAccounts;
-	private Map<String, User> users;
+	private static final String DB_URL = System.getProperty("bank.db.url", "jdbc:sqlite:bank.db");
+	// Upper bound for calls to UTIL; a request with an earlier deadline shortens it
+	private static final long UTIL_TIMEOUT_MILLIS = 5000;
+	// A bill payment UTIL gave no answer for is asked about again with the same idempotency key, so UTIL pays it at
+	// most once. UTIL remembers keys for IdempotencyCache.DEFAULT_TTL_MILLIS, so the retries stop well before that.
+	private static final long BILL_RETRY_MILLIS = 10_000;
+	private static final int BILL_RETRY_ATTEMPTS = (int) (IdempotencyCache.DEFAULT_TTL_MILLIS / 2 / BILL_RETRY_MILLIS);
+	private static final int BATCH_THREADS = 8;
+	private static final int DB_POOL_SIZE = 8;
+	private static final int PARTITIONS = Integer.getInteger("bank.partitions",
+			Runtime.getRuntime().availableProcessors());
+	private static final Path JOURNAL_DIR = Path.of(System.getProperty("bank.journal.dir", "bank-journal"));
+	// How long the journal waits to gather appends before each fsync; 0 syncs as soon as anything is waiting
+	private static final long JOURNAL_SYNC_MILLIS = Long.getLong("bank.journal.syncMillis", 0);
+	private static final long CHECKPOINT_MILLIS = Long.getLong("bank.journal.checkpointMillis", 1000);
+	// How many accounts and users are kept in memory; the rest are read from bank.db when they are asked for
+	private static final int CACHED_ACCOUNTS = Integer.getInteger("bank.cache.accounts", 100_000);
+	private static final int CACHED_USERS = Integer.getInteger("bank.cache.users", 100_000);
+	private static final Path SNAPSHOT_FILE = Path.of(System.getProperty("bank.snapshot.file", "bank.snapshot"));
+	// How often a snapshot is written besides the one on shutdown; 0 writes it only on shutdown
+	private static final long SNAPSHOT_MILLIS = Long.getLong("bank.snapshot.millis", 300_000);
+	// Balances summed in a different order may differ in the last bits
+	private static final double BALANCE_TOLERANCE = 1e-6;
+
+	private final AccountPartitions partitions;
+	private final JournalCheckpointer checkpointer;
+	// Null unless the snapshot on disk matches bank.db as this run found it
+	private final BankSnapshot snapshot;
+	private final ClockCache<String, User> users = new ClockCache<>(CACHED_USERS);
+	private final BankDataSource dataSource;
 
 	private Server server;
 	private Client client;
+	private BatchExecutor batches;
+	private final MessageDispatcher dispatcher = new MessageDispatcher();
+	// Atomic batches hold the write side so no other request observes or interleaves with a half-applied batch
+	private final AccountLocks accountLocks = new AccountLocks();
+	private final ScheduledExecutorService billRetries = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread thread = new Thread(r, "bank-bill-retry");
+		thread.setDaemon(true);
+		return thread;
+	});
 
 	public static void main(String[] args) throws Exception {
-		BankSystem bankSystem = new BankSystem();
+		Server.Mode mode = args.length > 0 ? Server.Mode.valueOf(args[0].toUpperCase()) : Server.Mode.BLOCKING;
+		BankSystem bankSystem = new BankSystem(mode);
 		bankSystem.start();
 	}
 
 	public BankSystem() {
+		this(Server.Mode.BLOCKING);
+	}
+
+	public BankSystem(Server.Mode mode) {
+		this.dataSource = BankDataSource.forUrl(DB_URL, DB_POOL_SIZE);
 		intitializeDatabase();
-		this.checkingAccounts = loadCheckingAccounts();
-		this.savingAccounts = loadSavingAccounts();
-		this.users = loadUsers();
-		this.server = new Server(PORT, SYSTEM_ID, this::handleMessage);
+		this.checkpointer = new JournalCheckpointer(dataSource, JOURNAL_DIR);
+		BankJournal journal;
+		try {
+			// What the last run journaled but never checkpointed reaches bank.db before the accounts are read
+			journal = new BankJournal(JOURNAL_DIR, checkpointer.recover(), JOURNAL_SYNC_MILLIS);
+		} catch (IOException | SQLException e) {
+			throw new IllegalStateException("Could not replay the bank journal: " + e.getMessage(), e);
+		}
+		this.snapshot = openSnapshot();
+		this.partitions = new AccountPartitions(PARTITIONS, journal, CACHED_ACCOUNTS, this::loadAccount,
+				checkpointer::getCheckpointedSequence);
+		checkpointer.start(journal, CHECKPOINT_MILLIS, partitions::trim);
+		startSnapshots();
+		RpcMetrics.gauge("bank.users.held", () -> (double) users.size());
+		this.server = new Server(PORT, SYSTEM_ID, this::handleRequest, mode);
 		this.client = new Client();
+		this.batches = new BatchExecutor(this::handleRequest, Executors.newFixedThreadPool(BATCH_THREADS),
+				BankSystem::batchKeys);
+		registerHandlers();
+	}
+
+	private void registerHandlers() {
+		dispatcher.register(Message.Type.DEPOSIT, BankMessages.DepositRequest::from, this::handleDeposit);
+		dispatcher.register(Message.Type.WITHDRAW, BankMessages.WithdrawRequest::from, this::handleWithdraw);
+		dispatcher.register(Message.Type.TRANSFER, BankMessages.TransferRequest::from, this::handleTransfer);
+		dispatcher.register(Message.Type.PAY_BILL, BankMessages.PayBillRequest::from, this::handlePayBill);
+		dispatcher.register(Message.Type.VIEW_BALANCE, BankMessages.BalanceRequest::from, this::handleCheckBalance);
+		dispatcher.register(Message.Type.LOGIN, BankMessages.LoginRequest::from, this::handleLogin);
+		dispatcher.register(Message.Type.SIGNUP, BankMessages.SignupRequest::from, this::handleSignup);
+		dispatcher.register(Message.Type.BATCH, this::handleBatch);
+		dispatcher.register(Message.Type.CHECK_CONSISTENCY, this::handleConsistencyCheck);
 	}
 
 	public void start() {
 		server.start();
 	}
 
+	private Message handleRequest(Message message) {
+		Message.Type type = message.getMessageType();
+		if (type == Message.Type.BATCH || type == Message.Type.PAY_BILL) {
+			// Batches lock for their sub-requests, and a bill payment must not hold its account's lock while UTIL
+			// answers, so both lock themselves
+			return handleMessage(message);
+		}
+		List<Lock> held = accountLocks.lock(batchKeys(message), false);
+		try {
+			return handleMessage(message);
+		} finally {
+			AccountLocks.unlock(held);
+		}
+	}
+
 	private Message handleMessage(Message message) {
 		Message.Type messageType = message.getMessageType();
 		Message response = new Message();
@@ -44,32 +135,9 @@ public class BankSystem {
 		response.setCorrelationId(message.getCorrelationId());
 
 		try {
-			switch (messageType) {
-				case DEPOSIT:
-					handleDeposit(message, response);
-					break;
-				case WITHDRAW:
-					handleWithdraw(message, response);
-					break;
-				case TRANSFER:
-					handleTransfer(message, response);
-					break;
-				case PAY_BILL:
-					handlePayBill(message, response);
-					break;
-				case VIEW_BALANCE:
-					handleCheckBalance(message, response);
-					break;
-				case LOGIN:
-					handleLogin(message, response);
-					break;
-				case SIGNUP:
-					handleSignup(message, response);
-					break;
-				default:
-					response.setMessageType(Message.Type.ERROR);
-					response.addData("Error", "Unsupported message type: " + messageType);
-					break;
+			if (!dispatcher.dispatch(message, response)) {
+				response.setMessageType(Message.Type.ERROR);
+				response.addData("Error", "Unsupported message type: " + messageType);
 			}
 		} catch (Exception e) {
 			response.setMessageType(Message.Type.ERROR);
@@ -79,107 +147,175 @@ public class BankSystem {
 		return response;
 	}
 
-	private void handleLogin(Message request, Message response) {
-		String name = (String) request.getData("name");
-		String pin = (String) request.getData("pin");
-
-		User user = users.get(pin);
-		if (user != null && user.getName().equals(name)) {
+	private void handleBatch(Message request, Message response) throws Exception {
+		List<Message> requests = request.getBatch();
+		if (!request.isAtomicBatch()) {
 			response.setMessageType(Message.Type.SUCCESS);
-			response.addData("checkingAccountId", user.getCheckingAccount().getAccountNumber());
-			response.addData("savingAccountId", user.getSavingAccount().getAccountNumber());
+			response.addData(Message.BATCH_MESSAGES_KEY, batches.execute(requests));
+			return;
+		}
+
+		for (Message subRequest : requests) {
+			Message.Type type = subRequest.getMessageType();
+			if (type == Message.Type.PAY_BILL || type == Message.Type.SIGNUP || type == Message.Type.BATCH) {
+				// Their effects reach beyond the accounts table and cannot be rolled back here
+				response.setMessageType(Message.Type.ERROR);
+				response.addData("Error", type + " cannot be part of an atomic batch");
+				return;
+			}
+		}
+
+		List<String> keys = new ArrayList<>();
+		for (Message subRequest : requests) {
+			keys.addAll(batchKeys(subRequest));
+		}
+		List<Lock> held = accountLocks.lock(keys, true);
+		try {
+			List<BankAccount.Snapshot> snapshots = new ArrayList<>();
+			for (Message subRequest : requests) {
+				for (String accountId : batchKeys(subRequest)) {
+					BankAccount account = getAccount(accountId);
+					if (account != null) {
+						snapshots.add(BankWriter.await(partitions.snapshot(account)));
+					}
+				}
+			}
+
+			List<Message> responses = batches.executeInOrder(requests);
+			response.addData(Message.BATCH_MESSAGES_KEY, responses);
+			Message last = responses.get(responses.size() - 1);
+			if (responses.size() == requests.size() && last.getMessageType() == Message.Type.SUCCESS) {
+				response.setMessageType(Message.Type.SUCCESS);
+				return;
+			}
+
+			Collections.reverse(snapshots);
+			for (BankAccount.Snapshot snapshot : snapshots) {
+				BankWriter.await(partitions.restore(getAccount(snapshot.getAccountNumber()), snapshot));
+			}
+			// The transfers' records are journaled already, so the ledger gets a reversing row for each
+			for (int i = 0; i < responses.size(); i++) {
+				if (requests.get(i).getMessageType() == Message.Type.TRANSFER
+						&& responses.get(i).getMessageType() == Message.Type.SUCCESS) {
+					BankWriter.await(partitions.reverse(BankMessages.TransferRequest.from(requests.get(i))));
+				}
+			}
+			Object reason = last.getData("Error") != null ? last.getData("Error") : last.getData("Reason");
+			response.setMessageType(Message.Type.ERROR);
+			response.addData("Error", "Batch rolled back, request " + (responses.size() - 1) + " failed: " + reason);
+		} finally {
+			AccountLocks.unlock(held);
+		}
+	}
+
+	// Sub-requests touching the same account (or the same user, by PIN) must not run concurrently
+	private static List<String> batchKeys(Message request) {
+		List<String> keys = new ArrayList<>();
+		for (String key : new String[] { "accountId", "sourceAccountId", "targetAccountId", "bankAccountId" }) {
+			Object accountId = request.getData(key);
+			if (accountId != null) {
+				keys.add((String) accountId);
+			}
+		}
+		if (request.getData("pin") != null) {
+			keys.add("pin:" + request.getData("pin"));
+		}
+		return keys;
+	}
+
+	private void handleLogin(BankMessages.LoginRequest request, Message response) {
+		User user = getUser(request.pin());
+		if (user != null && user.getName().equals(request.name())) {
+			new BankMessages.AccountsResponse(user.getCheckingAccountNumber(), user.getSavingAccountNumber())
+					.writeTo(response);
 		} else {
 			response.setMessageType(Message.Type.ERROR);
 			response.addData("Error", "Invalid login credentials.");
 		}
 	}
 
-	private void handleSignup(Message request, Message response) {
-		String name = (String) request.getData("name");
-		String pin = (String) request.getData("pin");
+	private void handleSignup(BankMessages.SignupRequest request, Message response) {
+		String name = request.name();
+		String pin = request.pin();
 
-		if (users.containsKey(pin)) {
+		if (getUser(pin) != null) {
 			response.setMessageType(Message.Type.ERROR);
 			response.addData("Error", "PIN is taken");
 			return;
 		}
 
-		CheckingAccount checkingAccount = new CheckingAccount(0);
+		CheckingAccount checkingAccount = new CheckingAccount(dataSource, 0);
 		checkingAccount.saveAccount("Checking");
-		SavingAccount savingAccount = new SavingAccount(0);
+		SavingAccount savingAccount = new SavingAccount(dataSource, 0);
+		if (snapshot != null) {
+			// Their rows were just written over, should an old account have had the same number
+			snapshot.takeAccount(checkingAccount.getAccountNumber());
+			snapshot.takeAccount(savingAccount.getAccountNumber());
+		}
 		savingAccount.saveAccount("Saving");
-		User user = new User(name, pin, checkingAccount, savingAccount);
+		User user = new User(dataSource, name, pin, checkingAccount, savingAccount);
 		user.saveUser();
-		users.put(pin, user);
-		checkingAccounts.put(checkingAccount.getAccountNumber(), checkingAccount);
-		savingAccounts.put(savingAccount.getAccountNumber(), savingAccount);
+		users.remove(pin);
+		users.putIfAbsent(pin, user);
+		partitions.add(checkingAccount);
+		partitions.add(savingAccount);
 
-		response.setMessageType(Message.Type.SUCCESS);
-		response.addData("checkingAccountId", user.getCheckingAccount().getAccountNumber());
-		response.addData("savingAccountId", user.getSavingAccount().getAccountNumber());
+		new BankMessages.AccountsResponse(user.getCheckingAccountNumber(), user.getSavingAccountNumber())
+				.writeTo(response);
 	}
 
-	private void handleDeposit(Message request, Message response) {
-		String accountId = (String) request.getData("accountId");
-		double amount = (double) request.getData("amount");
-
-		BankAccount account;
-		switch (accountId.charAt(0)) {
-			case 'C':
-				account = checkingAccounts.get(accountId);
-				break;
-			case 'S':
-				account = savingAccounts.get(accountId);
-				break;
-			default:
-				response.setMessageType(Message.Type.ERROR);
-				response.addData("Error", "Invalid account ID: " + accountId);
-				return;
+	private void handleDeposit(BankMessages.DepositRequest request, Message response) {
+		String accountId = request.accountId();
+		double amount = request.amount();
+
+		if (accountId.charAt(0) != 'C' && accountId.charAt(0) != 'S') {
+			response.setMessageType(Message.Type.ERROR);
+			response.addData("Error", "Invalid account ID: " + accountId);
+			return;
 		}
+		BankAccount account = getAccount(accountId);
 		if (account == null) {
 			response.setMessageType(Message.Type.ERROR);
 			response.addData("Error", "Account not found: " + accountId);
 			return;
 		}
 		try {
-			account.deposit(amount);
-			response.setMessageType(Message.Type.SUCCESS);
-			response.addData("newBalance", account.getBalance());
+			new BankMessages.NewBalanceResponse(BankWriter.await(partitions.deposit(account, amount)))
+					.writeTo(response);
 		} catch (Exception e) {
 			response.setMessageType(Message.Type.ERROR);
 			response.addData("Error", e.getMessage());
 		}
 	}
 
-	private void handleWithdraw(Message request, Message response) {
-		String accountId = (String) request.getData("accountId");
-		double amount = (double) request.getData("amount");
+	private void handleWithdraw(BankMessages.WithdrawRequest request, Message response) {
+		String accountId = request.accountId();
+		double amount = request.amount();
 
 		if (accountId.charAt(0) != 'C') {
 			response.setMessageType(Message.Type.DECLINED);
 			response.addData("Reason", "Withdrawals are only allowed from Checking accounts.");
 			return;
 		}
-		CheckingAccount account = checkingAccounts.get(accountId);
+		CheckingAccount account = getCheckingAccount(accountId);
 		if (account == null) {
 			response.setMessageType(Message.Type.ERROR);
 			response.addData("Error", "Account not found: " + accountId);
 			return;
 		}
 		try {
-			account.withdraw(amount);
-			response.setMessageType(Message.Type.SUCCESS);
-			response.addData("newBalance", account.getBalance());
+			new BankMessages.NewBalanceResponse(BankWriter.await(partitions.withdraw(account, amount)))
+					.writeTo(response);
 		} catch (Exception e) {
 			response.setMessageType(Message.Type.ERROR);
 			response.addData("Error", e.getMessage());
 		}
 	}
 
-	private void handleTransfer(Message request, Message response) {
-		String sourceAccountId = (String) request.getData("sourceAccountId");
-		String targetAccountId = (String) request.getData("targetAccountId");
-		double amount = (double) request.getData("amount");
+	private void handleTransfer(BankMessages.TransferRequest request, Message response) {
+		String sourceAccountId = request.sourceAccountId();
+		String targetAccountId = request.targetAccountId();
+		double amount = request.amount();
 
 		BankAccount sourceAccount = getAccount(sourceAccountId);
 		BankAccount targetAccount = getAccount(targetAccountId);
@@ -190,63 +326,111 @@ public class BankSystem {
 		}
 
 		try {
-			sourceAccount.transfer(amount, targetAccount);
-			response.setMessageType(Message.Type.SUCCESS);
-			response.addData("newSourceBalance", sourceAccount.getBalance());
-			response.addData("newTargetBalance", targetAccount.getBalance());
+			BankWriter.await(partitions.transfer(sourceAccount, targetAccount, amount)).writeTo(response);
 		} catch (Exception e) {
 			response.setMessageType(Message.Type.ERROR);
 			response.addData("Error", e.getMessage());
 		}
 	}
 
-	private void handlePayBill(Message request, Message response) {
-		String bankAccountId = (String) request.getData("bankAccountId");
-		String utilAccountId = (String) request.getData("utilAccountId");
-		double amount = (double) request.getData("amount");
+	// The amount is taken out of the account before UTIL is asked to pay, so the same funds cannot pay for anything
+	// else while it answers, and handed back if UTIL refuses the payment. If UTIL gives no answer it may still have
+	// paid, so the amount stays reserved while UTIL is asked again in the background.
+	private void handlePayBill(BankMessages.PayBillRequest request, Message response) throws Exception {
+		String bankAccountId = request.bankAccountId();
+		double amount = request.amount();
 
-		CheckingAccount account = checkingAccounts.get(bankAccountId);
+		CheckingAccount account = getCheckingAccount(bankAccountId);
 		if (account == null) {
 			response.setMessageType(Message.Type.ERROR);
 			response.addData("Error", "Account not found: " + bankAccountId);
 			return;
 		}
 
-		if (account.getBalance() < amount) {
-			response.setMessageType(Message.Type.DECLINED);
-			response.addData("Reason", "Insufficient funds to pay bill.");
+		AccountPartitions.Applied reservation;
+		List<Lock> held = accountLocks.lock(List.of(bankAccountId), false);
+		try {
+			reservation = BankWriter.await(partitions.reserve(account, amount));
+		} catch (Exception e) {
+			if (e.getMessage() != null && e.getMessage().startsWith("Insufficient funds")) {
+				response.setMessageType(Message.Type.DECLINED);
+				response.addData("Reason", "Insufficient funds to pay bill.");
+			} else {
+				response.setMessageType(Message.Type.ERROR);
+				response.addData("Error", e.getMessage());
+			}
 			return;
+		} finally {
+			AccountLocks.unlock(held);
 		}
 
-		Message billRequest = new Message();
-		billRequest.setSenderId(SYSTEM_ID);
-		billRequest.setReceiverId("UTIL");
-		billRequest.setMessageType(Message.Type.PAY_BILL);
-		billRequest.addData("accountId", utilAccountId);
-		billRequest.addData("amount", amount);
+		Message billRequest = new UtilityMessages.PayBillRequest(request.utilAccountId(), amount).toMessage(SYSTEM_ID,
+				"UTIL");
+		billRequest.setIdempotencyKey(SYSTEM_ID + "-bill-" + UUID.randomUUID());
 
+		String reason;
 		try {
-			Message billResponse = client.sendMessage(billRequest);
+			Message billResponse = client.sendAsync(billRequest, UTIL_TIMEOUT_MILLIS).get();
 
-			if (!billResponse.getMessageType().equals(Message.Type.SUCCESS)) {
+			if (billResponse.getMessageType().equals(Message.Type.SUCCESS)) {
+				new BankMessages.NewBalanceResponse(reservation.balance()).writeTo(response);
+				// response.addData("paymentDetails", billResponse.getData("paymentDetails"));
+				return;
+			}
+			if (!Boolean.TRUE.equals(billResponse.getData("inProgress"))) {
 				response.setMessageType(Message.Type.ERROR);
 				response.addData("Error", "Failed to pay bill: " + billResponse.getData("Error"));
-				return;
-			} else {
-				account.withdraw(amount);
-				response.setMessageType(Message.Type.SUCCESS);
-				response.addData("newBalance", account.getBalance());
-				// response.addData("paymentDetails", billResponse.getData("paymentDetails"));
+				releaseBillPayment(account, reservation);
 				return;
 			}
+			reason = String.valueOf(billResponse.getData("Error"));
 		} catch (Exception e) {
-			response.setMessageType(Message.Type.ERROR);
-			response.addData("Error", e.getMessage());
+			reason = e instanceof ExecutionException && e.getCause() instanceof TimeoutException
+					? "UTIL did not respond in time"
+					: (e instanceof ExecutionException ? e.getCause() : e).getMessage();
 		}
+
+		response.setMessageType(Message.Type.ERROR);
+		response.addData("Error", "Bill payment pending: " + reason
+				+ ". The amount stays reserved until UTIL confirms the payment.");
+		retryBillPayment(account, reservation, billRequest, 1);
 	}
 
-	private void handleCheckBalance(Message request, Message response) {
-		String accountId = (String) request.getData("accountId");
+	// Asks UTIL again about a bill payment it gave no answer for, until it pays or refuses. If UTIL has still not
+	// answered by the time it may have forgotten the key, the amount is left reserved for reconciliation.
+	private void retryBillPayment(CheckingAccount account, AccountPartitions.Applied reservation, Message billRequest,
+			int attempt) {
+		billRetries.schedule(() -> client.sendAsync(billRequest, UTIL_TIMEOUT_MILLIS)
+				.whenComplete((billResponse, failure) -> {
+					if (failure == null && billResponse.getMessageType().equals(Message.Type.SUCCESS)) {
+						return;
+					}
+					if (failure == null && !Boolean.TRUE.equals(billResponse.getData("inProgress"))) {
+						billRetries.execute(() -> releaseBillPayment(account, reservation));
+					} else if (attempt < BILL_RETRY_ATTEMPTS) {
+						retryBillPayment(account, reservation, billRequest, attempt + 1);
+					} else {
+						System.out.println("Error confirming bill payment " + billRequest.getIdempotencyKey()
+								+ " from " + account.getAccountNumber() + ": no answer from UTIL after " + attempt
+								+ " attempts, amount left reserved for reconciliation");
+					}
+				}), BILL_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	private void releaseBillPayment(CheckingAccount account, AccountPartitions.Applied reservation) {
+		List<Lock> held = accountLocks.lock(List.of(account.getAccountNumber()), false);
+		try {
+			BankWriter.await(partitions.release(account, reservation));
+		} catch (Exception e) {
+			System.out.println("Error releasing bill payment from " + account.getAccountNumber() + ": "
+					+ e.getMessage());
+		} finally {
+			AccountLocks.unlock(held);
+		}
+	}
+
+	private void handleCheckBalance(BankMessages.BalanceRequest request, Message response) throws Exception {
+		String accountId = request.accountId();
 
 		BankAccount account = getAccount(accountId);
 		if (account == null) {
@@ -254,78 +438,168 @@ public class BankSystem {
 			response.addData("Error", "Account not found: " + accountId);
 			return;
 		}
-		response.setMessageType(Message.Type.SUCCESS);
-		response.addData("balance", account.getBalance());
+		// Changes not yet durable are left out, so the balance shown survives a crash
+		new BankMessages.BalanceResponse(account.getJournaledBalance()).writeTo(response);
 	}
 
-	private Map<String, CheckingAccount> loadCheckingAccounts() {
-		Map<String, CheckingAccount> accounts = new HashMap<>();
-		try (Connection conn = DriverManager.getConnection(DB_URL);
-				Statement stmt = conn.createStatement()) {
-			String sql = "SELECT * FROM accounts WHERE accountType = 'Checking'";
-			ResultSet rs = stmt.executeQuery(sql);
+	// Compares the accounts in memory with bank.db without writing to either. Memory is read first; only an account
+	// whose every change the last checkpoint had already folded into the table, and which has not changed since it
+	// was read, is compared. The rest (read with a transfer not yet journaled, or with changes still waiting for a
+	// checkpoint) are skipped rather than reported.
+	private void handleConsistencyCheck(Message request, Message response) throws Exception {
+		List<BankAccount.Snapshot> snapshots = BankWriter.await(partitions.snapshotAll());
+		// Read before the table, which therefore holds at least this much of the journal
+		long checkpointed = checkpointer.getCheckpointedSequence();
+		Map<String, Double> stored = new HashMap<>();
+		try (BankDataSource.PooledConnection conn = dataSource.getConnection();
+				ResultSet rs = conn.prepare("SELECT accountNumber, balance FROM accounts").executeQuery()) {
 			while (rs.next()) {
-				String accountNumber = rs.getString("accountNumber");
-				double balance = rs.getDouble("balance");
-				accounts.put(accountNumber, new CheckingAccount(accountNumber, balance));
+				stored.put(rs.getString("accountNumber"), rs.getDouble("balance"));
+			}
+		}
+
+		int checked = 0;
+		int skipped = 0;
+		List<String> mismatches = new ArrayList<>();
+		for (BankAccount.Snapshot snapshot : snapshots) {
+			BankAccount account = partitions.cached(snapshot.getAccountNumber());
+			if (!snapshot.isJournaled() || snapshot.getJournaledThrough() > checkpointed || account == null
+					|| account.getVersion() != snapshot.getVersion()) {
+				skipped++;
+				continue;
+			}
+			checked++;
+			Double balance = stored.get(snapshot.getAccountNumber());
+			if (balance == null || Math.abs(balance - snapshot.getBalance()) > BALANCE_TOLERANCE) {
+				mismatches.add(snapshot.getAccountNumber() + ": cached " + snapshot.getBalance() + ", stored "
+						+ balance);
 			}
-		} catch (SQLException e) {
-			System.out.println("Error loading checking accounts: " + e.getMessage());
 		}
-		return accounts;
+		response.setMessageType(Message.Type.SUCCESS);
+		response.addData("checked", checked);
+		response.addData("skipped", skipped);
+		response.addData("mismatches", mismatches);
 	}
 
-	private Map<String, SavingAccount> loadSavingAccounts() {
-		Map<String, SavingAccount> accounts = new HashMap<>();
-		try (Connection conn = DriverManager.getConnection(DB_URL);
-				Statement stmt = conn.createStatement()) {
-			String sql = "SELECT * FROM accounts WHERE accountType = 'Saving'";
-			ResultSet rs = stmt.executeQuery(sql);
-			while (rs.next()) {
-				String accountNumber = rs.getString("accountNumber");
+	// Only called for an account that is not held, whose row is therefore up to date; the snapshot has the same
+	// row the first time an account is asked for
+	private BankAccount loadAccount(String accountNumber) throws SQLException {
+		BankSnapshot.AccountRow row = snapshot != null ? snapshot.takeAccount(accountNumber) : null;
+		if (row != null) {
+			if (row.saving()) {
+				return new SavingAccount(dataSource, accountNumber, row.balance(), row.dailyDeposits(),
+						row.dailyTransfers());
+			}
+			CheckingAccount account = new CheckingAccount(dataSource, accountNumber, row.balance());
+			account.setDailyTotals(row.dailyDeposits(), row.dailyWithdrawals(), row.dailyTransfers());
+			return account;
+		}
+		try (BankDataSource.PooledConnection conn = dataSource.getConnection()) {
+			PreparedStatement pstmt = conn.prepare("SELECT * FROM accounts WHERE accountNumber = ?");
+			pstmt.setString(1, accountNumber);
+			try (ResultSet rs = pstmt.executeQuery()) {
+				if (!rs.next()) {
+					return null;
+				}
 				double balance = rs.getDouble("balance");
-				accounts.put(accountNumber, new SavingAccount(accountNumber, balance));
+				if ("Saving".equals(rs.getString("accountType"))) {
+					return new SavingAccount(dataSource, accountNumber, balance, rs.getDouble("dailyDeposits"),
+							rs.getDouble("dailyTransfers"));
+				}
+				CheckingAccount account = new CheckingAccount(dataSource, accountNumber, balance);
+				account.setDailyTotals(rs.getDouble("dailyDeposits"), rs.getDouble("dailyWithdrawals"),
+						rs.getDouble("dailyTransfers"));
+				return account;
 			}
-		} catch (SQLException e) {
-			System.out.println("Error loading checking accounts: " + e.getMessage());
 		}
-		return accounts;
 	}
 
-	private Map<String, User> loadUsers() {
-		Map<String, User> users = new HashMap<>();
-		try (Connection conn = DriverManager.getConnection(DB_URL);
-				Statement stmt = conn.createStatement()) {
-			String sql = "SELECT * FROM users";
-			ResultSet rs = stmt.executeQuery(sql);
-			while (rs.next()) {
-				String pin = rs.getString("pin");
-				String name = rs.getString("name");
-				String checkingAccountNum = rs.getString("checkingAccount");
-				CheckingAccount checkingAccount = checkingAccounts.get(checkingAccountNum);
-				String savingAccountNum = rs.getString("savingAccount");
-				SavingAccount savingAccount = savingAccounts.get(savingAccountNum);
-				users.put(pin, new User(name, pin, checkingAccount, savingAccount));
+	private User loadUser(String pin) throws SQLException {
+		BankSnapshot.UserRow row = snapshot != null ? snapshot.user(pin) : null;
+		if (row != null) {
+			return new User(dataSource, row.name(), pin, row.checkingAccount(), row.savingAccount());
+		}
+		String name;
+		String checkingAccountNum;
+		String savingAccountNum;
+		try (BankDataSource.PooledConnection conn = dataSource.getConnection()) {
+			PreparedStatement pstmt = conn.prepare("SELECT * FROM users WHERE pin = ?");
+			pstmt.setString(1, pin);
+			try (ResultSet rs = pstmt.executeQuery()) {
+				if (!rs.next()) {
+					return null;
+				}
+				name = rs.getString("name");
+				checkingAccountNum = rs.getString("checkingAccount");
+				savingAccountNum = rs.getString("savingAccount");
 			}
-		} catch (SQLException e) {
-			System.out.println("Error loading users: " + e.getMessage());
 		}
-		return users;
+		return new User(dataSource, name, pin, checkingAccountNum, savingAccountNum);
+	}
+
+	private User getUser(String pin) {
+		try {
+			return users.get(pin, this::loadUser);
+		} catch (Exception e) {
+			System.out.println("Error loading user: " + e.getMessage());
+			return null;
+		}
 	}
 
 	private BankAccount getAccount(String accountId) {
-		if (checkingAccounts.containsKey(accountId)) {
-			return checkingAccounts.get(accountId);
-		} else if (savingAccounts.containsKey(accountId)) {
-			return savingAccounts.get(accountId);
-		} else {
+		try {
+			return partitions.get(accountId);
+		} catch (Exception e) {
+			System.out.println("Error loading account: " + e.getMessage());
 			return null;
 		}
 	}
 
+	private CheckingAccount getCheckingAccount(String accountId) {
+		BankAccount account = getAccount(accountId);
+		return account instanceof CheckingAccount ? (CheckingAccount) account : null;
+	}
+
+	private BankSnapshot openSnapshot() {
+		try {
+			BankSnapshot.track(dataSource);
+			BankSnapshot opened = BankSnapshot.open(SNAPSHOT_FILE, checkpointer.getCheckpointedSequence(),
+					BankSnapshot.changes(dataSource));
+			if (opened != null) {
+				System.out.println("Reading " + opened.accountCount() + " accounts and " + opened.userCount()
+						+ " users from " + SNAPSHOT_FILE);
+			}
+			return opened;
+		} catch (IOException | SQLException e) {
+			System.out.println("Error opening bank snapshot: " + e.getMessage());
+			return null;
+		}
+	}
+
+	private void startSnapshots() {
+		if (SNAPSHOT_MILLIS > 0) {
+			ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "bank-snapshot");
+				thread.setDaemon(true);
+				return thread;
+			});
+			scheduler.scheduleWithFixedDelay(this::writeSnapshot, SNAPSHOT_MILLIS, SNAPSHOT_MILLIS,
+					TimeUnit.MILLISECONDS);
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread(this::writeSnapshot, "bank-snapshot-shutdown"));
+	}
+
+	private void writeSnapshot() {
+		try {
+			checkpointer.checkpointAndSnapshot(SNAPSHOT_FILE);
+		} catch (IOException | SQLException e) {
+			// The next start reads bank.db instead
+			System.out.println("Error writing bank snapshot: " + e.getMessage());
+		}
+	}
+
 	private void intitializeDatabase() {
-		try (Connection conn = DriverManager.getConnection(DB_URL);
-				Statement stmt = conn.createStatement()) {
+		try {
 			String sql = "CREATE TABLE IF NOT EXISTS accounts (" +
 					"accountNumber TEXT PRIMARY KEY, " +
 					"balance REAL, " +
@@ -333,15 +607,15 @@ public class BankSystem {
 					"dailyTransfers REAL, " +
 					"dailyDeposits REAL, " +
 					"accountType TEXT)";
-			stmt.execute(sql);
+			dataSource.write(sql);
 			String sql2 = "CREATE TABLE IF NOT EXISTS users (" +
 					"pin TEXT PRIMARY KEY, " +
 					"name TEXT, " +
 					"checkingAccount TEXT, " +
 					"savingAccount TEXT)";
-			stmt.execute(sql2);
+			dataSource.write(sql2);
 		} catch (SQLException e) {
 			System.out.println("Database initialization error: " + e.getMessage());
 		}
 	}
-}
+}
\ No newline at end of file
@@ -0,0 +1,233 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// The only thread that writes to the bank database. Callers queue writes (one statement, or a few that must
+// commit together); the writer takes everything waiting, applies it in one transaction and completes each
+// write's future once that transaction has committed, so a burst of requests shares one commit (and one fsync)
+// instead of fighting over the SQLite file lock.
+public class BankWriter {
+	private static final int MAX_GROUP_SIZE = 256;
+
+	private final String url;
+	private final BlockingQueue<Write<?>> queue = new LinkedBlockingQueue<>();
+	private final Map<String, PreparedStatement> statements = new HashMap<>();
+	private final LatencyHistogram commitTime;
+	private final AtomicLong writes = new AtomicLong();
+	private final AtomicLong commits = new AtomicLong();
+	private final Statements writerStatements = new Statements() {
+		public int update(String sql, Object... parameters) throws SQLException {
+			return prepare(sql, parameters).executeUpdate();
+		}
+
+		public ResultSet query(String sql, Object... parameters) throws SQLException {
+			return prepare(sql, parameters).executeQuery();
+		}
+	};
+	private Connection connection;
+
+	// Runs statements on the writer connection, inside the current transaction. Queries see every write committed
+	// or queued ahead of the work and nothing can change the rows between a query and the work's updates.
+	public interface Statements {
+		int update(String sql, Object... parameters) throws SQLException;
+
+		// The caller closes the result
+		ResultSet query(String sql, Object... parameters) throws SQLException;
+	}
+
+	// Statements that commit together; throwing rolls all of them back and fails the work with that exception
+	public interface Work<T> {
+		T apply(Statements statements) throws Exception;
+	}
+
+	private static class Write<T> {
+		private final Work<T> work;
+		private final CompletableFuture<T> result = new CompletableFuture<>();
+		private T value;
+		private Exception failure;
+
+		private Write(Work<T> work) {
+			this.work = work;
+		}
+
+		private void complete() {
+			if (failure == null) {
+				result.complete(value);
+			} else {
+				result.completeExceptionally(failure);
+			}
+		}
+	}
+
+	public BankWriter(String url) {
+		this.url = url;
+		this.commitTime = RpcMetrics.histogram("bank.db.commit");
+		RpcMetrics.gauge("bank.db.write_queue", () -> (double) queue.size());
+		RpcMetrics.gauge("bank.db.writes", () -> (double) writes.get());
+		RpcMetrics.gauge("bank.db.commits", () -> (double) commits.get());
+		Thread thread = new Thread(this::run, "bank-writer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	// Completes with the number of rows changed once the write is committed
+	public CompletableFuture<Integer> submit(String sql, Object... parameters) {
+		return submit(statements -> statements.update(sql, parameters));
+	}
+
+	// Completes with the work's result once it is committed
+	public <T> CompletableFuture<T> submit(Work<T> work) {
+		Write<T> write = new Write<>(work);
+		queue.add(write);
+		return write.result;
+	}
+
+	// Blocks until the write is committed
+	public int execute(String sql, Object... parameters) throws SQLException {
+		try {
+			return await(submit(sql, parameters));
+		} catch (SQLException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new SQLException(e.getMessage(), e);
+		}
+	}
+
+	// Blocks until the work is committed, rethrowing whatever the work threw
+	public <T> T execute(Work<T> work) throws Exception {
+		return await(submit(work));
+	}
+
+	// Waits for a queued write, rethrowing the exception it failed with
+	static <T> T await(CompletableFuture<T> result) throws Exception {
+		try {
+			return result.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted waiting for a database write");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			throw cause instanceof Exception ? (Exception) cause : new SQLException(cause.getMessage(), cause);
+		}
+	}
+
+	private void run() {
+		try {
+			// Switch to WAL up front rather than on the first write
+			connection();
+		} catch (SQLException e) {
+			System.out.println("Error opening bank database for writing: " + e.getMessage());
+		}
+		List<Write<?>> group = new ArrayList<>();
+		while (true) {
+			try {
+				group.add(queue.take());
+			} catch (InterruptedException e) {
+				return;
+			}
+			queue.drainTo(group, MAX_GROUP_SIZE - 1);
+			commit(group);
+			group.clear();
+		}
+	}
+
+	private void commit(List<Write<?>> group) {
+		long start = System.nanoTime();
+		try {
+			Connection conn = connection();
+			conn.setAutoCommit(false);
+			try (Statement savepoints = conn.createStatement()) {
+				for (Write<?> write : group) {
+					// A failing write is rolled back on its own and the rest of the group still commits
+					savepoints.execute("SAVEPOINT write");
+					try {
+						apply(write);
+						savepoints.execute("RELEASE write");
+					} catch (Exception e) {
+						savepoints.execute("ROLLBACK TO write");
+						savepoints.execute("RELEASE write");
+						write.failure = e;
+					}
+				}
+			}
+			conn.commit();
+			conn.setAutoCommit(true);
+		} catch (SQLException e) {
+			System.out.println("Error committing bank writes: " + e.getMessage());
+			rollback();
+			for (Write<?> write : group) {
+				write.result.completeExceptionally(e);
+			}
+			return;
+		}
+		commitTime.record(System.nanoTime() - start);
+		commits.incrementAndGet();
+		writes.addAndGet(group.size());
+		for (Write<?> write : group) {
+			write.complete();
+		}
+	}
+
+	private <T> void apply(Write<T> write) throws Exception {
+		write.value = write.work.apply(writerStatements);
+	}
+
+	private PreparedStatement prepare(String sql, Object... parameters) throws SQLException {
+		PreparedStatement statement = statements.get(sql);
+		if (statement == null) {
+			statement = connection.prepareStatement(sql);
+			statements.put(sql, statement);
+		}
+		for (int i = 0; i < parameters.length; i++) {
+			statement.setObject(i + 1, parameters[i]);
+		}
+		return statement;
+	}
+
+	private Connection connection() throws SQLException {
+		if (connection == null) {
+			Connection conn = DriverManager.getConnection(url);
+			try (Statement pragmas = conn.createStatement()) {
+				// Readers keep reading the last commit while the writer appends to the log
+				pragmas.execute("PRAGMA journal_mode = WAL");
+				// Sync every commit so a completed write survives a crash; group commit keeps the cost per write low
+				pragmas.execute("PRAGMA synchronous = FULL");
+				pragmas.execute("PRAGMA busy_timeout = " + BankDataSource.BUSY_TIMEOUT_MILLIS);
+				pragmas.execute("PRAGMA temp_store = MEMORY");
+			}
+			connection = conn;
+		}
+		return connection;
+	}
+
+	private void rollback() {
+		if (connection == null) {
+			return;
+		}
+		try {
+			connection.rollback();
+			connection.setAutoCommit(true);
+		} catch (SQLException e) {
+			// Start over with a fresh connection for the next group
+			try {
+				connection.close();
+			} catch (SQLException closeError) {
+				System.out.println("Error closing database connection: " + closeError.getMessage());
+			}
+			connection = null;
+			statements.clear();
+		}
+	}
+}
@@ -0,0 +1,174 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+// A map holding at most capacity entries. Lookups take no lock and count a hit on the entry; once the map is
+// over capacity, inserts sweep a clock hand over the entries, taking one hit off each entry it passes and evicting
+// the first one with none left. An entry survives a sweep for each recent hit, up to MAX_HITS, so entries used
+// often and lately stay. Entries the evictable test refuses are passed over, so the map can stay over capacity
+// until they become evictable. An insert moves the hand at most SWEEP_STEPS places, so one that finds most
+// entries refused does not walk the whole ring; trim sweeps as far as it takes.
+public class ClockCache<K, V> {
+	private static final int MAX_HITS = 3;
+	static final int SWEEP_STEPS = 16 * (MAX_HITS + 1);
+
+	private final int capacity;
+	private final Predicate<V> evictable;
+	private final Map<K, Slot<K, V>> slots = new ConcurrentHashMap<>();
+	private final Map<K, CompletableFuture<V>> loading = new ConcurrentHashMap<>();
+	// Guarded by this
+	private final List<Slot<K, V>> ring = new ArrayList<>();
+	private int hand;
+	private final AtomicLong evictions = new AtomicLong();
+
+	private static class Slot<K, V> {
+		private final K key;
+		private final V value;
+		private volatile int hits;
+		private int index;
+
+		private Slot(K key, V value) {
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	// Reads the value a missing key maps to, or returns null if there is none
+	public interface Loader<K, V> {
+		V load(K key) throws Exception;
+	}
+
+	public ClockCache(int capacity) {
+		this(capacity, value -> true);
+	}
+
+	public ClockCache(int capacity, Predicate<V> evictable) {
+		this.capacity = Math.max(1, capacity);
+		this.evictable = evictable;
+	}
+
+	public V get(K key) {
+		Slot<K, V> slot = slots.get(key);
+		if (slot == null) {
+			return null;
+		}
+		// Racing hits may lose a count, which only makes the entry a little easier to evict
+		if (slot.hits < MAX_HITS) {
+			slot.hits++;
+		}
+		return slot.value;
+	}
+
+	// Loads a missing key at most once at a time; concurrent callers for the same key wait for that load
+	public V get(K key, Loader<K, V> loader) throws Exception {
+		V value = get(key);
+		if (value != null) {
+			return value;
+		}
+		CompletableFuture<V> load = new CompletableFuture<>();
+		CompletableFuture<V> running = loading.putIfAbsent(key, load);
+		if (running != null) {
+			try {
+				return running.get();
+			} catch (ExecutionException e) {
+				// The load this call waited for failed, with the loader's own exception
+				throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+			}
+		}
+		try {
+			// A load that finished since the first look has already put it in
+			value = get(key);
+			if (value == null) {
+				value = loader.load(key);
+				if (value != null) {
+					value = putIfAbsent(key, value);
+				}
+			}
+			load.complete(value);
+			return value;
+		} catch (Exception e) {
+			load.completeExceptionally(e);
+			throw e;
+		} finally {
+			loading.remove(key, load);
+		}
+	}
+
+	// Returns the value already mapped to the key, if any, and the given value otherwise
+	public synchronized V putIfAbsent(K key, V value) {
+		Slot<K, V> existing = slots.get(key);
+		if (existing != null) {
+			return existing.value;
+		}
+		Slot<K, V> slot = new Slot<>(key, value);
+		slot.hits = 1;
+		slot.index = ring.size();
+		ring.add(slot);
+		slots.put(key, slot);
+		evict(slot, SWEEP_STEPS);
+		return value;
+	}
+
+	// Evicts down to capacity as far as the evictable test now allows
+	public synchronized void trim() {
+		// Enough steps to wear every entry down to no hits and then look at each once more
+		evict(null, (long) ring.size() * (MAX_HITS + 1));
+	}
+
+	public synchronized void remove(K key) {
+		Slot<K, V> slot = slots.remove(key);
+		if (slot != null) {
+			removeFromRing(slot);
+		}
+	}
+
+	public List<V> values() {
+		List<V> values = new ArrayList<>();
+		for (Slot<K, V> slot : slots.values()) {
+			values.add(slot.value);
+		}
+		return values;
+	}
+
+	public int size() {
+		return slots.size();
+	}
+
+	public long evictions() {
+		return evictions.get();
+	}
+
+	// Never the entry just inserted, which the caller is about to use
+	private void evict(Slot<K, V> inserted, long steps) {
+		while (ring.size() > capacity && steps-- > 0) {
+			if (hand >= ring.size()) {
+				hand = 0;
+			}
+			Slot<K, V> slot = ring.get(hand);
+			if (slot.hits > 0) {
+				slot.hits--;
+				hand++;
+			} else if (slot == inserted || !evictable.test(slot.value)) {
+				hand++;
+			} else {
+				slots.remove(slot.key);
+				removeFromRing(slot);
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	// The last entry takes the removed one's place, so the hand looks at it next
+	private void removeFromRing(Slot<K, V> slot) {
+		Slot<K, V> last = ring.remove(ring.size() - 1);
+		if (last != slot) {
+			last.index = slot.index;
+			ring.set(slot.index, last);
+		}
+	}
+}
@@ -0,0 +1,28 @@
+import java.util.List;
+
+// Asks a running BANK to compare its in-memory balances with bank.db and prints the result.
+// Usage: java ConsistencyCheck
+public class ConsistencyCheck {
+	public static void main(String[] args) {
+		Client client = new Client(1, 60_000, 0, true);
+		Message request = new Message();
+		request.setSenderId("CHECK");
+		request.setReceiverId("BANK");
+		request.setMessageType(Message.Type.CHECK_CONSISTENCY);
+		Message response = client.sendMessage(request);
+		client.close();
+		if (response == null) {
+			return;
+		}
+		if (response.getMessageType() != Message.Type.SUCCESS) {
+			System.out.println("Error: " + response.getData("Error"));
+			return;
+		}
+		List<?> mismatches = (List<?>) response.getData("mismatches");
+		System.out.println("checked = " + response.getData("checked") + ", skipped = " + response.getData("skipped")
+				+ ", mismatched = " + mismatches.size());
+		for (Object mismatch : mismatches) {
+			System.out.println(mismatch);
+		}
+	}
+}
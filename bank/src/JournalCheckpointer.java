@@ -0,0 +1,159 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Folds sealed journal segments into bank.db: the changes are summed per account and applied, transfers are
+// added to the ledger and the last folded sequence is recorded, all in one transaction, after which the
+// segments are handed back to the journal for reuse (or deleted, when replayed on startup). Records at or
+// below the recorded sequence are skipped, so a crash between the commit and the delete cannot apply anything
+// twice. On startup the same fold replays whatever the journal holds.
+public class JournalCheckpointer {
+	private final BankDataSource dataSource;
+	private final Path directory;
+	private BankJournal journal;
+	// The last journal sequence bank.db holds
+	private volatile long checkpointedSequence;
+
+	public JournalCheckpointer(BankDataSource dataSource, Path directory) {
+		this.dataSource = dataSource;
+		this.directory = directory;
+		try {
+			dataSource.write("CREATE TABLE IF NOT EXISTS journal_checkpoint (" +
+					"id INTEGER PRIMARY KEY CHECK (id = 0), " +
+					"sequence INTEGER)");
+			dataSource.write(TransferEngine.LEDGER_TABLE_SQL);
+		} catch (SQLException e) {
+			System.out.println("Error creating journal checkpoint table: " + e.getMessage());
+		}
+	}
+
+	// Applies every segment left by the last run and returns the sequence the new journal should continue from
+	public long recover() throws IOException, SQLException {
+		List<Path> segments = BankJournal.segments(directory);
+		long last = fold(segments);
+		for (Path segment : segments) {
+			Files.deleteIfExists(segment);
+		}
+		return last + 1;
+	}
+
+	public long getCheckpointedSequence() {
+		return checkpointedSequence;
+	}
+
+	// afterCheckpoint runs after each scheduled checkpoint that succeeds
+	public void start(BankJournal journal, long intervalMillis, Runnable afterCheckpoint) {
+		this.journal = journal;
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "bank-journal-checkpoint");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleWithFixedDelay(() -> {
+			try {
+				checkpoint();
+				afterCheckpoint.run();
+			} catch (IOException | SQLException e) {
+				// The segments stay on disk and are folded by the next checkpoint or on restart
+				System.out.println("Error checkpointing bank journal: " + e.getMessage());
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	// Brings bank.db up to everything journaled so far
+	public synchronized void checkpoint() throws IOException, SQLException {
+		List<Path> segments = journal.roll();
+		try {
+			fold(segments);
+		} catch (IOException | SQLException e) {
+			journal.putBack(segments);
+			throw e;
+		}
+		journal.recycle(segments);
+	}
+
+	// Checkpoints and writes a snapshot of bank.db before any later checkpoint can change it
+	public synchronized void checkpointAndSnapshot(Path file) throws IOException, SQLException {
+		checkpoint();
+		BankSnapshot.write(dataSource, file, checkpointedSequence);
+	}
+
+	// Returns the highest sequence seen, folded now or before
+	private long fold(List<Path> segments) throws IOException, SQLException {
+		long folded = foldedSequence();
+		long last = folded;
+		Map<String, BankJournal.Change> totals = new LinkedHashMap<>();
+		List<BankJournal.Record> transfers = new ArrayList<>();
+		for (Path segment : segments) {
+			for (BankJournal.Record record : BankJournal.read(segment)) {
+				last = Math.max(last, record.sequence());
+				if (record.sequence() <= folded) {
+					continue;
+				}
+				if (record.kind() == BankJournal.REVERSAL) {
+					transfers.add(record);
+					continue;
+				}
+				for (BankJournal.Change change : record.changes()) {
+					totals.merge(change.accountNumber(), change, JournalCheckpointer::add);
+				}
+				if (record.kind() == BankJournal.TRANSFER) {
+					transfers.add(record);
+				}
+			}
+		}
+
+		if (last > folded) {
+			long marker = last;
+			try {
+				dataSource.transaction(statements -> {
+					for (BankJournal.Change total : totals.values()) {
+						statements.update("UPDATE accounts SET balance = IFNULL(balance, 0) + ?, "
+								+ "dailyDeposits = IFNULL(dailyDeposits, 0) + ?, "
+								+ "dailyWithdrawals = IFNULL(dailyWithdrawals, 0) + ?, "
+								+ "dailyTransfers = IFNULL(dailyTransfers, 0) + ? WHERE accountNumber = ?",
+								total.balance(), total.deposits(), total.withdrawals(), total.transfers(),
+								total.accountNumber());
+					}
+					for (BankJournal.Record transfer : transfers) {
+						// The debit is recorded first
+						statements.update(
+								"INSERT INTO ledger (sourceAccount, targetAccount, amount, createdAt) VALUES (?, ?, ?, ?)",
+								transfer.changes().get(0).accountNumber(), transfer.changes().get(1).accountNumber(),
+								transfer.changes().get(1).balance(), transfer.timestamp());
+					}
+					statements.update("INSERT OR REPLACE INTO journal_checkpoint (id, sequence) VALUES (0, ?)", marker);
+					return null;
+				});
+			} catch (Exception e) {
+				throw new SQLException(e.getMessage(), e);
+			}
+		}
+		checkpointedSequence = last;
+		return last;
+	}
+
+	private long foldedSequence() throws SQLException {
+		try (BankDataSource.PooledConnection conn = dataSource.getConnection()) {
+			PreparedStatement pstmt = conn.prepare("SELECT sequence FROM journal_checkpoint WHERE id = 0");
+			try (ResultSet rs = pstmt.executeQuery()) {
+				return rs.next() ? rs.getLong("sequence") : 0;
+			}
+		}
+	}
+
+	private static BankJournal.Change add(BankJournal.Change a, BankJournal.Change b) {
+		return new BankJournal.Change(a.accountNumber(), a.balance() + b.balance(), a.deposits() + b.deposits(),
+				a.withdrawals() + b.withdrawals(), a.transfers() + b.transfers());
+	}
+}
@@ -0,0 +1,103 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Drives AccountPartitions directly against a scratch database, once for each power of two up to the given
+// partition count, so the runs can be compared. Each count runs two workloads: an even mix of deposits and balance
+// reads, and transfers between two random accounts, most of which cross partitions once there is more than one and
+// so take a step on each: java PartitionBenchmark [maxPartitions] [callers] [seconds] [accounts]
+public class PartitionBenchmark {
+	private static final double DEPOSIT_AMOUNT = 0.01;
+	private static final double TRANSFER_AMOUNT = 0.01;
+	private static final double INITIAL_BALANCE = 1_000_000;
+
+	private interface Operation {
+		void run(ThreadLocalRandom random, List<BankAccount> accounts) throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int maxPartitions = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+		int callers = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+		int accountCount = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+		Path directory = Files.createTempDirectory("partition-benchmark");
+
+		for (int count = 1; count <= maxPartitions; count *= 2) {
+			String url = "jdbc:sqlite:" + directory.resolve("bank-" + count + ".db");
+			BankDataSource dataSource = BankDataSource.forUrl(url, 8);
+			dataSource.write("CREATE TABLE IF NOT EXISTS accounts (accountNumber TEXT PRIMARY KEY, balance REAL, "
+					+ "dailyWithdrawals REAL, dailyTransfers REAL, dailyDeposits REAL, accountType TEXT)");
+			BankJournal journal = new BankJournal(directory.resolve("journal-" + count), 1, 0);
+			AccountPartitions partitions = new AccountPartitions(count, journal);
+			List<BankAccount> accounts = new ArrayList<>();
+			for (int i = 0; i < accountCount; i++) {
+				CheckingAccount account = new CheckingAccount(dataSource, "Checking" + i, INITIAL_BALANCE);
+				account.saveAccount("Checking");
+				partitions.add(account);
+				accounts.add(account);
+			}
+			run("deposits", partitions, accounts, callers, seconds, (random, held) -> {
+				BankAccount account = held.get(random.nextInt(held.size()));
+				if (random.nextBoolean()) {
+					BankWriter.await(partitions.deposit(account, DEPOSIT_AMOUNT));
+				} else {
+					account.getCachedBalance();
+				}
+			});
+			AtomicLong crossed = new AtomicLong();
+			AtomicLong transfers = new AtomicLong();
+			run("transfers", partitions, accounts, callers, seconds, (random, held) -> {
+				BankAccount source = held.get(random.nextInt(held.size()));
+				BankAccount target = held.get(random.nextInt(held.size()));
+				BankWriter.await(partitions.transfer(source, target, TRANSFER_AMOUNT));
+				transfers.incrementAndGet();
+				if (partitions.partitionIndex(source.getAccountNumber()) != partitions
+						.partitionIndex(target.getAccountNumber())) {
+					crossed.incrementAndGet();
+				}
+			});
+			System.out.printf("  %.0f%% of transfers crossed partitions%n",
+					transfers.get() == 0 ? 0 : 100.0 * crossed.get() / transfers.get());
+			dataSource.close();
+		}
+		System.exit(0);
+	}
+
+	private static void run(String workload, AccountPartitions partitions, List<BankAccount> accounts, int callers,
+			int seconds, Operation operation) throws InterruptedException {
+		AtomicLong completed = new AtomicLong();
+		AtomicLong failed = new AtomicLong();
+		AtomicLong totalNanos = new AtomicLong();
+		long end = System.nanoTime() + seconds * 1_000_000_000L;
+
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < callers; i++) {
+			Thread caller = new Thread(() -> {
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				while (System.nanoTime() < end) {
+					long start = System.nanoTime();
+					try {
+						operation.run(random, accounts);
+						completed.incrementAndGet();
+						totalNanos.addAndGet(System.nanoTime() - start);
+					} catch (Exception e) {
+						failed.incrementAndGet();
+					}
+				}
+			});
+			threads.add(caller);
+			caller.start();
+		}
+		for (Thread caller : threads) {
+			caller.join();
+		}
+
+		long done = completed.get();
+		System.out.printf("%d partitions, %s: %d operations in %d s (%.0f ops/s), mean latency %.2f ms, %d failed%n",
+				partitions.size(), workload, done, seconds, done / (double) seconds,
+				done == 0 ? 0 : totalNanos.get() / 1e6 / done, failed.get());
+	}
+}
@@ -0,0 +1,53 @@
+import java.sql.SQLException;
+
+// Moves money between two accounts that BankSystem's partitions do not hold. One BankWriter work reads both rows,
+// applies the accounts' own limit rules to them and writes both back with a ledger row, so the legs commit
+// together or not at all and the single writer orders the transfer against every other change to either account.
+public class TransferEngine {
+	static final String LEDGER_TABLE_SQL = "CREATE TABLE IF NOT EXISTS ledger (" +
+			"id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+			"sourceAccount TEXT, " +
+			"targetAccount TEXT, " +
+			"amount REAL, " +
+			"createdAt INTEGER)";
+
+	private final BankDataSource dataSource;
+
+	public TransferEngine(BankDataSource dataSource) {
+		this.dataSource = dataSource;
+		try {
+			dataSource.write(LEDGER_TABLE_SQL);
+		} catch (SQLException e) {
+			System.out.println("Error creating ledger: " + e.getMessage());
+		}
+	}
+
+	public void transfer(BankAccount source, BankAccount target, double amount) throws Exception {
+		if (amount <= 0) {
+			throw new Exception("Transfer amount must be positive.");
+		}
+		// A transfer to the same account changes one row, so both legs apply to the one object
+		BankAccount credited = source.getAccountNumber().equals(target.getAccountNumber()) ? source : target;
+		BankWriter.await(dataSource.submitTransaction(statements -> {
+			source.load(statements);
+			if (credited != source) {
+				credited.load(statements);
+			}
+			BankJournal.Change debit = source.applyTransferDebit(amount);
+			try {
+				credited.applyTransferCredit(amount);
+			} catch (Exception e) {
+				source.apply(debit.inverse());
+				throw e;
+			}
+			source.save(statements);
+			if (credited != source) {
+				credited.save(statements);
+			}
+			statements.update(
+					"INSERT INTO ledger (sourceAccount, targetAccount, amount, createdAt) VALUES (?, ?, ?, ?)",
+					source.getAccountNumber(), target.getAccountNumber(), amount, System.currentTimeMillis());
+			return null;
+		}));
+	}
+}
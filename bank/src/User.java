@@ -1,47 +1,50 @@
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.PreparedStatement;
 import java.sql.SQLException;
 
+// Holds the numbers of the user's accounts rather than the accounts, which BANK may evict and read back in while
+// the user is still held; the accounts are looked up by number when they are needed
 public class User {
-	protected static final String DB_URL = "jdbc:sqlite:bank.db";
-
 	private String name;
 	private String pin;
 
-	private CheckingAccount checkingAccount;
-	private SavingAccount savingAccount;
+	private String checkingAccountNumber;
+	private String savingAccountNumber;
+	private final BankDataSource dataSource;
 
 	public User(String name, String pin, CheckingAccount checkingAccount,
 			SavingAccount savingAccount) {
+		this(BankDataSource.getDefault(), name, pin, checkingAccount, savingAccount);
+	}
+
+	public User(BankDataSource dataSource, String name, String pin, CheckingAccount checkingAccount,
+			SavingAccount savingAccount) {
+		this(dataSource, name, pin, checkingAccount.getAccountNumber(), savingAccount.getAccountNumber());
+	}
+
+	public User(BankDataSource dataSource, String name, String pin, String checkingAccountNumber,
+			String savingAccountNumber) {
+		this.dataSource = dataSource;
 		this.name = name;
 		this.pin = pin;
-		this.checkingAccount = checkingAccount;
-		this.savingAccount = savingAccount;
+		this.checkingAccountNumber = checkingAccountNumber;
+		this.savingAccountNumber = savingAccountNumber;
 		// saveAccount();
 	}
 
 	public void saveUser() {
-		try (Connection conn = DriverManager.getConnection(DB_URL);
-				PreparedStatement pstmt = conn.prepareStatement(
-						"INSERT OR REPLACE INTO users (name, pin, checkingAccount, savingAccount) "
-								+ "VALUES (?, ?, ?, ?)")) {
-			pstmt.setString(1, name);
-			pstmt.setString(2, pin);
-			pstmt.setString(3, checkingAccount.getAccountNumber());
-			pstmt.setString(4, savingAccount.getAccountNumber());
-			pstmt.executeUpdate();
+		try {
+			dataSource.write("INSERT OR REPLACE INTO users (name, pin, checkingAccount, savingAccount) VALUES (?, ?, ?, ?)",
+					name, pin, checkingAccountNumber, savingAccountNumber);
 		} catch (SQLException e) {
 			System.out.println("Error saving user: " + e.getMessage());
 		}
 	}
 
-	public CheckingAccount getCheckingAccount() {
-		return checkingAccount;
+	public String getCheckingAccountNumber() {
+		return checkingAccountNumber;
 	}
 
-	public SavingAccount getSavingAccount() {
-		return savingAccount;
+	public String getSavingAccountNumber() {
+		return savingAccountNumber;
 	}
 
 	public String getName() {
@@ -0,0 +1,124 @@
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.nio.ByteBuffer;
+
+public class AccountTableTest {
+
+	@Test
+	public void testInsertAndLookup() throws Exception {
+		AccountTable table = new AccountTable(4);
+		long checking = table.add("Checking1", AccountTable.CHECKING, 100.0, 0, 0, 0);
+		long saving = table.add("Saving2", AccountTable.SAVING, 200.0, 0, 0, 0);
+		assertEquals(2, table.size());
+		assertEquals(checking, table.id("Checking1"));
+		assertEquals(saving, table.id("Saving2"));
+		assertEquals("Checking1", table.accountNumber(checking));
+		assertEquals("Saving2", table.accountNumber(saving));
+		assertEquals(AccountTable.CHECKING, table.type(checking));
+		assertEquals(AccountTable.SAVING, table.type(saving));
+		assertEquals(100.0, table.balance(checking), 0.01);
+		assertEquals(200.0, table.balance(saving), 0.01);
+		assertEquals("Account numbers never added have no ID", -1, table.id("ACC_3"));
+		try {
+			// Generated account numbers have an ID whether or not the account was added
+			table.balance(table.id("Checking3"));
+			fail("Should throw exception for an account not in the table");
+		} catch (Exception e) {
+			assertTrue(e.getMessage().startsWith("Account not found"));
+		}
+	}
+
+	@Test
+	public void testArbitraryAccountNumbers() throws Exception {
+		AccountTable table = new AccountTable(4);
+		String[] numbers = { "CHK_TEST_2", "TEST_CHK5", "SAV_TEST_2", "Checking007", "Checking", "Saving-1" };
+		long[] ids = new long[numbers.length];
+		for (int i = 0; i < numbers.length; i++) {
+			ids[i] = table.add(numbers[i], AccountTable.CHECKING, i, 0, 0, 0);
+		}
+		for (int i = 0; i < numbers.length; i++) {
+			assertEquals(ids[i], table.id(numbers[i]));
+			assertEquals(numbers[i], table.accountNumber(ids[i]));
+			assertEquals(i, table.balance(ids[i]), 0.01);
+		}
+		assertNotEquals("Checking007 must not share Checking7's ID", table.id("Checking007"), table.id("Checking7"));
+		try {
+			table.add("CHK_TEST_2", AccountTable.CHECKING, 0, 0, 0, 0);
+			fail("Should refuse an account already in the table");
+		} catch (IllegalArgumentException e) {
+			assertEquals("Account already in the table: CHK_TEST_2", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testGrowKeepsRecords() throws Exception {
+		AccountTable table = new AccountTable(1);
+		for (int i = 1; i <= 5000; i++) {
+			table.add((i % 3 == 0 ? "ACC_" : i % 2 == 0 ? "Saving" : "Checking") + i,
+					i % 2 == 0 ? AccountTable.SAVING : AccountTable.CHECKING, i, 0, 0, 0);
+		}
+		assertEquals(5000, table.size());
+		assertTrue(table.capacityBytes() >= 5000L * AccountTable.RECORD_SIZE);
+		for (int i = 1; i <= 5000; i++) {
+			long id = table.id((i % 3 == 0 ? "ACC_" : i % 2 == 0 ? "Saving" : "Checking") + i);
+			assertEquals("Balance of account " + i, i, table.balance(id), 0.01);
+		}
+	}
+
+	@Test
+	public void testTooLargeTableIsRefused() {
+		try {
+			new AccountTable(Integer.MAX_VALUE);
+			fail("Should refuse a table that does not fit in one buffer");
+		} catch (IllegalStateException e) {
+			assertTrue(e.getMessage().startsWith("Account table cannot grow past"));
+		}
+	}
+
+	@Test
+	public void testLimitsMatchAccounts() throws Exception {
+		AccountTable table = new AccountTable(2);
+		long checking = table.add("Checking1", AccountTable.CHECKING, 100.0, 0, 0, 0);
+		long saving = table.add("Saving2", AccountTable.SAVING, 100.0, 0, 0, 0);
+		assertError("Daily deposit limit exceeded. Cannot deposit 5001.0", () -> table.deposit(checking, 5001));
+		assertError("Insufficient funds. Cannot withdraw 101.0", () -> table.withdraw(checking, 101));
+		assertError("Withdrawal amount must be positive.", () -> table.withdraw(checking, 0));
+		assertError("Withdrawals are only allowed from Checking accounts.", () -> table.withdraw(saving, 1));
+		table.deposit(checking, 1000);
+		assertError("Daily withdrawal limit exceeded. Cannot withdraw 501.0", () -> table.withdraw(checking, 501));
+		assertEquals(600.0, table.withdraw(checking, 500), 0.01);
+		assertEquals(40.0, table.transfer(saving, checking, 60), 0.01);
+		assertEquals(660.0, table.balance(checking), 0.01);
+		table.deposit(saving, 100);
+		assertError("Daily transfer limit exceeded. Cannot transfer 41.0", () -> table.transfer(saving, checking, 41));
+		assertEquals("A refused transfer leaves the target alone", 660.0, table.balance(checking), 0.01);
+	}
+
+	@Test
+	public void testRestoreCountsAsAChange() throws Exception {
+		AccountTable table = new AccountTable(2);
+		long saving = table.add("Saving2", AccountTable.SAVING, 100.0, 0, 0, 0);
+		long checking = table.add("Checking1", AccountTable.CHECKING, 0, 0, 0, 0);
+		ByteBuffer snapshot = table.snapshot(saving);
+		table.transfer(saving, checking, 100);
+		long version = table.version(saving);
+		table.restore(snapshot);
+		assertEquals(100.0, table.balance(saving), 0.01);
+		assertEquals(version + 1, table.version(saving));
+		assertEquals("The restored daily total allows the full transfer again", 0.0, table.transfer(saving, checking, 100),
+				0.01);
+	}
+
+	private interface Operation {
+		Object run() throws Exception;
+	}
+
+	private static void assertError(String expected, Operation operation) {
+		try {
+			operation.run();
+			fail("Should throw exception: " + expected);
+		} catch (Exception e) {
+			assertEquals(expected, e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,165 @@
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.ResultSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class BankJournalTest {
+
+	private Path directory;
+	private BankDataSource dataSource;
+
+	@Before
+	public void setUp() throws Exception {
+		directory = Files.createTempDirectory("bank-journal-test");
+		dataSource = BankDataSource.forUrl("jdbc:sqlite:" + directory.resolve("bank.db"), 2);
+		dataSource.write("CREATE TABLE accounts (accountNumber TEXT PRIMARY KEY, balance REAL, "
+				+ "dailyWithdrawals REAL, dailyTransfers REAL, dailyDeposits REAL, accountType TEXT)");
+		dataSource.write("INSERT INTO accounts VALUES ('JRN_1', 0, 0, 0, 0, 'Checking')");
+	}
+
+	private static BankJournal.Change deposit(double amount) {
+		return new BankJournal.Change("JRN_1", amount, amount, 0, 0);
+	}
+
+	private static void append(BankJournal journal, double amount) throws Exception {
+		journal.append(BankJournal.DEPOSIT, deposit(amount)).get(5, TimeUnit.SECONDS);
+	}
+
+	private double balance() throws Exception {
+		try (BankDataSource.PooledConnection conn = dataSource.getConnection();
+				ResultSet rs = conn.prepare("SELECT balance FROM accounts WHERE accountNumber = 'JRN_1'").executeQuery()) {
+			assertTrue(rs.next());
+			return rs.getDouble("balance");
+		}
+	}
+
+	private static Path onlySegment(Path journalDirectory) throws IOException {
+		List<Path> segments = BankJournal.segments(journalDirectory);
+		assertEquals(1, segments.size());
+		return segments.get(0);
+	}
+
+	// Overwrites part of the record that starts at offset with zeros, as a crash in the middle of writing it would
+	private static void tear(Path segment, int offset) throws IOException {
+		try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.allocate(12), offset + 8);
+			channel.force(true);
+		}
+	}
+
+	@Test
+	public void testReadStopsAtTornRecord() throws Exception {
+		Path journalDirectory = directory.resolve("journal");
+		BankJournal journal = new BankJournal(journalDirectory, 1, 0);
+		append(journal, 10);
+		append(journal, 20);
+		append(journal, 30);
+		Path segment = onlySegment(journalDirectory);
+		List<BankJournal.Record> records = BankJournal.read(segment);
+		assertEquals(3, records.size());
+		// Records of one account are all the same length
+		tear(segment, 2 * (8 + recordLength(segment)));
+		records = BankJournal.read(segment);
+		assertEquals("Replay should end at the torn record", 2, records.size());
+		assertEquals(1, records.get(0).sequence());
+		assertEquals(20.0, records.get(1).changes().get(0).balance(), 0.01);
+	}
+
+	@Test
+	public void testRecoverSkipsCheckpointedRecordsAndTornTail() throws Exception {
+		Path journalDirectory = directory.resolve("journal");
+		BankJournal journal = new BankJournal(journalDirectory, 1, 0);
+		append(journal, 10);
+		append(journal, 20);
+		append(journal, 30);
+		Path segment = onlySegment(journalDirectory);
+		tear(segment, 2 * (8 + recordLength(segment)));
+
+		JournalCheckpointer checkpointer = new JournalCheckpointer(dataSource, journalDirectory);
+		// As if the first record had been folded but the crash came before its segment was deleted
+		dataSource.write("INSERT OR REPLACE INTO journal_checkpoint (id, sequence) VALUES (0, 1)");
+		long next = checkpointer.recover();
+		assertEquals("Only the intact record above the checkpoint should be applied", 20.0, balance(), 0.01);
+		assertEquals(3, next);
+		assertEquals(2, checkpointer.getCheckpointedSequence());
+		assertTrue("Replayed segments are deleted", BankJournal.segments(journalDirectory).isEmpty());
+
+		// Replaying again applies nothing twice
+		assertEquals(3, new JournalCheckpointer(dataSource, journalDirectory).recover());
+		assertEquals(20.0, balance(), 0.01);
+	}
+
+	@Test
+	public void testReusedSegmentStopsAtOldRecords() throws Exception {
+		Path journalDirectory = directory.resolve("journal");
+		BankJournal journal = new BankJournal(journalDirectory, 1, 0);
+		JournalCheckpointer checkpointer = new JournalCheckpointer(dataSource, journalDirectory);
+		checkpointer.start(journal, TimeUnit.HOURS.toMillis(1), () -> {
+		});
+		append(journal, 1);
+		append(journal, 2);
+		append(journal, 3);
+		checkpointer.checkpoint();
+		append(journal, 4);
+		// The first segment is reused as the third and still holds records 1 to 3 past the new ones
+		checkpointer.checkpoint();
+		append(journal, 5);
+		append(journal, 6);
+		List<BankJournal.Record> records = BankJournal.read(onlySegment(journalDirectory));
+		assertEquals(2, records.size());
+		assertEquals(5, records.get(0).sequence());
+		assertEquals(6, records.get(1).sequence());
+		checkpointer.checkpoint();
+		assertEquals(21.0, balance(), 0.01);
+		assertEquals(6, checkpointer.getCheckpointedSequence());
+	}
+
+	@Test
+	public void testReversalWritesLedgerRowOnly() throws Exception {
+		dataSource.write("INSERT INTO accounts VALUES ('JRN_2', 0, 0, 0, 0, 'Checking')");
+		Path journalDirectory = directory.resolve("journal");
+		BankJournal journal = new BankJournal(journalDirectory, 1, 0);
+		JournalCheckpointer checkpointer = new JournalCheckpointer(dataSource, journalDirectory);
+		checkpointer.start(journal, TimeUnit.HOURS.toMillis(1), () -> {
+		});
+		append(journal, 50);
+		journal.append(BankJournal.TRANSFER, new BankJournal.Change("JRN_1", -20, 0, 0, 0),
+				new BankJournal.Change("JRN_2", 20, 20, 0, 0)).get(5, TimeUnit.SECONDS);
+		// As an atomic batch rolls back: the accounts are restored, then the transfer is reversed in the ledger
+		journal.append(BankJournal.RESTORE, new BankJournal.Change("JRN_1", 20, 0, 0, 0),
+				new BankJournal.Change("JRN_2", -20, -20, 0, 0)).get(5, TimeUnit.SECONDS);
+		journal.append(BankJournal.REVERSAL, new BankJournal.Change("JRN_2", -20, 0, 0, 0),
+				new BankJournal.Change("JRN_1", 20, 0, 0, 0)).get(5, TimeUnit.SECONDS);
+		checkpointer.checkpoint();
+		assertEquals(50.0, balance(), 0.01);
+		try (BankDataSource.PooledConnection conn = dataSource.getConnection();
+				ResultSet rs = conn.prepare("SELECT sourceAccount, targetAccount, amount FROM ledger ORDER BY id")
+						.executeQuery()) {
+			assertTrue(rs.next());
+			assertEquals("JRN_1", rs.getString("sourceAccount"));
+			assertEquals("JRN_2", rs.getString("targetAccount"));
+			assertEquals(20.0, rs.getDouble("amount"), 0.01);
+			assertTrue("The reversal should add a ledger row", rs.next());
+			assertEquals("JRN_2", rs.getString("sourceAccount"));
+			assertEquals("JRN_1", rs.getString("targetAccount"));
+			assertEquals(20.0, rs.getDouble("amount"), 0.01);
+			assertFalse(rs.next());
+		}
+	}
+
+	private static int recordLength(Path segment) throws IOException {
+		try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+			ByteBuffer length = ByteBuffer.allocate(4);
+			channel.read(length, 0);
+			return length.getInt(0);
+		}
+	}
+}
@@ -0,0 +1,90 @@
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+public class BankSnapshotTest {
+
+	private Path directory;
+	private Path file;
+	private BankDataSource dataSource;
+
+	@Before
+	public void setUp() throws Exception {
+		directory = Files.createTempDirectory("bank-snapshot-test");
+		file = directory.resolve("bank.snapshot");
+		dataSource = BankDataSource.forUrl("jdbc:sqlite:" + directory.resolve("bank.db"), 2);
+		dataSource.write("CREATE TABLE accounts (accountNumber TEXT PRIMARY KEY, balance REAL, "
+				+ "dailyWithdrawals REAL, dailyTransfers REAL, dailyDeposits REAL, accountType TEXT)");
+		dataSource.write("CREATE TABLE users (pin TEXT PRIMARY KEY, name TEXT, checkingAccount TEXT, savingAccount TEXT)");
+		BankSnapshot.track(dataSource);
+		dataSource.write("INSERT INTO accounts VALUES ('SNP_1', 150, 20, 0, 50, 'Checking')");
+		dataSource.write("INSERT INTO accounts VALUES ('SNP_2', 80, 0, 10, 0, 'Saving')");
+		dataSource.write("INSERT INTO users VALUES ('1234', 'Ann', 'SNP_1', 'SNP_2')");
+	}
+
+	private BankSnapshot open(long sequence) throws Exception {
+		return BankSnapshot.open(file, sequence, BankSnapshot.changes(dataSource));
+	}
+
+	@Test
+	public void testReadsTablesAsWritten() throws Exception {
+		BankSnapshot.write(dataSource, file, 7);
+		BankSnapshot snapshot = open(7);
+		assertNotNull(snapshot);
+		assertEquals(2, snapshot.accountCount());
+		assertEquals(1, snapshot.userCount());
+		BankSnapshot.AccountRow saving = snapshot.takeAccount("SNP_2");
+		assertTrue(saving.saving());
+		assertEquals(80.0, saving.balance(), 0.01);
+		assertEquals(10.0, saving.dailyTransfers(), 0.01);
+		assertNull("An account is handed out only once", snapshot.takeAccount("SNP_2"));
+		assertNull(snapshot.takeAccount("SNP_3"));
+		assertEquals("SNP_1", snapshot.user("1234").checkingAccount());
+		assertNull(snapshot.user("9999"));
+	}
+
+	@Test
+	public void testCorruptSnapshotIsIgnored() throws Exception {
+		BankSnapshot.write(dataSource, file, 7);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			ByteBuffer bytes = ByteBuffer.allocate(1);
+			long offset = channel.size() - 3;
+			channel.read(bytes, offset);
+			bytes.put(0, (byte) (bytes.get(0) ^ 1));
+			channel.write(bytes.rewind(), offset);
+		}
+		assertNull("A snapshot failing its checksum should fall back to bank.db", open(7));
+	}
+
+	@Test
+	public void testOtherSequenceIsIgnored() throws Exception {
+		BankSnapshot.write(dataSource, file, 7);
+		assertNull(open(8));
+	}
+
+	// Signups and edits made outside BANK are not journaled, so only the change count shows them
+	@Test
+	public void testChangeOutsideJournalIsIgnored() throws Exception {
+		BankSnapshot.write(dataSource, file, 7);
+		assertNotNull(open(7));
+		dataSource.write("INSERT INTO accounts VALUES ('SNP_3', 0, 0, 0, 0, 'Checking')");
+		assertNull("A snapshot older than a signup should fall back to bank.db", open(7));
+
+		BankSnapshot.write(dataSource, file, 7);
+		assertNotNull(open(7));
+		dataSource.write("UPDATE accounts SET dailyDeposits = 0 WHERE accountNumber = 'SNP_1'");
+		assertNull(open(7));
+	}
+
+	@Test
+	public void testMissingOrShortFileIsIgnored() throws Exception {
+		assertNull(open(7));
+		Files.write(file, new byte[10]);
+		assertNull(open(7));
+	}
+}
@@ -64,6 +64,19 @@ public class CheckingAccountTest {
 		}
 	}
 
+	@Test
+	public void testWithdrawNegativeAmount() throws Exception {
+		CheckingAccount account = new CheckingAccount("CHK_TEST_11", 100.0);
+		account.saveAccount("Checking");
+		try {
+			account.withdraw(-50.0);
+			fail("Should throw exception for negative withdrawal");
+		} catch (Exception e) {
+			assertEquals("Withdrawal amount must be positive.", e.getMessage());
+			assertEquals("Balance should remain unchanged", 100.0, account.getBalance(), 0.01);
+		}
+	}
+
 	@Test
 	public void testDepositExceedingDailyLimit() throws Exception {
 		CheckingAccount account = new CheckingAccount("CHK_TEST_4", 100.0);
@@ -0,0 +1,132 @@
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ClockCacheTest {
+
+	@Test
+	public void testEvictsDownToCapacity() {
+		ClockCache<String, Integer> cache = new ClockCache<>(3);
+		for (int i = 0; i < 10; i++) {
+			cache.putIfAbsent("key-" + i, i);
+		}
+		assertEquals(3, cache.size());
+		assertEquals(7, cache.evictions());
+		assertEquals("The entry just inserted is never the one evicted", Integer.valueOf(9), cache.get("key-9"));
+	}
+
+	@Test
+	public void testEntriesInUseOutlastUnusedOnes() {
+		ClockCache<String, Integer> cache = new ClockCache<>(4);
+		for (int i = 0; i < 4; i++) {
+			cache.putIfAbsent("key-" + i, i);
+		}
+		for (int i = 4; i < 20; i++) {
+			cache.get("key-0");
+			cache.putIfAbsent("key-" + i, i);
+		}
+		assertEquals(Integer.valueOf(0), cache.get("key-0"));
+		assertNull(cache.get("key-1"));
+	}
+
+	@Test
+	public void testPinnedEntriesAreNotEvicted() {
+		Set<Integer> pinned = new HashSet<>(Set.of(0, 1));
+		ClockCache<String, Integer> cache = new ClockCache<>(2, value -> !pinned.contains(value));
+		cache.putIfAbsent("key-0", 0);
+		cache.putIfAbsent("key-1", 1);
+		cache.putIfAbsent("key-2", 2);
+		cache.putIfAbsent("key-3", 3);
+		assertNotNull(cache.get("key-0"));
+		assertNotNull(cache.get("key-1"));
+		assertNull("Only unpinned entries are evicted", cache.get("key-2"));
+		assertEquals("Pinned entries may keep the cache over capacity", 3, cache.size());
+
+		pinned.clear();
+		cache.trim();
+		assertEquals("Unpinned entries go at the next trim", 2, cache.size());
+	}
+
+	@Test
+	public void testAllPinnedStaysOverCapacity() {
+		ClockCache<String, Integer> cache = new ClockCache<>(1, value -> false);
+		for (int i = 0; i < 5; i++) {
+			cache.putIfAbsent("key-" + i, i);
+		}
+		assertEquals(5, cache.size());
+		assertEquals(0, cache.evictions());
+	}
+
+	@Test
+	public void testInsertSweepIsBounded() {
+		Set<Integer> pinned = new HashSet<>();
+		ClockCache<String, Integer> cache = new ClockCache<>(1, value -> !pinned.contains(value));
+		for (int i = 0; i < 1000; i++) {
+			pinned.add(i);
+			cache.putIfAbsent("key-" + i, i);
+		}
+		pinned.clear();
+		cache.putIfAbsent("key-1000", 1000);
+		assertTrue("One insert should not sweep the whole ring", cache.evictions() <= ClockCache.SWEEP_STEPS);
+		cache.trim();
+		assertEquals("A trim sweeps as far as it takes", 1, cache.size());
+	}
+
+	@Test
+	public void testRemoveKeepsRingConsistent() {
+		ClockCache<String, Integer> cache = new ClockCache<>(3);
+		cache.putIfAbsent("key-0", 0);
+		cache.putIfAbsent("key-1", 1);
+		cache.putIfAbsent("key-2", 2);
+		cache.remove("key-0");
+		assertNull(cache.get("key-0"));
+		for (int i = 3; i < 10; i++) {
+			cache.putIfAbsent("key-" + i, i);
+		}
+		assertEquals(3, cache.size());
+		assertEquals(Integer.valueOf(9), cache.get("key-9"));
+	}
+
+	@Test
+	public void testConcurrentMissesLoadOnce() throws Exception {
+		ClockCache<String, Integer> cache = new ClockCache<>(4);
+		AtomicInteger loads = new AtomicInteger();
+		CountDownLatch loading = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		CompletableFuture<Integer> first = CompletableFuture.supplyAsync(() -> get(cache, key -> {
+			loads.incrementAndGet();
+			loading.countDown();
+			release.await(5, TimeUnit.SECONDS);
+			return 42;
+		}));
+		assertTrue(loading.await(5, TimeUnit.SECONDS));
+		CompletableFuture<Integer> second = CompletableFuture.supplyAsync(() -> get(cache, key -> {
+			loads.incrementAndGet();
+			return 43;
+		}));
+		release.countDown();
+		assertEquals(Integer.valueOf(42), first.get(5, TimeUnit.SECONDS));
+		assertEquals(Integer.valueOf(42), second.get(5, TimeUnit.SECONDS));
+		assertEquals(1, loads.get());
+	}
+
+	@Test
+	public void testMissingKeyIsNotCached() throws Exception {
+		ClockCache<String, Integer> cache = new ClockCache<>(4);
+		assertNull(cache.get("key-0", key -> null));
+		assertEquals(0, cache.size());
+	}
+
+	private static Integer get(ClockCache<String, Integer> cache, ClockCache.Loader<String, Integer> loader) {
+		try {
+			return cache.get("key-0", loader);
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -25,4 +25,8 @@ echo "Compiling ATM Application..."
 javac -cp "_lib/*" -d atm/bin atm/src/*.java
 # javac -cp "atm/lib/*" -d atm/bin atm/src/*.java
 
+# Compile the single-JVM launcher
+echo "Compiling Launcher..."
+javac -cp "_lib/*:bank/bin:utility/bin:atm/bin" -d launcher/bin launcher/src/*.java
+
 echo "All projects compiled successfully."
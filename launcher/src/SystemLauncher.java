@@ -0,0 +1,36 @@
+// Hosts UtilitySystem and BankSystem (and optionally the ATM) in one JVM. The servers still listen on their ports
+// for outside callers, but calls between the co-located systems go straight to their handlers.
+// Usage: java SystemLauncher [blocking|nio|virtual] [atm]
+public class SystemLauncher {
+	public static void main(String[] args) throws Exception {
+		Server.Mode mode = Server.Mode.BLOCKING;
+		boolean withAtm = false;
+		for (String arg : args) {
+			if (arg.equalsIgnoreCase("atm")) {
+				withAtm = true;
+			} else {
+				mode = Server.Mode.valueOf(arg.toUpperCase());
+			}
+		}
+
+		// Each system keeps its own database in its module directory, relative to the project root
+		setDefault("bank.db.url", "jdbc:sqlite:bank/bank.db");
+		setDefault("utility.db.url", "jdbc:sqlite:utility/utility.db");
+
+		UtilitySystem utilitySystem = new UtilitySystem(mode);
+		utilitySystem.start();
+		BankSystem bankSystem = new BankSystem(mode);
+		bankSystem.start();
+
+		if (withAtm) {
+			new ATMApplication().start();
+			System.exit(0);
+		}
+	}
+
+	private static void setDefault(String key, String value) {
+		if (System.getProperty(key) == null) {
+			System.setProperty(key, value);
+		}
+	}
+}
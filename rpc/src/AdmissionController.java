@@ -0,0 +1,191 @@
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+// Bounded per-priority queues in front of the message handler. Workers always drain the most urgent queue first;
+// a request that finds its queue full, or waits longer than its priority's budget, gets an "overloaded" ERROR.
+public class AdmissionController {
+	public enum Priority {
+		INTERACTIVE,
+		STANDARD,
+		BULK
+	}
+
+	private static final Map<Message.Type, Priority> PRIORITIES = new EnumMap<>(Message.Type.class);
+	static {
+		for (Message.Type type : Message.Type.values()) {
+			PRIORITIES.put(type, Priority.STANDARD);
+		}
+		PRIORITIES.put(Message.Type.LOGIN, Priority.INTERACTIVE);
+		PRIORITIES.put(Message.Type.LOGOUT, Priority.INTERACTIVE);
+		PRIORITIES.put(Message.Type.VIEW_BALANCE, Priority.INTERACTIVE);
+		PRIORITIES.put(Message.Type.WITHDRAW, Priority.INTERACTIVE);
+		PRIORITIES.put(Message.Type.DEPOSIT, Priority.INTERACTIVE);
+		PRIORITIES.put(Message.Type.TRANSFER, Priority.INTERACTIVE);
+		// Operators should still be able to see an overloaded server
+		PRIORITIES.put(Message.Type.METRICS, Priority.INTERACTIVE);
+		PRIORITIES.put(Message.Type.VIEW_BILL_HISTORY, Priority.BULK);
+		PRIORITIES.put(Message.Type.BATCH, Priority.BULK);
+	}
+
+	private static final int[] DEFAULT_CAPACITY = { 1024, 512, 128 };
+	private static final long[] DEFAULT_WAIT_BUDGET_MILLIS = { 1000, 3000, 5000 };
+
+	private final String systemId;
+	private final MessageHandler handler;
+	private final Priority[] priorities = Priority.values();
+	private final BlockingQueue<Request>[] queues;
+	private final long[] waitBudgetNanos;
+	private final AtomicLong[] shed;
+	private final AtomicLong[] admitted;
+	private final AtomicLong expired = new AtomicLong();
+	private final LatencyHistogram[][] histograms;
+	// One permit per queued request, so idle workers park instead of spinning over empty queues
+	private final Semaphore queued = new Semaphore(0);
+	private volatile boolean running = true;
+
+	private static class Request {
+		private final Message message;
+		private final Consumer<Message> reply;
+		private final long enqueuedAt;
+
+		private Request(Message message, Consumer<Message> reply) {
+			this.message = message;
+			this.reply = reply;
+			this.enqueuedAt = System.nanoTime();
+		}
+	}
+
+	public AdmissionController(String systemId, MessageHandler handler, int workers, ThreadFactory workerThreads) {
+		this(systemId, handler, workers, workerThreads, DEFAULT_CAPACITY, DEFAULT_WAIT_BUDGET_MILLIS);
+	}
+
+	// capacities and waitBudgetMillis are indexed by Priority ordinal
+	public AdmissionController(String systemId, MessageHandler handler, int workers, ThreadFactory workerThreads,
+			int[] capacities, long[] waitBudgetMillis) {
+		this.systemId = systemId;
+		this.handler = handler;
+		@SuppressWarnings("unchecked")
+		BlockingQueue<Request>[] queues = (BlockingQueue<Request>[]) new BlockingQueue<?>[priorities.length];
+		this.queues = queues;
+		this.waitBudgetNanos = new long[priorities.length];
+		this.shed = new AtomicLong[priorities.length];
+		this.admitted = new AtomicLong[priorities.length];
+		this.histograms = RpcMetrics.serverHistograms(systemId);
+		for (int i = 0; i < priorities.length; i++) {
+			queues[i] = new ArrayBlockingQueue<>(capacities[i]);
+			waitBudgetNanos[i] = TimeUnit.MILLISECONDS.toNanos(waitBudgetMillis[i]);
+			shed[i] = new AtomicLong();
+			admitted[i] = new AtomicLong();
+		}
+		for (int i = 0; i < workers; i++) {
+			workerThreads.newThread(this::work).start();
+		}
+	}
+
+	public static Priority priorityOf(Message.Type type) {
+		return type == null ? Priority.STANDARD : PRIORITIES.get(type);
+	}
+
+	// Never blocks: the request is either queued or answered as overloaded right away
+	public void submit(Message message, Consumer<Message> reply) {
+		int priority = priorityOf(message.getMessageType()).ordinal();
+		if (!running || !queues[priority].offer(new Request(message, reply))) {
+			shed[priority].incrementAndGet();
+			reply.accept(overloaded(message, "queue full"));
+			return;
+		}
+		queued.release();
+	}
+
+	public void shutdown() {
+		running = false;
+	}
+
+	public int getQueueDepth(Priority priority) {
+		return queues[priority.ordinal()].size();
+	}
+
+	public long getShedCount(Priority priority) {
+		return shed[priority.ordinal()].get();
+	}
+
+	public long getAdmittedCount(Priority priority) {
+		return admitted[priority.ordinal()].get();
+	}
+
+	public long getExpiredCount() {
+		return expired.get();
+	}
+
+	private void work() {
+		while (running) {
+			try {
+				if (!queued.tryAcquire(1, TimeUnit.SECONDS)) {
+					continue;
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+			Request request = next();
+			if (request == null) {
+				continue;
+			}
+			Message.Type type = request.message.getMessageType();
+			int priority = priorityOf(type).ordinal();
+			long waited = System.nanoTime() - request.enqueuedAt;
+			if (type != null) {
+				histograms[type.ordinal()][RpcMetrics.Stage.QUEUE_WAIT.ordinal()].record(waited);
+			}
+			Message response;
+			if (request.message.isExpired()) {
+				// The caller has already given up, so the work would be wasted
+				expired.incrementAndGet();
+				response = error(request.message, "Deadline exceeded before " + systemId + " could handle the request");
+			} else if (waited > waitBudgetNanos[priority]) {
+				shed[priority].incrementAndGet();
+				response = overloaded(request.message, "queue wait budget exceeded");
+			} else {
+				admitted[priority].incrementAndGet();
+				response = handler.handleMessage(request.message);
+			}
+			try {
+				request.reply.accept(response);
+			} catch (RuntimeException e) {
+				System.err.println("Error sending response: " + e.getMessage());
+			}
+		}
+	}
+
+	private Request next() {
+		for (BlockingQueue<Request> queue : queues) {
+			Request request = queue.poll();
+			if (request != null) {
+				return request;
+			}
+		}
+		return null;
+	}
+
+	private Message overloaded(Message request, String reason) {
+		Message response = error(request, systemId + " overloaded (" + reason + "), try again later");
+		response.addData("overloaded", true);
+		return response;
+	}
+
+	private Message error(Message request, String error) {
+		Message response = new Message();
+		response.setSenderId(systemId);
+		response.setReceiverId(request.getSenderId());
+		response.setCorrelationId(request.getCorrelationId());
+		response.setMessageType(Message.Type.ERROR);
+		response.addData("Error", error);
+		return response;
+	}
+}
@@ -0,0 +1,152 @@
+// Typed forms of the requests BANK accepts and the SUCCESS responses it returns. Each record reads its fields from
+// a Message once, and writes them back under the payload keys the other systems already use.
+public final class BankMessages {
+	private BankMessages() {
+	}
+
+	private static Message request(String senderId, String receiverId, Message.Type type) {
+		return new Message(senderId, receiverId, type, null);
+	}
+
+	public record LoginRequest(String name, String pin) {
+		public static LoginRequest from(Message message) {
+			return new LoginRequest(message.getString("name"), message.getString("pin"));
+		}
+
+		public Message toMessage(String senderId, String receiverId) {
+			Message message = request(senderId, receiverId, Message.Type.LOGIN);
+			message.addData("name", name);
+			message.addData("pin", pin);
+			return message;
+		}
+	}
+
+	public record SignupRequest(String name, String pin) {
+		public static SignupRequest from(Message message) {
+			return new SignupRequest(message.getString("name"), message.getString("pin"));
+		}
+
+		public Message toMessage(String senderId, String receiverId) {
+			Message message = request(senderId, receiverId, Message.Type.SIGNUP);
+			message.addData("name", name);
+			message.addData("pin", pin);
+			return message;
+		}
+	}
+
+	public record DepositRequest(String accountId, double amount) {
+		public static DepositRequest from(Message message) {
+			return new DepositRequest(message.getString("accountId"), message.getDouble("amount"));
+		}
+
+		public Message toMessage(String senderId, String receiverId) {
+			Message message = request(senderId, receiverId, Message.Type.DEPOSIT);
+			message.addData("accountId", accountId);
+			message.addData("amount", amount);
+			return message;
+		}
+	}
+
+	public record WithdrawRequest(String accountId, double amount) {
+		public static WithdrawRequest from(Message message) {
+			return new WithdrawRequest(message.getString("accountId"), message.getDouble("amount"));
+		}
+
+		public Message toMessage(String senderId, String receiverId) {
+			Message message = request(senderId, receiverId, Message.Type.WITHDRAW);
+			message.addData("accountId", accountId);
+			message.addData("amount", amount);
+			return message;
+		}
+	}
+
+	public record TransferRequest(String sourceAccountId, String targetAccountId, double amount) {
+		public static TransferRequest from(Message message) {
+			return new TransferRequest(message.getString("sourceAccountId"), message.getString("targetAccountId"),
+					message.getDouble("amount"));
+		}
+
+		public Message toMessage(String senderId, String receiverId) {
+			Message message = request(senderId, receiverId, Message.Type.TRANSFER);
+			message.addData("sourceAccountId", sourceAccountId);
+			message.addData("targetAccountId", targetAccountId);
+			message.addData("amount", amount);
+			return message;
+		}
+	}
+
+	public record BalanceRequest(String accountId) {
+		public static BalanceRequest from(Message message) {
+			return new BalanceRequest(message.getString("accountId"));
+		}
+
+		public Message toMessage(String senderId, String receiverId) {
+			Message message = request(senderId, receiverId, Message.Type.VIEW_BALANCE);
+			message.addData("accountId", accountId);
+			return message;
+		}
+	}
+
+	public record PayBillRequest(String bankAccountId, String utilAccountId, double amount) {
+		public static PayBillRequest from(Message message) {
+			return new PayBillRequest(message.getString("bankAccountId"), message.getString("utilAccountId"),
+					message.getDouble("amount"));
+		}
+
+		public Message toMessage(String senderId, String receiverId) {
+			Message message = request(senderId, receiverId, Message.Type.PAY_BILL);
+			message.addData("bankAccountId", bankAccountId);
+			message.addData("utilAccountId", utilAccountId);
+			message.addData("amount", amount);
+			return message;
+		}
+	}
+
+	// Answers LOGIN and SIGNUP
+	public record AccountsResponse(String checkingAccountId, String savingAccountId) {
+		public static AccountsResponse from(Message message) {
+			return new AccountsResponse(message.getString("checkingAccountId"), message.getString("savingAccountId"));
+		}
+
+		public void writeTo(Message response) {
+			response.setMessageType(Message.Type.SUCCESS);
+			response.addData("checkingAccountId", checkingAccountId);
+			response.addData("savingAccountId", savingAccountId);
+		}
+	}
+
+	public record BalanceResponse(double balance) {
+		public static BalanceResponse from(Message message) {
+			return new BalanceResponse(message.getDouble("balance"));
+		}
+
+		public void writeTo(Message response) {
+			response.setMessageType(Message.Type.SUCCESS);
+			response.addData("balance", balance);
+		}
+	}
+
+	// Answers DEPOSIT, WITHDRAW and PAY_BILL with the balance after the change
+	public record NewBalanceResponse(double newBalance) {
+		public static NewBalanceResponse from(Message message) {
+			return new NewBalanceResponse(message.getDouble("newBalance"));
+		}
+
+		public void writeTo(Message response) {
+			response.setMessageType(Message.Type.SUCCESS);
+			response.addData("newBalance", newBalance);
+		}
+	}
+
+	public record TransferResponse(double newSourceBalance, double newTargetBalance) {
+		public static TransferResponse from(Message message) {
+			return new TransferResponse(message.getDouble("newSourceBalance"), message.getDouble("newTargetBalance"));
+		}
+
+		public void writeTo(Message response) {
+			response.setMessageType(Message.Type.SUCCESS);
+			response.addData("newSourceBalance", newSourceBalance);
+			response.addData("newTargetBalance", newTargetBalance);
+		}
+	}
+}
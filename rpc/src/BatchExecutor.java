@@ -0,0 +1,96 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+
+// Runs the sub-requests of a BATCH message. Sub-requests that share a key (typically an account ID) keep their
+// relative order and run one after another; groups with no key in common run in parallel on the executor.
+public class BatchExecutor {
+	private final MessageHandler handler;
+	private final Executor executor;
+	private final Function<Message, Collection<String>> keysOf;
+
+	public BatchExecutor(MessageHandler handler, Executor executor, Function<Message, Collection<String>> keysOf) {
+		this.handler = handler;
+		this.executor = executor;
+		this.keysOf = keysOf;
+	}
+
+	public List<Message> execute(List<Message> requests) {
+		Message[] responses = new Message[requests.size()];
+		List<CompletableFuture<Void>> running = new ArrayList<>();
+		// The batch's deadline follows its sub-requests onto the executor's threads
+		long deadline = Deadline.current();
+		for (List<Integer> group : groupByKeys(requests)) {
+			running.add(CompletableFuture.runAsync(() -> {
+				long previous = Deadline.set(deadline);
+				try {
+					for (int index : group) {
+						responses[index] = handleOne(requests.get(index));
+					}
+				} finally {
+					Deadline.set(previous);
+				}
+			}, executor));
+		}
+		CompletableFuture.allOf(running.toArray(new CompletableFuture<?>[0])).join();
+		return List.of(responses);
+	}
+
+	// In request order, one at a time, stopping at the first response that is not SUCCESS
+	public List<Message> executeInOrder(List<Message> requests) {
+		List<Message> responses = new ArrayList<>(requests.size());
+		for (Message request : requests) {
+			Message response = handleOne(request);
+			responses.add(response);
+			if (response.getMessageType() != Message.Type.SUCCESS) {
+				break;
+			}
+		}
+		return responses;
+	}
+
+	private Message handleOne(Message request) {
+		if (request.getMessageType() == Message.Type.BATCH) {
+			Message response = new Message();
+			response.setReceiverId(request.getSenderId());
+			response.setCorrelationId(request.getCorrelationId());
+			response.setMessageType(Message.Type.ERROR);
+			response.addData("Error", "Nested batches are not supported");
+			return response;
+		}
+		return handler.handleMessage(request);
+	}
+
+	// Union-find over sub-request indices, merging any two requests that touch a common key
+	private List<List<Integer>> groupByKeys(List<Message> requests) {
+		int[] parent = new int[requests.size()];
+		Map<String, Integer> owner = new HashMap<>();
+		for (int i = 0; i < parent.length; i++) {
+			parent[i] = i;
+			for (String key : keysOf.apply(requests.get(i))) {
+				Integer previous = owner.putIfAbsent(key, i);
+				if (previous != null) {
+					parent[find(parent, i)] = find(parent, previous);
+				}
+			}
+		}
+		Map<Integer, List<Integer>> groups = new HashMap<>();
+		for (int i = 0; i < parent.length; i++) {
+			groups.computeIfAbsent(find(parent, i), root -> new ArrayList<>()).add(i);
+		}
+		return new ArrayList<>(groups.values());
+	}
+
+	private static int find(int[] parent, int i) {
+		while (parent[i] != i) {
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+}
@@ -1,39 +1,308 @@
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class Client {
-	private Map<String, Integer> systemPorts;
+	private static final int DEFAULT_MAX_CONNECTIONS = 8;
+	private static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 30_000;
+	private static final int DEFAULT_WARM_UP_CONNECTIONS = 1;
+	private static final boolean DEFAULT_BINARY_CODEC = true;
+	private static final int DEFAULT_MAX_ATTEMPTS = 3;
+	private static final long BASE_BACKOFF_MILLIS = 50;
+	private static final long MAX_BACKOFF_MILLIS = 1000;
+
+	private Map<String, Transport> systems;
+	private Map<String, RpcConnectionPool> pools;
+	private ScheduledExecutorService maintenance;
+	private final AtomicLong nextCorrelationId = new AtomicLong();
+	// Idempotency keys are this prefix plus a counter, unique across clients and restarts
+	private final String idempotencyPrefix = UUID.randomUUID() + "-";
+	private final AtomicLong nextIdempotencyKey = new AtomicLong();
+	private volatile int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+	private volatile long defaultTimeoutMillis;
+	// Receivers hosted in this JVM are called directly unless -Drpc.loopback=false; -Drpc.loopback.copy=true
+	// hands them copies so neither side can see the other's later changes to a message
+	private volatile boolean loopback = Boolean.parseBoolean(System.getProperty("rpc.loopback", "true"));
+	private volatile boolean loopbackCopy = Boolean.getBoolean("rpc.loopback.copy");
 
 	public Client() {
-		this.systemPorts = Map.of(
-				"ATM", 8080,
-				"BANK", 8081,
-				"UTIL", 8082);
+		this(DEFAULT_MAX_CONNECTIONS, DEFAULT_IDLE_TIMEOUT_MILLIS, DEFAULT_WARM_UP_CONNECTIONS, DEFAULT_BINARY_CODEC);
+	}
+
+	public Client(int maxConnections, long idleTimeoutMillis, int warmUpConnections, boolean binaryCodec) {
+		this(Map.of(
+				"ATM", Transport.forSystem("ATM", 8080),
+				"BANK", Transport.forSystem("BANK", 8081),
+				"UTIL", Transport.forSystem("UTIL", 8082)), maxConnections, idleTimeoutMillis, warmUpConnections,
+				binaryCodec);
+	}
+
+	// systems maps each receiver ID to the transport it is reached over
+	public Client(Map<String, Transport> systems, int maxConnections, long idleTimeoutMillis, int warmUpConnections,
+			boolean binaryCodec) {
+		this.systems = systems;
+
+		this.pools = new HashMap<>();
+		for (Map.Entry<String, Transport> entry : systems.entrySet()) {
+			RpcConnectionPool pool = new RpcConnectionPool(entry.getValue(), maxConnections, idleTimeoutMillis,
+					binaryCodec);
+			pool.warmUp(warmUpConnections);
+			pools.put(entry.getKey(), pool);
+		}
+
+		this.maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "rpc-client-maintenance");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long evictionPeriod = Math.max(1, idleTimeoutMillis / 2);
+		maintenance.scheduleAtFixedRate(() -> pools.values().forEach(RpcConnectionPool::evictIdle),
+				evictionPeriod, evictionPeriod, TimeUnit.MILLISECONDS);
+	}
+
+	// Applied to requests sent without a timeout of their own; 0 (the default) waits as long as the deadline allows
+	public void setDefaultTimeout(long timeoutMillis) {
+		this.defaultTimeoutMillis = timeoutMillis;
+	}
+
+	// Attempts per request, including the first; 1 turns retries off
+	public void setMaxAttempts(int maxAttempts) {
+		this.maxAttempts = maxAttempts;
+	}
+
+	public void setLoopback(boolean loopback) {
+		this.loopback = loopback;
 	}
 
+	public void setLoopbackCopy(boolean loopbackCopy) {
+		this.loopbackCopy = loopbackCopy;
+	}
+
+	// Blocking call kept for existing callers: failures are logged and reported as null
 	public Message sendMessage(Message message) {
-		String receiverId = message.getReceiverId();
-		if (!systemPorts.containsKey(receiverId)) {
-			System.out.println("Receiver ID not recognized: " + receiverId);
+		try {
+			return sendAsync(message).get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RpcException && e.getCause().getCause() == null) {
+				System.out.println(e.getCause().getMessage());
+			} else if (e.getCause() instanceof TimeoutException) {
+				System.out.println("Request to " + message.getReceiverId() + " timed out");
+			} else {
+				e.getCause().printStackTrace();
+			}
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 			return null;
 		}
+	}
+
+	public CompletableFuture<Message> sendAsync(Message message) {
+		return sendAsync(message, 0);
+	}
 
-		int port = systemPorts.get(receiverId);
+	// Completes with the response, or exceptionally with an RpcException or, once the deadline has passed, a
+	// TimeoutException. The deadline is the earliest of the message's own, the one inherited from the request
+	// being handled on this thread and timeoutMillis (if positive) from now; it travels with the request so the
+	// receiver can drop it once expired. Cancelling or timing out abandons the request on its connection.
+	// Lost connections and overloaded receivers are retried with backoff while the deadline allows; the request's
+	// idempotency key makes that safe for mutating requests.
+	public CompletableFuture<Message> sendAsync(Message message, long timeoutMillis) {
+		CompletableFuture<Message> result = new CompletableFuture<>();
+		String receiverId = message.getReceiverId();
+		long timeout = timeoutMillis > 0 ? timeoutMillis : defaultTimeoutMillis;
+		long deadline = Deadline.earliest(message.getDeadline(), Deadline.current());
+		if (timeout > 0) {
+			deadline = Deadline.earliest(deadline, System.currentTimeMillis() + timeout);
+		}
+		long remaining = Deadline.remainingMillis(deadline);
+		if (remaining <= 0) {
+			result.completeExceptionally(new RpcException("Deadline exceeded before sending to " + receiverId));
+			return result;
+		}
 
-		try (
-				Socket socket = new Socket("localhost", port);
-				ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-				ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
-			out.writeObject(message);
-			out.flush();
+		MessageHandler local = loopback ? LoopbackRegistry.lookup(receiverId) : null;
+		RpcConnectionPool pool = local == null ? pools.get(receiverId) : null;
+		if (local == null && pool == null) {
+			result.completeExceptionally(new RpcException("Receiver ID not recognized: " + receiverId));
+			return result;
+		}
 
-			Message response = (Message) in.readObject();
-			return response;
-		} catch (Exception e) {
-			e.printStackTrace();
-			return null;
+		DependencyGuard guard = DependencyGuard.of(receiverId);
+		String rejection = guard.tryAcquire();
+		if (rejection != null) {
+			result.completeExceptionally(new RpcException(rejection));
+			return result;
 		}
+		long start = System.nanoTime();
+		CompletableFuture<Message> call = local != null ? sendLocal(local, message, deadline)
+				: sendRemote(pool, message, deadline, result);
+		call.whenComplete((response, failure) -> {
+			if (failure instanceof CancellationException) {
+				guard.onIgnored();
+			} else if (failure != null || Boolean.TRUE.equals(response.getData("overloaded"))) {
+				guard.onFailure();
+			} else {
+				guard.onSuccess(System.nanoTime() - start);
+			}
+		});
+		return call;
+	}
+
+	private CompletableFuture<Message> sendRemote(RpcConnectionPool pool, Message message, long deadline,
+			CompletableFuture<Message> result) {
+		// Only this send's attempts share a generated key; the caller's message keeps whatever key it had
+		String idempotencyKey = message.getIdempotencyKey() != null ? message.getIdempotencyKey()
+				: idempotencyPrefix + nextIdempotencyKey.incrementAndGet();
+
+		AtomicReference<CompletableFuture<Message>> attempt = new AtomicReference<>();
+		sendAttempt(pool, message, idempotencyKey, deadline, 1, attempt, result);
+		result.whenComplete((response, failure) -> {
+			CompletableFuture<Message> pending = attempt.get();
+			if (failure != null && pending != null) {
+				pending.cancel(false);
+			}
+		});
+		if (deadline != 0) {
+			result.orTimeout(Deadline.remainingMillis(deadline), TimeUnit.MILLISECONDS);
+		}
+		return result;
+	}
+
+	private void sendAttempt(RpcConnectionPool pool, Message message, String idempotencyKey, long deadline,
+			int attemptNumber, AtomicReference<CompletableFuture<Message>> attempt, CompletableFuture<Message> result) {
+		if (result.isDone()) {
+			return;
+		}
+		String receiverId = message.getReceiverId();
+		LatencyHistogram roundTrip = RpcMetrics.roundTrip(receiverId);
+		long start = System.nanoTime();
+		String callerCorrelationId = message.getCorrelationId();
+		// Each attempt sends its own copy, so the caller's message is never changed and attempts cannot race on it
+		Message request = message.copy();
+		request.setCorrelationId(Long.toString(nextCorrelationId.incrementAndGet()));
+		request.setDeadline(deadline);
+		request.setIdempotencyKey(idempotencyKey);
+		CompletableFuture<Message> pending;
+		try {
+			pending = pool.send(request);
+		} catch (IOException e) {
+			if (!retry(pool, message, idempotencyKey, deadline, attemptNumber, attempt, result)) {
+				result.completeExceptionally(new RpcException("Could not send to " + receiverId, e));
+			}
+			return;
+		}
+
+		attempt.set(pending);
+		if (result.isDone()) {
+			// Timed out or cancelled while this attempt was being written
+			pending.cancel(false);
+			return;
+		}
+		pending.whenComplete((response, failure) -> {
+			if (failure != null) {
+				if (!retry(pool, message, idempotencyKey, deadline, attemptNumber, attempt, result)) {
+					result.completeExceptionally(new RpcException("Request to " + receiverId + " failed", failure));
+				}
+			} else if (Boolean.TRUE.equals(response.getData("overloaded"))
+					&& retry(pool, message, idempotencyKey, deadline, attemptNumber, attempt, result)) {
+				return;
+			} else {
+				roundTrip.record(System.nanoTime() - start);
+				response.setCorrelationId(callerCorrelationId);
+				result.complete(response);
+			}
+		});
+	}
+
+	// Schedules the next attempt after an exponential backoff with jitter, unless attempts are used up or the
+	// deadline would pass first
+	private boolean retry(RpcConnectionPool pool, Message message, String idempotencyKey, long deadline,
+			int attemptNumber, AtomicReference<CompletableFuture<Message>> attempt, CompletableFuture<Message> result) {
+		if (attemptNumber >= maxAttempts || result.isDone()) {
+			return false;
+		}
+		long backoff = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << (attemptNumber - 1));
+		backoff = ThreadLocalRandom.current().nextLong(backoff / 2, backoff + 1);
+		if (Deadline.remainingMillis(deadline) <= backoff) {
+			return false;
+		}
+		try {
+			maintenance.schedule(
+					() -> sendAttempt(pool, message, idempotencyKey, deadline, attemptNumber + 1, attempt, result),
+					backoff, TimeUnit.MILLISECONDS);
+			return true;
+		} catch (RejectedExecutionException e) {
+			// Client closed
+			return false;
+		}
+	}
+
+	// Runs the co-located receiver's handler on the calling thread, so the returned future is already complete
+	private CompletableFuture<Message> sendLocal(MessageHandler handler, Message message, long deadline) {
+		long start = System.nanoTime();
+		Message request = loopbackCopy ? message.copy() : message;
+		long callerDeadline = request.getDeadline();
+		request.setDeadline(deadline);
+		try {
+			Message response = handler.handleMessage(request);
+			RpcMetrics.roundTrip(message.getReceiverId()).record(System.nanoTime() - start);
+			return CompletableFuture.completedFuture(loopbackCopy ? response.copy() : response);
+		} catch (RuntimeException e) {
+			return CompletableFuture.failedFuture(
+					new RpcException("Request to " + message.getReceiverId() + " failed", e));
+		} finally {
+			request.setDeadline(callerDeadline);
+		}
+	}
+
+	// Fans the messages out in parallel; responses come back in the order of the requests
+	public CompletableFuture<List<Message>> sendAll(List<Message> messages, long timeoutMillis) {
+		List<CompletableFuture<Message>> futures = new ArrayList<>(messages.size());
+		for (Message message : messages) {
+			futures.add(sendAsync(message, timeoutMillis));
+		}
+		return allOf(futures);
+	}
+
+	public static CompletableFuture<List<Message>> allOf(List<CompletableFuture<Message>> futures) {
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+				.thenApply(done -> {
+					List<Message> responses = new ArrayList<>(futures.size());
+					for (CompletableFuture<Message> future : futures) {
+						responses.add(future.join());
+					}
+					return responses;
+				});
+	}
+
+	// For chaining: passes SUCCESS responses through and fails the stage with the peer's error otherwise
+	public static Message requireSuccess(Message response) {
+		if (response.getMessageType() != Message.Type.SUCCESS) {
+			Object reason = response.getData("Error") != null ? response.getData("Error") : response.getData("Reason");
+			throw new CompletionException(new RpcException(response.getMessageType() + " from "
+					+ response.getSenderId() + ": " + reason));
+		}
+		return response;
+	}
+
+	public void close() {
+		maintenance.shutdownNow();
+		pools.values().forEach(RpcConnectionPool::close);
 	}
 }
@@ -0,0 +1,29 @@
+// The deadline of the request being handled on the current thread. Server sets it around each handler call, and
+// Client applies it to outbound calls that carry no earlier deadline of their own, so a handler's calls to other
+// systems give up when its caller does. Deadlines are absolute epoch milliseconds, 0 meaning none.
+public class Deadline {
+	private static final ThreadLocal<Long> CURRENT = ThreadLocal.withInitial(() -> 0L);
+
+	public static long current() {
+		return CURRENT.get();
+	}
+
+	// Returns the previous deadline so callers can restore it
+	public static long set(long deadline) {
+		long previous = CURRENT.get();
+		CURRENT.set(deadline);
+		return previous;
+	}
+
+	// The earlier of two deadlines, treating 0 as none
+	public static long earliest(long a, long b) {
+		if (a == 0) {
+			return b;
+		}
+		return b == 0 ? a : Math.min(a, b);
+	}
+
+	public static long remainingMillis(long deadline) {
+		return deadline == 0 ? Long.MAX_VALUE : deadline - System.currentTimeMillis();
+	}
+}
@@ -0,0 +1,139 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Protects callers from a slow or failing receiver. Requests in flight are capped by a limit that follows the
+// ratio of long-term to recent latency: it grows while responses are as fast as usual and shrinks once they
+// slow down (the receiver is queueing) or fail. After repeated failures the circuit opens and requests fail
+// fast until a single probe is let through; its success closes the circuit again. Shared by every Client in
+// the process, one per receiver.
+public class DependencyGuard {
+	public enum State {
+		CLOSED,
+		OPEN,
+		HALF_OPEN
+	}
+
+	private static final double INITIAL_LIMIT = 20;
+	private static final double MIN_LIMIT = 2;
+	private static final double MAX_LIMIT = 200;
+	// Recent latency up to this multiple of the long-term average counts as uncongested
+	private static final double LATENCY_TOLERANCE = 1.5;
+	private static final double SHORT_RTT_WEIGHT = 0.1;
+	private static final double LONG_RTT_WEIGHT = 1.0 / 600;
+	// How far each sample moves the limit towards its new estimate
+	private static final double LIMIT_SMOOTHING = 0.2;
+	private static final double FAILURE_BACKOFF = 0.5;
+	private static final int FAILURES_TO_OPEN = 5;
+	private static final long OPEN_MILLIS = 5000;
+
+	private static final Map<String, DependencyGuard> GUARDS = new ConcurrentHashMap<>();
+
+	private final String receiverId;
+	private double limit = INITIAL_LIMIT;
+	private int inFlight;
+	private double shortRttNanos;
+	private double longRttNanos;
+	private State state = State.CLOSED;
+	private int consecutiveFailures;
+	private long openUntil;
+	private boolean probeInFlight;
+	private long rejected;
+	private long opened;
+
+	public static DependencyGuard of(String receiverId) {
+		return GUARDS.computeIfAbsent(receiverId, DependencyGuard::new);
+	}
+
+	private DependencyGuard(String receiverId) {
+		this.receiverId = receiverId;
+		String prefix = "client." + receiverId + ".guard.";
+		RpcMetrics.gauge(prefix + "state", () -> getState().name());
+		RpcMetrics.gauge(prefix + "limit", () -> (double) getLimit());
+		RpcMetrics.gauge(prefix + "in_flight", () -> (double) getInFlight());
+		RpcMetrics.gauge(prefix + "rejected", () -> (double) getRejectedCount());
+		RpcMetrics.gauge(prefix + "opened", () -> (double) getOpenedCount());
+	}
+
+	// Returns null if the request may go ahead, and must then be followed by exactly one onSuccess, onFailure or
+	// onIgnored; otherwise the reason it was rejected
+	public synchronized String tryAcquire() {
+		if (state == State.OPEN && System.currentTimeMillis() >= openUntil) {
+			state = State.HALF_OPEN;
+		}
+		if (state != State.CLOSED) {
+			if (state == State.OPEN || probeInFlight) {
+				rejected++;
+				return receiverId + " is unavailable (circuit open)";
+			}
+			probeInFlight = true;
+		} else if (inFlight >= (int) limit) {
+			rejected++;
+			return "Too many requests in flight to " + receiverId + " (limit " + (int) limit + ")";
+		}
+		inFlight++;
+		return null;
+	}
+
+	public synchronized void onSuccess(long rttNanos) {
+		inFlight--;
+		probeInFlight = false;
+		consecutiveFailures = 0;
+		state = State.CLOSED;
+		if (longRttNanos == 0) {
+			shortRttNanos = rttNanos;
+			longRttNanos = rttNanos;
+		} else {
+			shortRttNanos += (rttNanos - shortRttNanos) * SHORT_RTT_WEIGHT;
+			longRttNanos += (rttNanos - longRttNanos) * LONG_RTT_WEIGHT;
+			// Let the average come down quickly after a slow period instead of treating normal latency as fast
+			if (longRttNanos > shortRttNanos * 2) {
+				longRttNanos *= 0.95;
+			}
+		}
+		// Only a caller that actually uses the limit learns anything about a bigger one
+		if (inFlight + 1 < limit / 2) {
+			return;
+		}
+		double gradient = Math.max(0.5, Math.min(1.0, LATENCY_TOLERANCE * longRttNanos / shortRttNanos));
+		double estimate = limit * gradient + Math.sqrt(limit);
+		limit = Math.max(MIN_LIMIT, Math.min(MAX_LIMIT, limit + (estimate - limit) * LIMIT_SMOOTHING));
+	}
+
+	public synchronized void onFailure() {
+		inFlight--;
+		probeInFlight = false;
+		limit = Math.max(MIN_LIMIT, limit * FAILURE_BACKOFF);
+		consecutiveFailures++;
+		if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= FAILURES_TO_OPEN)) {
+			state = State.OPEN;
+			openUntil = System.currentTimeMillis() + OPEN_MILLIS;
+			opened++;
+		}
+	}
+
+	// For requests that ended without saying anything about the receiver, e.g. cancelled by the caller
+	public synchronized void onIgnored() {
+		inFlight--;
+		probeInFlight = false;
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	public synchronized int getLimit() {
+		return (int) limit;
+	}
+
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	public synchronized long getRejectedCount() {
+		return rejected;
+	}
+
+	public synchronized long getOpenedCount() {
+		return opened;
+	}
+}
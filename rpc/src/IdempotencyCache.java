@@ -0,0 +1,125 @@
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+// Responses by sender and idempotency key, so a retried request gets the original response instead of running
+// twice. A duplicate that arrives while the original is still running waits for it. Entries are evicted oldest
+// first once there are too many or they have outlived the TTL.
+public class IdempotencyCache {
+	public static final int DEFAULT_MAX_ENTRIES = 10_000;
+	public static final long DEFAULT_TTL_MILLIS = 10 * 60_000;
+
+	private final int maxEntries;
+	private final long ttlMillis;
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+	// Insertion order, which is also expiry order
+	private final Queue<Entry> order = new ConcurrentLinkedQueue<>();
+	private final AtomicLong hits = new AtomicLong();
+
+	private static class Entry {
+		private final String key;
+		private final long expiresAt;
+		private final CompletableFuture<Message> response = new CompletableFuture<>();
+
+		private Entry(String key, long expiresAt) {
+			this.key = key;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	public IdempotencyCache() {
+		this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MILLIS);
+	}
+
+	public IdempotencyCache(int maxEntries, long ttlMillis) {
+		this.maxEntries = maxEntries;
+		this.ttlMillis = ttlMillis;
+	}
+
+	// Runs handler unless the key has been seen, in which case a copy of the earlier response is returned. Returns
+	// null if the original is still running when the current request's deadline passes. ERROR responses and
+	// handlers that throw are not remembered, so those requests can be tried again.
+	public Message execute(String senderId, String idempotencyKey, Supplier<Message> handler) {
+		String key = senderId + ":" + idempotencyKey;
+		long now = System.currentTimeMillis();
+		evict(now);
+		Entry entry = new Entry(key, now + ttlMillis);
+		Entry existing = entries.putIfAbsent(key, entry);
+		if (existing != null && existing.expiresAt <= now && existing.response.isDone()
+				&& entries.replace(key, existing, entry)) {
+			existing = null;
+		}
+		if (existing == null) {
+			order.add(entry);
+			try {
+				Message response = handler.get();
+				if (response.getMessageType() == Message.Type.ERROR) {
+					entries.remove(key, entry);
+				}
+				entry.response.complete(response);
+				return response;
+			} catch (RuntimeException e) {
+				entries.remove(key, entry);
+				entry.response.completeExceptionally(e);
+				throw e;
+			}
+		}
+
+		hits.incrementAndGet();
+		try {
+			long remaining = Deadline.remainingMillis(Deadline.current());
+			Message response = remaining == Long.MAX_VALUE ? existing.response.get()
+					: existing.response.get(Math.max(0, remaining), TimeUnit.MILLISECONDS);
+			return response.copy();
+		} catch (TimeoutException e) {
+			return null;
+		} catch (ExecutionException e) {
+			// The original failed without a response; this request runs it again
+			return execute(senderId, idempotencyKey, handler);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	// Entries already removed (ERROR responses, failures, replaced after expiry) are dropped from the queue as they
+	// reach its head. Requests still in flight are never evicted; they go to the back of the queue instead, so
+	// a slow request does not hold up eviction behind it.
+	private synchronized void evict(long now) {
+		int requeued = 0;
+		Entry oldest;
+		while ((oldest = order.peek()) != null) {
+			boolean live = entries.get(oldest.key) == oldest;
+			if (live && entries.size() <= maxEntries && oldest.expiresAt > now) {
+				break;
+			}
+			order.poll();
+			if (!live) {
+				continue;
+			}
+			if (!oldest.response.isDone()) {
+				order.add(oldest);
+				if (++requeued >= entries.size()) {
+					break;
+				}
+				continue;
+			}
+			entries.remove(oldest.key, oldest);
+		}
+	}
+}
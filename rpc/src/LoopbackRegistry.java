@@ -0,0 +1,20 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Handlers of the servers running in this JVM, by system ID. Client calls a registered handler directly instead
+// of going through a socket and the codec when the receiver lives in the same process.
+public class LoopbackRegistry {
+	private static final Map<String, MessageHandler> HANDLERS = new ConcurrentHashMap<>();
+
+	public static void register(String systemId, MessageHandler handler) {
+		HANDLERS.put(systemId, handler);
+	}
+
+	public static void unregister(String systemId, MessageHandler handler) {
+		HANDLERS.remove(systemId, handler);
+	}
+
+	public static MessageHandler lookup(String systemId) {
+		return systemId == null ? null : HANDLERS.get(systemId);
+	}
+}
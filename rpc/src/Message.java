@@ -1,5 +1,8 @@
 import java.io.Serializable;
+import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class Message implements Serializable {
@@ -9,6 +12,8 @@ public class Message implements Serializable {
 	private Type messageType;
 	private Map<String, Object> payload;
 	private String correlationId;
+	// Absolute epoch milliseconds after which the sender no longer wants a response, 0 for none
+	private long deadline;
 
 	public enum Type {
 		DEPOSIT,
@@ -23,9 +28,16 @@ public class Message implements Serializable {
 		SIGNUP,
 		SUCCESS,
 		DECLINED,
-		ERROR
+		ERROR,
+		BATCH,
+		METRICS,
+		CHECK_CONSISTENCY
 	}
 
+	public static final String BATCH_MESSAGES_KEY = "messages";
+	public static final String BATCH_ATOMIC_KEY = "atomic";
+	public static final String IDEMPOTENCY_KEY = "idempotencyKey";
+
 	public Message(String senderId, String receiverId, Type messageType, Map<String, Object> payload) {
 		this.senderId = senderId;
 		this.receiverId = receiverId;
@@ -37,6 +49,36 @@ public class Message implements Serializable {
 		this.payload = new HashMap<>();
 	}
 
+	// An envelope carrying several requests (or, in a response, their responses in the same order)
+	public static Message batch(String senderId, String receiverId, List<Message> messages, boolean atomic) {
+		Message batch = new Message(senderId, receiverId, Type.BATCH, new HashMap<>());
+		batch.addData(BATCH_MESSAGES_KEY, new ArrayList<>(messages));
+		batch.addData(BATCH_ATOMIC_KEY, atomic);
+		return batch;
+	}
+
+	// Copies the payload map and any batched messages; payload values themselves are shared
+	public Message copy() {
+		Message copy = new Message(senderId, receiverId, messageType, payload != null ? new HashMap<>() : null);
+		copy.setCorrelationId(correlationId);
+		copy.setDeadline(deadline);
+		if (payload != null) {
+			for (Map.Entry<String, Object> entry : payload.entrySet()) {
+				Object value = entry.getValue();
+				if (value instanceof List && !((List<?>) value).isEmpty()
+						&& ((List<?>) value).get(0) instanceof Message) {
+					List<Message> messages = new ArrayList<>();
+					for (Object message : (List<?>) value) {
+						messages.add(((Message) message).copy());
+					}
+					value = messages;
+				}
+				copy.payload.put(entry.getKey(), value);
+			}
+		}
+		return copy;
+	}
+
 	public String getSenderId() {
 		return senderId;
 	}
@@ -73,6 +115,18 @@ public class Message implements Serializable {
 		this.correlationId = correlationId;
 	}
 
+	public long getDeadline() {
+		return deadline;
+	}
+
+	public void setDeadline(long deadline) {
+		this.deadline = deadline;
+	}
+
+	public boolean isExpired() {
+		return deadline != 0 && System.currentTimeMillis() >= deadline;
+	}
+
 	public void addData(String key, Object value) {
 		if (payload == null) {
 			payload = new HashMap<>();
@@ -83,4 +137,62 @@ public class Message implements Serializable {
 	public Object getData(String key) {
 		return payload != null ? payload.get(key) : null;
 	}
+
+	// Typed lookups for required payload values; a missing or mistyped value is a bad request, not a crash
+	public String getString(String key) {
+		Object value = getData(key);
+		if (!(value instanceof String)) {
+			throw new IllegalArgumentException(describe(key, value, "text"));
+		}
+		return (String) value;
+	}
+
+	public double getDouble(String key) {
+		Object value = getData(key);
+		if (!(value instanceof Number)) {
+			throw new IllegalArgumentException(describe(key, value, "a number"));
+		}
+		return ((Number) value).doubleValue();
+	}
+
+	public int getInt(String key) {
+		Object value = getData(key);
+		if (!(value instanceof Number)) {
+			throw new IllegalArgumentException(describe(key, value, "a number"));
+		}
+		return ((Number) value).intValue();
+	}
+
+	// Dates may be absent, e.g. the paid date of an unpaid bill
+	public LocalDate getDate(String key) {
+		Object value = getData(key);
+		if (value != null && !(value instanceof LocalDate)) {
+			throw new IllegalArgumentException(describe(key, value, "a date"));
+		}
+		return (LocalDate) value;
+	}
+
+	private static String describe(String key, Object value, String expected) {
+		return value == null ? "Missing " + key : key + " must be " + expected;
+	}
+
+	@SuppressWarnings("unchecked")
+	public List<Message> getBatch() {
+		Object messages = getData(BATCH_MESSAGES_KEY);
+		return messages instanceof List ? (List<Message>) messages : List.of();
+	}
+
+	// Identifies a request across retries; receivers answer a repeated key with the original response
+	public String getIdempotencyKey() {
+		Object key = getData(IDEMPOTENCY_KEY);
+		return key instanceof String ? (String) key : null;
+	}
+
+	public void setIdempotencyKey(String key) {
+		addData(IDEMPOTENCY_KEY, key);
+	}
+
+	public boolean isAtomicBatch() {
+		return Boolean.TRUE.equals(getData(BATCH_ATOMIC_KEY));
+	}
 }
@@ -0,0 +1,185 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+
+// Length-prefixed binary encoding of a Message:
+// [int frameLength][byte type][str sender][str receiver][str correlationId][long deadline][int count]
+// {[str key][byte tag][value]}*
+// Types are written by ordinal, so new Message.Type constants must only ever be appended.
+public class MessageCodec {
+	public static final int MAGIC = 0x52504331; // "RPC1"
+	public static final byte VERSION = 2;
+	// Longer frames are refused before anything is allocated for them
+	public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+	static final byte TAG_NULL = 0;
+	static final byte TAG_STRING = 1;
+	static final byte TAG_DOUBLE = 2;
+	static final byte TAG_INT = 3;
+	static final byte TAG_DATE = 4;
+	static final byte TAG_OBJECT = 5;
+	static final byte TAG_BOOLEAN = 6;
+	static final byte TAG_MESSAGES = 7;
+
+	static final byte NO_TYPE = -1;
+	static final int NULL_LENGTH = -1;
+
+	private static final Message.Type[] TYPES = Message.Type.values();
+	private static final int INITIAL_BUFFER_SIZE = 512;
+
+	public static ByteBuffer allocate() {
+		return ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+	}
+
+	// Encodes the message into buffer, returning either buffer or a larger replacement, flipped for reading
+	public static ByteBuffer encode(Message message, ByteBuffer buffer) throws IOException {
+		while (true) {
+			buffer.clear();
+			try {
+				buffer.putInt(0);
+				writeBody(message, buffer);
+				buffer.putInt(0, buffer.position() - Integer.BYTES);
+				buffer.flip();
+				return buffer;
+			} catch (BufferOverflowException e) {
+				buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+			}
+		}
+	}
+
+	public static Message decode(ByteBuffer frame) throws IOException {
+		MessageReader reader = new MessageReader();
+		reader.wrap(frame);
+		return reader.toMessage();
+	}
+
+	static Message.Type typeOf(byte ordinal) throws IOException {
+		if (ordinal == NO_TYPE) {
+			return null;
+		}
+		if (ordinal < 0 || ordinal >= TYPES.length) {
+			throw new IOException("Unknown message type: " + ordinal);
+		}
+		return TYPES[ordinal];
+	}
+
+	private static void writeBody(Message message, ByteBuffer buffer) throws IOException {
+		Message.Type type = message.getMessageType();
+		buffer.put(type == null ? NO_TYPE : (byte) type.ordinal());
+		writeString(message.getSenderId(), buffer);
+		writeString(message.getReceiverId(), buffer);
+		writeString(message.getCorrelationId(), buffer);
+		buffer.putLong(message.getDeadline());
+
+		Map<String, Object> payload = message.getPayload();
+		if (payload == null) {
+			buffer.putInt(0);
+			return;
+		}
+		buffer.putInt(payload.size());
+		for (Map.Entry<String, Object> entry : payload.entrySet()) {
+			writeString(entry.getKey(), buffer);
+			writeValue(entry.getValue(), buffer);
+		}
+	}
+
+	private static void writeValue(Object value, ByteBuffer buffer) throws IOException {
+		if (value == null) {
+			buffer.put(TAG_NULL);
+		} else if (value instanceof String) {
+			buffer.put(TAG_STRING);
+			writeString((String) value, buffer);
+		} else if (value instanceof Double) {
+			buffer.put(TAG_DOUBLE);
+			buffer.putDouble((Double) value);
+		} else if (value instanceof Integer) {
+			buffer.put(TAG_INT);
+			buffer.putInt((Integer) value);
+		} else if (value instanceof LocalDate) {
+			buffer.put(TAG_DATE);
+			buffer.putInt((int) ((LocalDate) value).toEpochDay());
+		} else if (value instanceof Boolean) {
+			buffer.put(TAG_BOOLEAN);
+			buffer.put((byte) ((Boolean) value ? 1 : 0));
+		} else if (isMessageList(value)) {
+			// Batched messages are nested as length-prefixed bodies
+			List<?> messages = (List<?>) value;
+			buffer.put(TAG_MESSAGES);
+			buffer.putInt(messages.size());
+			for (Object message : messages) {
+				int lengthPosition = buffer.position();
+				buffer.putInt(0);
+				writeBody((Message) message, buffer);
+				buffer.putInt(lengthPosition, buffer.position() - lengthPosition - Integer.BYTES);
+			}
+		} else if (value instanceof Serializable) {
+			// Anything without a compact tag still travels, just at serialization cost
+			byte[] bytes = serialize(value);
+			buffer.put(TAG_OBJECT);
+			buffer.putInt(bytes.length);
+			buffer.put(bytes);
+		} else {
+			throw new IOException("Unsupported payload value: " + value.getClass().getName());
+		}
+	}
+
+	private static boolean isMessageList(Object value) {
+		if (!(value instanceof List)) {
+			return false;
+		}
+		for (Object element : (List<?>) value) {
+			if (!(element instanceof Message)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	static void writeString(String value, ByteBuffer buffer) {
+		if (value == null) {
+			buffer.putInt(NULL_LENGTH);
+			return;
+		}
+		int length = value.length();
+		int lengthPosition = buffer.position();
+		buffer.putInt(length);
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if (c >= 0x80) {
+				// Non-ASCII: rewind and fall back to a full UTF-8 encode
+				buffer.position(lengthPosition);
+				byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+				buffer.putInt(bytes.length);
+				buffer.put(bytes);
+				return;
+			}
+			buffer.put((byte) c);
+		}
+	}
+
+	static Object readObject(ByteBuffer buffer, int offset, int length) throws IOException {
+		try (ObjectInputStream in = new ObjectInputStream(
+				new ByteArrayInputStream(buffer.array(), buffer.arrayOffset() + offset, length))) {
+			return in.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Unknown payload class: " + e.getMessage());
+		}
+	}
+
+	private static byte[] serialize(Object value) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(value);
+		}
+		return bytes.toByteArray();
+	}
+}
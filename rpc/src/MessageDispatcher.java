@@ -0,0 +1,37 @@
+import java.util.function.Function;
+
+// Routes requests by type through a table indexed by the type's ordinal. Each route reads the payload into a
+// typed request once, so handlers work with plain fields instead of looking up and casting payload values. The
+// payload map is still built when the frame is decoded; the record is read from it, not from the wire.
+public class MessageDispatcher {
+	public interface Handler<T> {
+		// Fills in the response, which already carries the sender, receiver and correlation ID
+		void handle(T request, Message response) throws Exception;
+	}
+
+	private interface Route {
+		void handle(Message request, Message response) throws Exception;
+	}
+
+	private final Route[] routes = new Route[Message.Type.values().length];
+
+	public <T> void register(Message.Type type, Function<Message, T> decoder, Handler<T> handler) {
+		routes[type.ordinal()] = (request, response) -> handler.handle(decoder.apply(request), response);
+	}
+
+	// For requests handled as a whole, such as batches
+	public void register(Message.Type type, Handler<Message> handler) {
+		routes[type.ordinal()] = handler::handle;
+	}
+
+	// Returns false if no route is registered for the request's type
+	public boolean dispatch(Message request, Message response) throws Exception {
+		Message.Type type = request.getMessageType();
+		Route route = type != null ? routes[type.ordinal()] : null;
+		if (route == null) {
+			return false;
+		}
+		route.handle(request, response);
+		return true;
+	}
+}
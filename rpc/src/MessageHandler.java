@@ -0,0 +1,3 @@
+interface MessageHandler {
+	Message handleMessage(Message message);
+}
@@ -0,0 +1,222 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+// Flyweight view over one encoded frame body. A single instance is re-wrapped for every frame read
+// from a connection, and payload values can be looked up without materializing a Message.
+public class MessageReader {
+	private ByteBuffer buffer;
+	private int typePosition;
+	private int senderPosition;
+	private int receiverPosition;
+	private int correlationPosition;
+	private int deadlinePosition;
+	private int payloadPosition;
+
+	// frame must be a heap buffer positioned at the start of the body and limited to its end
+	public MessageReader wrap(ByteBuffer frame) {
+		this.buffer = frame;
+		this.typePosition = frame.position();
+		this.senderPosition = typePosition + 1;
+		this.receiverPosition = skipString(senderPosition);
+		this.correlationPosition = skipString(receiverPosition);
+		this.deadlinePosition = skipString(correlationPosition);
+		this.payloadPosition = deadlinePosition + Long.BYTES;
+		return this;
+	}
+
+	public Message.Type getMessageType() throws IOException {
+		return MessageCodec.typeOf(buffer.get(typePosition));
+	}
+
+	public String getSenderId() {
+		return readString(senderPosition);
+	}
+
+	public String getReceiverId() {
+		return readString(receiverPosition);
+	}
+
+	public String getCorrelationId() {
+		return readString(correlationPosition);
+	}
+
+	public long getDeadline() {
+		return buffer.getLong(deadlinePosition);
+	}
+
+	public int getPayloadSize() {
+		return buffer.getInt(payloadPosition);
+	}
+
+	public boolean has(String key) throws IOException {
+		return find(key) >= 0;
+	}
+
+	public double getDouble(String key) throws IOException {
+		int position = find(key);
+		if (position < 0 || buffer.get(position) != MessageCodec.TAG_DOUBLE) {
+			throw new IOException("No double value for " + key);
+		}
+		return buffer.getDouble(position + 1);
+	}
+
+	public int getInt(String key) throws IOException {
+		int position = find(key);
+		if (position < 0 || buffer.get(position) != MessageCodec.TAG_INT) {
+			throw new IOException("No int value for " + key);
+		}
+		return buffer.getInt(position + 1);
+	}
+
+	public String getString(String key) throws IOException {
+		int position = find(key);
+		if (position < 0 || buffer.get(position) == MessageCodec.TAG_NULL) {
+			return null;
+		}
+		if (buffer.get(position) != MessageCodec.TAG_STRING) {
+			throw new IOException("No string value for " + key);
+		}
+		return readString(position + 1);
+	}
+
+	public Object get(String key) throws IOException {
+		int position = find(key);
+		return position < 0 ? null : readValue(position);
+	}
+
+	public Message toMessage() throws IOException {
+		Message message = new Message();
+		message.setMessageType(getMessageType());
+		message.setSenderId(getSenderId());
+		message.setReceiverId(getReceiverId());
+		message.setCorrelationId(getCorrelationId());
+		message.setDeadline(getDeadline());
+
+		int count = getPayloadSize();
+		int position = payloadPosition + Integer.BYTES;
+		for (int i = 0; i < count; i++) {
+			String key = readString(position);
+			position = skipString(position);
+			message.addData(key, readValue(position));
+			position = skipValue(position);
+		}
+		return message;
+	}
+
+	// Returns the position of the value tag for key, or -1
+	private int find(String key) throws IOException {
+		int count = getPayloadSize();
+		int position = payloadPosition + Integer.BYTES;
+		for (int i = 0; i < count; i++) {
+			if (keyEquals(position, key)) {
+				return skipString(position);
+			}
+			position = skipValue(skipString(position));
+		}
+		return -1;
+	}
+
+	private boolean keyEquals(int position, String key) {
+		int length = buffer.getInt(position);
+		if (length != key.length()) {
+			// A non-ASCII key may still match with a different byte count
+			return length > 0 && key.equals(readString(position));
+		}
+		for (int i = 0; i < length; i++) {
+			char c = key.charAt(i);
+			if (c >= 0x80) {
+				return key.equals(readString(position));
+			}
+			if (buffer.get(position + Integer.BYTES + i) != (byte) c) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private Object readValue(int position) throws IOException {
+		byte tag = buffer.get(position);
+		switch (tag) {
+			case MessageCodec.TAG_NULL:
+				return null;
+			case MessageCodec.TAG_STRING:
+				return readString(position + 1);
+			case MessageCodec.TAG_DOUBLE:
+				return buffer.getDouble(position + 1);
+			case MessageCodec.TAG_INT:
+				return buffer.getInt(position + 1);
+			case MessageCodec.TAG_DATE:
+				return LocalDate.ofEpochDay(buffer.getInt(position + 1));
+			case MessageCodec.TAG_OBJECT:
+				return MessageCodec.readObject(buffer, position + 1 + Integer.BYTES, buffer.getInt(position + 1));
+			case MessageCodec.TAG_BOOLEAN:
+				return buffer.get(position + 1) != 0;
+			case MessageCodec.TAG_MESSAGES:
+				return readMessages(position + 1);
+			default:
+				throw new IOException("Unknown payload tag: " + tag);
+		}
+	}
+
+	private int skipValue(int position) throws IOException {
+		byte tag = buffer.get(position);
+		switch (tag) {
+			case MessageCodec.TAG_NULL:
+				return position + 1;
+			case MessageCodec.TAG_STRING:
+				return skipString(position + 1);
+			case MessageCodec.TAG_DOUBLE:
+				return position + 1 + Double.BYTES;
+			case MessageCodec.TAG_INT:
+			case MessageCodec.TAG_DATE:
+				return position + 1 + Integer.BYTES;
+			case MessageCodec.TAG_OBJECT:
+				return position + 1 + Integer.BYTES + buffer.getInt(position + 1);
+			case MessageCodec.TAG_BOOLEAN:
+				return position + 2;
+			case MessageCodec.TAG_MESSAGES: {
+				int count = buffer.getInt(position + 1);
+				int next = position + 1 + Integer.BYTES;
+				for (int i = 0; i < count; i++) {
+					next += Integer.BYTES + buffer.getInt(next);
+				}
+				return next;
+			}
+			default:
+				throw new IOException("Unknown payload tag: " + tag);
+		}
+	}
+
+	private List<Message> readMessages(int position) throws IOException {
+		int count = buffer.getInt(position);
+		List<Message> messages = new ArrayList<>(count);
+		MessageReader nested = new MessageReader();
+		int next = position + Integer.BYTES;
+		for (int i = 0; i < count; i++) {
+			int length = buffer.getInt(next);
+			ByteBuffer body = buffer.duplicate();
+			body.limit(next + Integer.BYTES + length).position(next + Integer.BYTES);
+			messages.add(nested.wrap(body).toMessage());
+			next += Integer.BYTES + length;
+		}
+		return messages;
+	}
+
+	private String readString(int position) {
+		int length = buffer.getInt(position);
+		if (length == MessageCodec.NULL_LENGTH) {
+			return null;
+		}
+		return new String(buffer.array(), buffer.arrayOffset() + position + Integer.BYTES, length,
+				StandardCharsets.UTF_8);
+	}
+
+	private int skipString(int position) {
+		int length = buffer.getInt(position);
+		return position + Integer.BYTES + Math.max(length, 0);
+	}
+}
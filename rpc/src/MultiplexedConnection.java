@@ -0,0 +1,107 @@
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Client side of a pipelined connection: any number of requests can be written before their responses
+// arrive, and a reader thread completes each caller's future by the response's correlationId
+public class MultiplexedConnection {
+	private static final int RETIRED = -1;
+
+	private final RpcConnection connection;
+	private final Map<String, CompletableFuture<Message>> pending = new ConcurrentHashMap<>();
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	public MultiplexedConnection(RpcConnection connection, String name) {
+		this.connection = connection;
+		Thread reader = new Thread(this::readLoop, name);
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	public CompletableFuture<Message> send(Message message) throws IOException {
+		String correlationId = message.getCorrelationId();
+		CompletableFuture<Message> future = new CompletableFuture<>();
+		pending.put(correlationId, future);
+		try {
+			connection.write(message);
+		} catch (IOException e) {
+			pending.remove(correlationId);
+			close();
+			throw e;
+		}
+		// Drop abandoned requests so a late response is simply discarded
+		future.whenComplete((response, failure) -> pending.remove(correlationId, future));
+		return future;
+	}
+
+	// Claims a slot for one request; fails once the connection has been retired by idle eviction
+	public boolean tryReserve() {
+		while (true) {
+			int current = inFlight.get();
+			if (current == RETIRED || !connection.isOpen()) {
+				return false;
+			}
+			if (inFlight.compareAndSet(current, current + 1)) {
+				return true;
+			}
+		}
+	}
+
+	public void release() {
+		inFlight.decrementAndGet();
+	}
+
+	public boolean retireIfIdle(long cutoff) {
+		if (connection.getLastUsed() < cutoff && inFlight.compareAndSet(0, RETIRED)) {
+			close();
+			return true;
+		}
+		return false;
+	}
+
+	public int getInFlight() {
+		return Math.max(inFlight.get(), 0);
+	}
+
+	public boolean isOpen() {
+		return connection.isOpen() && inFlight.get() != RETIRED;
+	}
+
+	public boolean isBinary() {
+		return connection.isBinary();
+	}
+
+	public void close() {
+		connection.close();
+	}
+
+	private void readLoop() {
+		try {
+			while (true) {
+				Message response = connection.read();
+				CompletableFuture<Message> future = response.getCorrelationId() != null
+						? pending.remove(response.getCorrelationId())
+						: removeOnlyPending();
+				if (future != null) {
+					future.complete(response);
+				}
+			}
+		} catch (IOException | ClassNotFoundException e) {
+			close();
+			IOException failure = new IOException("Connection closed with requests in flight", e);
+			pending.values().forEach(future -> future.completeExceptionally(failure));
+			pending.clear();
+		}
+	}
+
+	// Peers that do not echo correlation IDs can only ever have one request outstanding
+	private CompletableFuture<Message> removeOnlyPending() {
+		if (pending.size() != 1) {
+			return null;
+		}
+		String correlationId = pending.keySet().iterator().next();
+		return pending.remove(correlationId);
+	}
+}
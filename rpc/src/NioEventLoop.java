@@ -0,0 +1,352 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+// One selector thread of the NIO server. It frames binary codec requests off its channels, hands decoded
+// Messages to the admission queues and writes the encoded responses back once the workers are done.
+public class NioEventLoop implements Runnable {
+	private static final int HANDSHAKE_LENGTH = Integer.BYTES + 1;
+
+	private final String name;
+	private final AdmissionController admission;
+	private final LatencyHistogram[][] histograms;
+	private final BiConsumer<SocketChannel, InputStream> legacyHandoff;
+	private final Selector selector;
+	private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+	private final Queue<Session> pendingWrites = new ConcurrentLinkedQueue<>();
+	private final List<Session> handoffs = new ArrayList<>();
+	private volatile boolean running = true;
+
+	private NioEventLoop[] group;
+	private final AtomicInteger nextLoop = new AtomicInteger();
+
+	private static final ThreadLocal<ByteBuffer> ENCODE_BUFFER = ThreadLocal.withInitial(MessageCodec::allocate);
+
+	// histograms are the server's per type and stage histograms, see RpcMetrics.serverHistograms. legacyHandoff
+	// takes over serialization connections as a blocking channel plus the bytes already read from it.
+	public NioEventLoop(String name, AdmissionController admission, LatencyHistogram[][] histograms,
+			BiConsumer<SocketChannel, InputStream> legacyHandoff) throws IOException {
+		this.name = name;
+		this.admission = admission;
+		this.histograms = histograms;
+		this.legacyHandoff = legacyHandoff;
+		this.selector = Selector.open();
+	}
+
+	// Accept on this loop and spread the accepted channels over the group
+	public void accept(ServerSocketChannel serverChannel, NioEventLoop[] group) throws IOException {
+		this.group = group;
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	public void register(SocketChannel channel) {
+		pendingChannels.add(channel);
+		selector.wakeup();
+	}
+
+	public void shutdown() {
+		running = false;
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		Thread.currentThread().setName(name);
+		try {
+			while (running) {
+				selector.select();
+				registerPending();
+				flushPending();
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					try {
+						if (key.isAcceptable()) {
+							acceptConnection((ServerSocketChannel) key.channel());
+							continue;
+						}
+						Session session = (Session) key.attachment();
+						if (key.isReadable()) {
+							session.read();
+						}
+						if (key.isValid() && key.isWritable()) {
+							session.flush();
+						}
+					} catch (IOException e) {
+						closeKey(key);
+					} catch (RuntimeException e) {
+						// A frame that does not decode ends its own connection, not the loop
+						System.err.println("Closing connection after bad request: " + e);
+						closeKey(key);
+					}
+				}
+				completeHandoffs();
+			}
+		} catch (IOException | ClosedSelectorException e) {
+			if (running) {
+				System.err.println("Event loop " + name + " failed: " + e.getMessage());
+			}
+		} finally {
+			for (SelectionKey key : selector.keys()) {
+				closeKey(key);
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				System.err.println("Error closing selector: " + e.getMessage());
+			}
+		}
+	}
+
+	private void acceptConnection(ServerSocketChannel serverChannel) throws IOException {
+		SocketChannel channel;
+		while ((channel = serverChannel.accept()) != null) {
+			NioEventLoop loop = group[Math.floorMod(nextLoop.getAndIncrement(), group.length)];
+			if (loop == this) {
+				registerChannel(channel);
+			} else {
+				loop.register(channel);
+			}
+		}
+	}
+
+	private void registerPending() {
+		SocketChannel channel;
+		while ((channel = pendingChannels.poll()) != null) {
+			try {
+				registerChannel(channel);
+			} catch (IOException e) {
+				System.err.println("Error registering connection: " + e.getMessage());
+				closeQuietly(channel);
+			}
+		}
+	}
+
+	private void registerChannel(SocketChannel channel) throws IOException {
+		channel.configureBlocking(false);
+		// Unix domain channels have neither option
+		if (channel.supportedOptions().contains(StandardSocketOptions.TCP_NODELAY)) {
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+		}
+		SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+		key.attach(new Session(channel, key));
+	}
+
+	private void flushPending() {
+		Session session;
+		while ((session = pendingWrites.poll()) != null) {
+			try {
+				session.flush();
+			} catch (IOException e) {
+				closeKey(session.key);
+			}
+		}
+	}
+
+	// Connections that spoke Java serialization are moved to a blocking handler thread once
+	// their key has been deregistered, which takes one more select on this selector; if that select fails they wait
+	// for the next pass
+	private void completeHandoffs() {
+		if (handoffs.isEmpty()) {
+			return;
+		}
+		try {
+			selector.selectNow();
+		} catch (IOException e) {
+			System.err.println("Error deregistering connections to hand off: " + e.getMessage());
+			return;
+		}
+		for (Session session : handoffs) {
+			try {
+				session.channel.configureBlocking(true);
+				legacyHandoff.accept(session.channel,
+						new ByteArrayInputStream(session.readBuffer.array(), 0, session.readBuffer.position()));
+			} catch (IOException e) {
+				System.err.println("Error handing off connection: " + e.getMessage());
+				closeQuietly(session.channel);
+			}
+		}
+		handoffs.clear();
+	}
+
+	private void closeKey(SelectionKey key) {
+		key.cancel();
+		closeQuietly(key.channel());
+	}
+
+	private void record(Message.Type type, RpcMetrics.Stage stage, long nanos) {
+		if (type != null) {
+			histograms[type.ordinal()][stage.ordinal()].record(nanos);
+		}
+	}
+
+	private static void closeQuietly(java.nio.channels.Channel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			System.err.println("Error closing connection: " + e.getMessage());
+		}
+	}
+
+	private class Session {
+		private final SocketChannel channel;
+		private final SelectionKey key;
+		private final MessageReader reader = new MessageReader();
+		private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+		private final Queue<ByteBuffer> inFlight = new ArrayDeque<>();
+		private ByteBuffer readBuffer = MessageCodec.allocate();
+		private boolean handshakeDone;
+
+		private Session(SocketChannel channel, SelectionKey key) {
+			this.channel = channel;
+			this.key = key;
+		}
+
+		private void read() throws IOException {
+			if (!readBuffer.hasRemaining()) {
+				readBuffer = grow(readBuffer, readBuffer.capacity() * 2);
+			}
+			int read = channel.read(readBuffer);
+			if (read < 0) {
+				throw new IOException("Connection closed by peer");
+			}
+			readBuffer.flip();
+			try {
+				if (!handshakeDone && !handshake()) {
+					return;
+				}
+				while (readFrame()) {
+					// keep framing until the buffer runs dry
+				}
+			} finally {
+				if (key.isValid()) {
+					readBuffer.compact();
+				}
+			}
+		}
+
+		private boolean handshake() throws IOException {
+			if (readBuffer.remaining() < Integer.BYTES) {
+				return false;
+			}
+			if (readBuffer.getInt(readBuffer.position()) != MessageCodec.MAGIC) {
+				// Not a binary client: leave the bytes in place for the serialization handler
+				readBuffer.position(readBuffer.limit());
+				readBuffer.limit(readBuffer.capacity());
+				key.cancel();
+				handoffs.add(this);
+				return false;
+			}
+			if (readBuffer.remaining() < HANDSHAKE_LENGTH) {
+				return false;
+			}
+			readBuffer.getInt();
+			byte version = readBuffer.get();
+			enqueue(ByteBuffer.wrap(new byte[] { version == MessageCodec.VERSION ? MessageCodec.VERSION : 0 }));
+			if (version != MessageCodec.VERSION) {
+				throw new IOException("Unsupported codec version: " + version);
+			}
+			handshakeDone = true;
+			return true;
+		}
+
+		private boolean readFrame() throws IOException {
+			if (readBuffer.remaining() < Integer.BYTES) {
+				return false;
+			}
+			int length = readBuffer.getInt(readBuffer.position());
+			if (length < 0 || length > MessageCodec.MAX_FRAME_LENGTH) {
+				throw new IOException("Invalid frame length: " + length);
+			}
+			if (readBuffer.remaining() < Integer.BYTES + length) {
+				if (readBuffer.capacity() < Integer.BYTES + length) {
+					ByteBuffer larger = ByteBuffer.allocate(Integer.BYTES + length);
+					larger.put(readBuffer).flip();
+					readBuffer = larger;
+				}
+				return false;
+			}
+			int start = readBuffer.position() + Integer.BYTES;
+			ByteBuffer frame = readBuffer.duplicate();
+			frame.position(start).limit(start + length);
+			long decodeStart = System.nanoTime();
+			Message request = reader.wrap(frame).toMessage();
+			record(request.getMessageType(), RpcMetrics.Stage.DESERIALIZE, System.nanoTime() - decodeStart);
+			readBuffer.position(start + length);
+			dispatch(request);
+			return true;
+		}
+
+		private void dispatch(Message request) {
+			admission.submit(request, response -> {
+				try {
+					long encodeStart = System.nanoTime();
+					ByteBuffer encoded = MessageCodec.encode(response, ENCODE_BUFFER.get());
+					record(request.getMessageType(), RpcMetrics.Stage.SERIALIZE, System.nanoTime() - encodeStart);
+					ByteBuffer copy = ByteBuffer.allocate(encoded.remaining());
+					copy.put(encoded).flip();
+					enqueue(copy);
+				} catch (Exception e) {
+					System.err.println("Error handling client request: " + e.getMessage());
+					key.cancel();
+					closeQuietly(channel);
+				}
+			});
+		}
+
+		private void enqueue(ByteBuffer buffer) {
+			writeQueue.add(buffer);
+			pendingWrites.add(this);
+			selector.wakeup();
+		}
+
+		// Only ever called on the event loop thread
+		private void flush() throws IOException {
+			if (!key.isValid()) {
+				return;
+			}
+			ByteBuffer buffer;
+			while ((buffer = writeQueue.poll()) != null) {
+				inFlight.add(buffer);
+			}
+			while ((buffer = inFlight.peek()) != null) {
+				channel.write(buffer);
+				if (buffer.hasRemaining()) {
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+				inFlight.poll();
+			}
+			key.interestOps(SelectionKey.OP_READ);
+		}
+
+		private ByteBuffer grow(ByteBuffer buffer, int capacity) {
+			ByteBuffer larger = ByteBuffer.allocate(capacity);
+			buffer.flip();
+			larger.put(buffer);
+			return larger;
+		}
+	}
+}
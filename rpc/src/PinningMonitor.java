@@ -0,0 +1,57 @@
+import java.time.Duration;
+import java.util.List;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordingStream;
+
+// Reports virtual threads that stay pinned to their carrier, typically while blocking inside a
+// synchronized block or a native JDBC call, using the JDK's jdk.VirtualThreadPinned JFR event
+public class PinningMonitor {
+	private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+	private static final int MAX_FRAMES = 8;
+
+	private final String systemId;
+	private final Duration threshold;
+	private RecordingStream stream;
+
+	public PinningMonitor(String systemId, Duration threshold) {
+		this.systemId = systemId;
+		this.threshold = threshold;
+	}
+
+	public void start() {
+		if (!VirtualThreads.isSupported()) {
+			return;
+		}
+		try {
+			stream = new RecordingStream();
+			stream.enable(PINNED_EVENT).withThreshold(threshold).withStackTrace();
+			stream.onEvent(PINNED_EVENT, this::report);
+			stream.startAsync();
+		} catch (Exception e) {
+			System.err.println("Pinning monitor unavailable: " + e.getMessage());
+		}
+	}
+
+	public void stop() {
+		if (stream != null) {
+			stream.close();
+		}
+	}
+
+	private void report(RecordedEvent event) {
+		StringBuilder report = new StringBuilder();
+		report.append(systemId).append(" virtual thread pinned for ").append(event.getDuration().toMillis())
+				.append(" ms");
+		if (event.getStackTrace() != null) {
+			List<RecordedFrame> frames = event.getStackTrace().getFrames();
+			for (int i = 0; i < frames.size() && i < MAX_FRAMES; i++) {
+				RecordedFrame frame = frames.get(i);
+				report.append("\n\tat ").append(frame.getMethod().getType().getName()).append('.')
+						.append(frame.getMethod().getName()).append(':').append(frame.getLineNumber());
+			}
+		}
+		System.err.println(report);
+	}
+}
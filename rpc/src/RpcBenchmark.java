@@ -0,0 +1,77 @@
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Drives a Server in the given mode with a handler that blocks like a JDBC call or downstream request,
+// so the thread models can be compared on the same workload:
+// java RpcBenchmark <BLOCKING|NIO|VIRTUAL> [concurrency] [seconds] [handlerMillis] [tcp|unix]
+public class RpcBenchmark {
+	private static final int PORT = 9081;
+	private static final String SYSTEM_ID = "BENCH";
+
+	public static void main(String[] args) throws Exception {
+		Server.Mode mode = args.length > 0 ? Server.Mode.valueOf(args[0].toUpperCase()) : Server.Mode.BLOCKING;
+		int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+		long handlerMillis = args.length > 3 ? Long.parseLong(args[3]) : 5;
+		Transport transport = args.length > 4 && args[4].equalsIgnoreCase("unix")
+				? new UnixTransport(Path.of(System.getProperty("java.io.tmpdir"), "rpc-bench.sock"))
+				: new TcpTransport("localhost", PORT);
+
+		Server server = new Server(transport, SYSTEM_ID, request -> {
+			try {
+				Thread.sleep(handlerMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			Message response = new Message();
+			response.setMessageType(Message.Type.SUCCESS);
+			response.setCorrelationId(request.getCorrelationId());
+			response.addData("balance", 100.0);
+			return response;
+		}, mode);
+		server.start();
+		Thread.sleep(500);
+
+		Client client = new Client(Map.of(SYSTEM_ID, transport), concurrency, 30_000, 0, true);
+		// The server shares this JVM; measure the transport rather than a direct handler call
+		client.setLoopback(false);
+		AtomicLong completed = new AtomicLong();
+		AtomicLong failed = new AtomicLong();
+		AtomicLong totalNanos = new AtomicLong();
+		long end = System.nanoTime() + seconds * 1_000_000_000L;
+
+		List<Thread> callers = new ArrayList<>();
+		for (int i = 0; i < concurrency; i++) {
+			Thread caller = new Thread(() -> {
+				while (System.nanoTime() < end) {
+					Message request = new Message("ATM", SYSTEM_ID, Message.Type.VIEW_BALANCE, null);
+					request.addData("accountId", "Checking1");
+					long start = System.nanoTime();
+					Message response = client.sendMessage(request);
+					if (response != null && response.getMessageType() == Message.Type.SUCCESS) {
+						completed.incrementAndGet();
+						totalNanos.addAndGet(System.nanoTime() - start);
+					} else {
+						failed.incrementAndGet();
+					}
+				}
+			});
+			callers.add(caller);
+			caller.start();
+		}
+		for (Thread caller : callers) {
+			caller.join();
+		}
+
+		long done = completed.get();
+		System.out.printf("%s over %s: %d requests in %d s (%.0f req/s), mean latency %.2f ms, %d failed, %d live threads%n",
+				mode, transport, done, seconds, done / (double) seconds, done == 0 ? 0 : totalNanos.get() / 1e6 / done,
+				failed.get(), Thread.activeCount());
+		client.close();
+		server.stop();
+		System.exit(0);
+	}
+}
@@ -0,0 +1,181 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class RpcConnection {
+	private static final int HANDSHAKE_TIMEOUT_MILLIS = 10_000;
+
+	private final Transport.Link link;
+	private final boolean binary;
+	private volatile long lastUsed;
+	private final ReentrantLock writeLock = new ReentrantLock();
+
+	// Binary codec state, reused across frames
+	private DataInputStream dataIn;
+	private DataOutputStream dataOut;
+	private ByteBuffer writeBuffer;
+	private ByteBuffer readBuffer;
+	private MessageReader reader;
+
+	// Java serialization fallback
+	private ObjectOutputStream objectOut;
+	private ObjectInputStream objectIn;
+
+	public static RpcConnection connect(Transport transport, boolean binary) throws IOException {
+		Transport.Link link = transport.connect();
+		try {
+			BufferedInputStream in = new BufferedInputStream(link.getInputStream());
+			BufferedOutputStream out = new BufferedOutputStream(link.getOutputStream());
+			if (binary) {
+				DataOutputStream dataOut = new DataOutputStream(out);
+				dataOut.writeInt(MessageCodec.MAGIC);
+				dataOut.writeByte(MessageCodec.VERSION);
+				dataOut.flush();
+				link.setReadTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+				int ack = in.read();
+				link.setReadTimeout(0);
+				if (ack != MessageCodec.VERSION) {
+					throw new ProtocolException("Binary codec not supported by " + transport);
+				}
+			}
+			return new RpcConnection(link, in, out, binary);
+		} catch (IOException e) {
+			link.close();
+			throw e;
+		}
+	}
+
+	// Server side: a binary client opens with the codec magic, anything else is a serialization stream header
+	public static RpcConnection accept(Transport.Link link) throws IOException {
+		return accept(link, link.getInputStream());
+	}
+
+	public static RpcConnection accept(Transport.Link link, InputStream linkIn) throws IOException {
+		BufferedInputStream in = new BufferedInputStream(linkIn);
+		BufferedOutputStream out = new BufferedOutputStream(link.getOutputStream());
+		in.mark(Integer.BYTES);
+		DataInputStream dataIn = new DataInputStream(in);
+		boolean binary = dataIn.readInt() == MessageCodec.MAGIC;
+		if (binary) {
+			byte version = dataIn.readByte();
+			out.write(version == MessageCodec.VERSION ? MessageCodec.VERSION : 0);
+			out.flush();
+			if (version != MessageCodec.VERSION) {
+				throw new ProtocolException("Unsupported codec version: " + version);
+			}
+		} else {
+			in.reset();
+		}
+		return new RpcConnection(link, in, out, binary);
+	}
+
+	private RpcConnection(Transport.Link link, BufferedInputStream in, BufferedOutputStream out, boolean binary)
+			throws IOException {
+		this.link = link;
+		this.binary = binary;
+		if (binary) {
+			this.dataIn = new DataInputStream(in);
+			this.dataOut = new DataOutputStream(out);
+			this.writeBuffer = MessageCodec.allocate();
+			this.readBuffer = MessageCodec.allocate();
+			this.reader = new MessageReader();
+		} else {
+			this.objectOut = new ObjectOutputStream(out);
+			this.objectOut.flush();
+			this.objectIn = new ObjectInputStream(in);
+		}
+		this.lastUsed = System.currentTimeMillis();
+	}
+
+	// Safe to call from several threads; reads are expected to stay on a single thread
+	public void write(Message message) throws IOException {
+		write(message, null);
+	}
+
+	// encodeTime, if given, records how long encoding took, excluding the wait for the lock and the socket write
+	public void write(Message message, LatencyHistogram encodeTime) throws IOException {
+		writeLock.lock();
+		try {
+			writeLocked(message, encodeTime);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	private void writeLocked(Message message, LatencyHistogram encodeTime) throws IOException {
+		long start = System.nanoTime();
+		if (binary) {
+			writeBuffer = MessageCodec.encode(message, writeBuffer);
+			if (encodeTime != null) {
+				encodeTime.record(System.nanoTime() - start);
+			}
+			dataOut.write(writeBuffer.array(), 0, writeBuffer.limit());
+			dataOut.flush();
+		} else {
+			objectOut.writeObject(message);
+			if (encodeTime != null) {
+				encodeTime.record(System.nanoTime() - start);
+			}
+			// Forget written objects so the handle table does not grow for the lifetime of the connection
+			objectOut.reset();
+			objectOut.flush();
+		}
+		lastUsed = System.currentTimeMillis();
+	}
+
+	public Message read() throws IOException, ClassNotFoundException {
+		Message message;
+		if (binary) {
+			message = readFrame().toMessage();
+		} else {
+			message = (Message) objectIn.readObject();
+		}
+		lastUsed = System.currentTimeMillis();
+		return message;
+	}
+
+	// Reads the next frame into the reused buffer; the returned reader is only valid until the next read
+	public MessageReader readFrame() throws IOException {
+		if (!binary) {
+			throw new IllegalStateException("Connection is not using the binary codec");
+		}
+		int length = dataIn.readInt();
+		if (length < 0 || length > MessageCodec.MAX_FRAME_LENGTH) {
+			throw new IOException("Invalid frame length: " + length);
+		}
+		if (length > readBuffer.capacity()) {
+			readBuffer = ByteBuffer.allocate(Math.max(length, readBuffer.capacity() * 2));
+		}
+		dataIn.readFully(readBuffer.array(), 0, length);
+		readBuffer.clear().limit(length);
+		return reader.wrap(readBuffer);
+	}
+
+	public boolean isBinary() {
+		return binary;
+	}
+
+	public long getLastUsed() {
+		return lastUsed;
+	}
+
+	public boolean isOpen() {
+		return link.isOpen();
+	}
+
+	public void close() {
+		try {
+			link.close();
+		} catch (IOException e) {
+			System.err.println("Error closing connection: " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,189 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ProtocolException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class RpcConnectionPool {
+	// Requests pipelined on one connection before another one is opened
+	private static final int MAX_IN_FLIGHT_PER_CONNECTION = 32;
+	// How often a caller waiting for a legacy connection looks for ones that died without a response
+	private static final long LEGACY_WAIT_MILLIS = 100;
+
+	private final Transport transport;
+	private final int maxConnections;
+	private final long idleTimeoutMillis;
+	private final List<MultiplexedConnection> connections = new CopyOnWriteArrayList<>();
+	private final ReentrantLock openLock = new ReentrantLock();
+	private final Condition connectionClosed = openLock.newCondition();
+	private volatile boolean binary;
+	// Set once the peer turns out to predate the binary codec, and with it pipelining
+	private volatile boolean legacyPeer;
+
+	public RpcConnectionPool(Transport transport, int maxConnections, long idleTimeoutMillis, boolean binary) {
+		this.transport = transport;
+		this.maxConnections = maxConnections;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+		this.binary = binary;
+	}
+
+	public CompletableFuture<Message> send(Message message) throws IOException {
+		MultiplexedConnection connection = acquire();
+		try {
+			return send(connection, message);
+		} catch (IOException e) {
+			// The connection died before the request went out; one retry on a fresh connection is safe
+			connections.remove(connection);
+			return send(acquire(), message);
+		}
+	}
+
+	private CompletableFuture<Message> send(MultiplexedConnection connection, Message message) throws IOException {
+		CompletableFuture<Message> future;
+		try {
+			future = connection.send(message);
+		} catch (IOException e) {
+			connection.release();
+			throw e;
+		}
+		// Returning the connection's own future lets callers cancel the request itself
+		future.whenComplete((response, failure) -> {
+			connection.release();
+			if (legacyPeer) {
+				// Legacy servers close the connection after every response
+				connections.remove(connection);
+				connection.close();
+				signalClosed();
+			}
+		});
+		return future;
+	}
+
+	private MultiplexedConnection acquire() throws IOException {
+		while (true) {
+			MultiplexedConnection connection = null;
+			if (!legacyPeer) {
+				connection = leastLoaded();
+				if (connection != null && connection.getInFlight() >= MAX_IN_FLIGHT_PER_CONNECTION
+						&& connections.size() < maxConnections) {
+					connection = null;
+				}
+			}
+			if (connection == null) {
+				connection = open();
+			}
+			if (connection != null && connection.tryReserve()) {
+				return connection;
+			}
+		}
+	}
+
+	private MultiplexedConnection leastLoaded() {
+		MultiplexedConnection best = null;
+		for (MultiplexedConnection connection : connections) {
+			if (!connection.isOpen()) {
+				connections.remove(connection);
+			} else if (best == null || connection.getInFlight() < best.getInFlight()) {
+				best = connection;
+			}
+		}
+		return best;
+	}
+
+	public void warmUp(int count) {
+		for (int i = 0; i < count && connections.size() < maxConnections; i++) {
+			try {
+				open();
+			} catch (IOException e) {
+				// Receiver not up yet, connections will be opened on demand
+				return;
+			}
+		}
+	}
+
+	public void evictIdle() {
+		long cutoff = System.currentTimeMillis() - idleTimeoutMillis;
+		for (MultiplexedConnection connection : connections) {
+			if (!connection.isOpen() || connection.retireIfIdle(cutoff)) {
+				connections.remove(connection);
+			}
+		}
+	}
+
+	public int getConnectionCount() {
+		return connections.size();
+	}
+
+	public boolean isBinary() {
+		return binary;
+	}
+
+	public void close() {
+		for (MultiplexedConnection connection : connections) {
+			connection.close();
+		}
+		connections.clear();
+	}
+
+	// Returns null when another caller filled the last free slot first. Legacy connections carry one request each,
+	// so there the caller waits until one of them is done instead
+	private MultiplexedConnection open() throws IOException {
+		openLock.lock();
+		try {
+			if (legacyPeer) {
+				awaitLegacySlot();
+			} else if (connections.size() >= maxConnections) {
+				return null;
+			}
+			MultiplexedConnection connection = new MultiplexedConnection(connect(),
+					"rpc-reader-" + transport + "-" + connections.size());
+			connections.add(connection);
+			return connection;
+		} finally {
+			openLock.unlock();
+		}
+	}
+
+	// Called with openLock held
+	private void awaitLegacySlot() throws IOException {
+		while (true) {
+			connections.removeIf(connection -> !connection.isOpen());
+			if (connections.size() < maxConnections) {
+				return;
+			}
+			try {
+				connectionClosed.await(LEGACY_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for a connection to " + transport);
+			}
+		}
+	}
+
+	private void signalClosed() {
+		openLock.lock();
+		try {
+			connectionClosed.signalAll();
+		} finally {
+			openLock.unlock();
+		}
+	}
+
+	private RpcConnection connect() throws IOException {
+		if (binary) {
+			try {
+				return RpcConnection.connect(transport, true);
+			} catch (ProtocolException e) {
+				// Peer predates the binary codec; stay on serialization for this receiver
+				System.out.println(e.getMessage() + ", falling back to serialization");
+				binary = false;
+				legacyPeer = true;
+			}
+		}
+		return RpcConnection.connect(transport, false);
+	}
+}
@@ -0,0 +1,11 @@
+public class RpcException extends Exception {
+	private static final long serialVersionUID = 1L;
+
+	public RpcException(String message) {
+		super(message);
+	}
+
+	public RpcException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
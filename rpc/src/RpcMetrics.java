@@ -0,0 +1,94 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+// Process-wide registry of latency histograms. Servers answer METRICS requests with a summary of every histogram
+// in the process, so a BANK server also reports its client-side round trips to UTIL.
+public class RpcMetrics {
+	public enum Stage {
+		QUEUE_WAIT,
+		DESERIALIZE,
+		HANDLER,
+		SERIALIZE
+	}
+
+	private static final Map<String, LatencyHistogram> HISTOGRAMS = new ConcurrentHashMap<>();
+	private static final Map<String, Supplier<Object>> GAUGES = new ConcurrentHashMap<>();
+
+	public static LatencyHistogram histogram(String name) {
+		LatencyHistogram histogram = HISTOGRAMS.get(name);
+		return histogram != null ? histogram : HISTOGRAMS.computeIfAbsent(name, n -> new LatencyHistogram());
+	}
+
+	// Histograms for each stage of every message type a server handles, indexed [type ordinal][stage ordinal]
+	public static LatencyHistogram[][] serverHistograms(String systemId) {
+		Message.Type[] types = Message.Type.values();
+		Stage[] stages = Stage.values();
+		LatencyHistogram[][] histograms = new LatencyHistogram[types.length][stages.length];
+		for (Message.Type type : types) {
+			for (Stage stage : stages) {
+				histograms[type.ordinal()][stage.ordinal()] = histogram(
+						"server." + systemId + "." + type + "." + stage.name().toLowerCase());
+			}
+		}
+		return histograms;
+	}
+
+	// A value read whenever metrics are reported, e.g. a circuit breaker's state
+	public static void gauge(String name, Supplier<Object> value) {
+		GAUGES.put(name, value);
+	}
+
+	public static LatencyHistogram roundTrip(String receiverId) {
+		return histogram("client." + receiverId + ".rtt");
+	}
+
+	// One entry per non-empty histogram and statistic, e.g. "server.BANK.DEPOSIT.handler.p99_us", and per gauge
+	public static Map<String, Object> summary() {
+		Map<String, Object> summary = new TreeMap<>();
+		for (Map.Entry<String, LatencyHistogram> entry : HISTOGRAMS.entrySet()) {
+			LatencyHistogram histogram = entry.getValue();
+			long count = histogram.getCount();
+			if (count == 0) {
+				continue;
+			}
+			String name = entry.getKey();
+			summary.put(name + ".count", (double) count);
+			summary.put(name + ".p50_us", micros(histogram.getPercentile(50)));
+			summary.put(name + ".p99_us", micros(histogram.getPercentile(99)));
+			summary.put(name + ".p999_us", micros(histogram.getPercentile(99.9)));
+			summary.put(name + ".max_us", micros(histogram.getMax()));
+		}
+		for (Map.Entry<String, Supplier<Object>> entry : GAUGES.entrySet()) {
+			summary.put(entry.getKey(), entry.getValue().get());
+		}
+		return summary;
+	}
+
+	private static double micros(long nanos) {
+		return nanos / 1000.0;
+	}
+
+	// Usage: java RpcMetrics <BANK|UTIL>
+	public static void main(String[] args) {
+		String systemId = args.length > 0 ? args[0] : "BANK";
+		Client client = new Client(1, 30_000, 0, true);
+		Message request = new Message();
+		request.setSenderId("METRICS");
+		request.setReceiverId(systemId);
+		request.setMessageType(Message.Type.METRICS);
+		Message response = client.sendMessage(request);
+		client.close();
+		if (response == null) {
+			return;
+		}
+		if (response.getMessageType() != Message.Type.SUCCESS) {
+			System.out.println("Error: " + response.getData("Error"));
+			return;
+		}
+		for (Map.Entry<String, Object> entry : new TreeMap<>(response.getPayload()).entrySet()) {
+			System.out.println(entry.getKey() + " = " + entry.getValue());
+		}
+	}
+}
@@ -1,81 +1,322 @@
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Server {
-	private int port;
+	public enum Mode {
+		BLOCKING,
+		NIO,
+		VIRTUAL
+	}
+
+	private static final int ACCEPT_BACKLOG = 1024;
+	private static final int DEFAULT_IO_THREADS = 2;
+	private static final int DEFAULT_WORKER_THREADS = Runtime.getRuntime().availableProcessors() * 4;
+	private static final int DEFAULT_VIRTUAL_CONCURRENCY = 1000;
+	private static final Duration PINNING_THRESHOLD = Duration.ofMillis(20);
+
+	private final Transport transport;
 	private String systemId;
-	private boolean running;
+	private volatile boolean running;
 	private MessageHandler messageHandler;
+	private Mode mode;
+	private int ioThreads;
+	private int workerThreads;
+	private final LatencyHistogram[][] histograms;
+	// Registered for in-process callers, which skip admission, the socket and the codec
+	private final MessageHandler loopbackHandler = this::handle;
+	private final IdempotencyCache idempotency = new IdempotencyCache();
+
+	private NioEventLoop[] eventLoops;
+	private ServerSocketChannel serverChannel;
+	private ThreadFactory connectionThreads;
+	private AdmissionController admission;
+	private PinningMonitor pinningMonitor;
 
 	public Server(int port, String systemId, MessageHandler handler) {
-		this.port = port;
+		this(port, systemId, handler, Mode.BLOCKING);
+	}
+
+	public Server(int port, String systemId, MessageHandler handler, Mode mode) {
+		this(port, systemId, handler, mode, DEFAULT_IO_THREADS,
+				mode == Mode.VIRTUAL ? DEFAULT_VIRTUAL_CONCURRENCY : DEFAULT_WORKER_THREADS);
+	}
+
+	// workerThreads is the number of workers draining the admission queues (virtual threads in VIRTUAL mode),
+	// which also caps how many handler calls run at once
+	public Server(int port, String systemId, MessageHandler handler, Mode mode, int ioThreads, int workerThreads) {
+		this(Transport.forSystem(systemId, port), systemId, handler, mode, ioThreads, workerThreads);
+	}
+
+	public Server(Transport transport, String systemId, MessageHandler handler, Mode mode) {
+		this(transport, systemId, handler, mode, DEFAULT_IO_THREADS,
+				mode == Mode.VIRTUAL ? DEFAULT_VIRTUAL_CONCURRENCY : DEFAULT_WORKER_THREADS);
+	}
+
+	public Server(Transport transport, String systemId, MessageHandler handler, Mode mode, int ioThreads,
+			int workerThreads) {
+		this.transport = transport;
 		this.systemId = systemId;
 		this.running = false;
 		this.messageHandler = handler;
+		this.mode = mode;
+		this.ioThreads = ioThreads;
+		this.workerThreads = workerThreads;
+		this.histograms = RpcMetrics.serverHistograms(systemId);
 	}
 
 	public void start() {
 		if (!running) {
 			running = true;
+			LoopbackRegistry.register(systemId, loopbackHandler);
+			if (mode == Mode.NIO) {
+				startEventLoops();
+				return;
+			}
+			if (mode == Mode.VIRTUAL) {
+				startVirtual();
+			} else {
+				connectionThreads = Thread::new;
+				admission = new AdmissionController(systemId, this::handle, workerThreads, platformWorkers());
+			}
+			try {
+				serverChannel = transport.bind(ACCEPT_BACKLOG);
+			} catch (IOException e) {
+				e.printStackTrace();
+				stop();
+				return;
+			}
 			new Thread(() -> {
-				try (ServerSocket serverSocket = new ServerSocket(port)) {
-					System.out.println(systemId + " server started on port " + port);
-					while (running) {
-						try {
-							Socket clientSocket = serverSocket.accept();
-							new ClientHandler(clientSocket, messageHandler).start();
-						} catch (IOException e) {
-							if (running) {
-								System.err.println("Error accepting connection: " + e.getMessage());
-							}
+				System.out.println(systemId + " server started on " + transport);
+				while (running) {
+					try {
+						SocketChannel channel = serverChannel.accept();
+						connectionThreads.newThread(new ClientHandler(transport.accepted(channel))).start();
+					} catch (IOException e) {
+						if (running) {
+							System.err.println("Error accepting connection: " + e.getMessage());
 						}
 					}
-				} catch (Exception e) {
-					e.printStackTrace();
-				} finally {
-					running = false;
-					System.out.println("Server stopped.");
 				}
+				System.out.println("Server stopped.");
 			}).start();
 		} else {
 			System.out.println("Server is already running.");
 		}
 	}
 
+	private void startVirtual() {
+		if (!VirtualThreads.isSupported()) {
+			System.out.println("Virtual threads are not available on this JDK, using platform threads");
+		}
+		connectionThreads = VirtualThreads.factory(systemId + "-connection-");
+		admission = new AdmissionController(systemId, this::handle, workerThreads,
+				VirtualThreads.factory(systemId + "-worker-"));
+		pinningMonitor = new PinningMonitor(systemId, PINNING_THRESHOLD);
+		pinningMonitor.start();
+	}
+
+	private void startEventLoops() {
+		admission = new AdmissionController(systemId, this::handle, workerThreads, platformWorkers());
+		try {
+			serverChannel = transport.bind(ACCEPT_BACKLOG);
+			eventLoops = new NioEventLoop[ioThreads];
+			for (int i = 0; i < ioThreads; i++) {
+				eventLoops[i] = new NioEventLoop(systemId + "-io-" + i, admission, histograms, this::handOff);
+			}
+			eventLoops[0].accept(serverChannel, eventLoops);
+			for (NioEventLoop loop : eventLoops) {
+				new Thread(loop).start();
+			}
+			System.out.println(systemId + " server started on " + transport + " (" + ioThreads + " I/O threads, "
+					+ workerThreads + " workers)");
+		} catch (IOException e) {
+			e.printStackTrace();
+			stop();
+		}
+	}
+
+	// Moves a blocking connection that spoke Java serialization from an event loop to its own thread, replaying
+	// the bytes the loop already read
+	private void handOff(SocketChannel channel, InputStream alreadyRead) {
+		try {
+			Transport.Link link = transport.accepted(channel);
+			new Thread(new ClientHandler(link, new SequenceInputStream(alreadyRead, link.getInputStream()))).start();
+		} catch (IOException e) {
+			System.err.println("Error handing off connection: " + e.getMessage());
+			try {
+				channel.close();
+			} catch (IOException closeError) {
+				System.err.println("Error closing connection: " + closeError.getMessage());
+			}
+		}
+	}
+
 	public void stop() {
 		if (running) {
 			running = false;
 			System.out.println("Stopping server...");
+			LoopbackRegistry.unregister(systemId, loopbackHandler);
+			if (eventLoops != null) {
+				for (NioEventLoop loop : eventLoops) {
+					if (loop != null) {
+						loop.shutdown();
+					}
+				}
+			}
+			if (serverChannel != null) {
+				try {
+					serverChannel.close();
+				} catch (IOException e) {
+					System.err.println("Error closing server channel: " + e.getMessage());
+				}
+			}
+			admission.shutdown();
+			if (pinningMonitor != null) {
+				pinningMonitor.stop();
+			}
 		} else {
 			System.out.println("Server is not running.");
 		}
 	}
 
-	private class ClientHandler extends Thread {
-		private Socket socket;
-		private MessageHandler handler;
+	public int getQueueDepth(AdmissionController.Priority priority) {
+		return admission == null ? 0 : admission.getQueueDepth(priority);
+	}
+
+	public long getShedCount(AdmissionController.Priority priority) {
+		return admission == null ? 0 : admission.getShedCount(priority);
+	}
+
+	public long getIdempotencyHitCount() {
+		return idempotency.getHitCount();
+	}
+
+	public long getExpiredCount() {
+		return admission == null ? 0 : admission.getExpiredCount();
+	}
+
+	private ThreadFactory platformWorkers() {
+		AtomicInteger workerCount = new AtomicInteger();
+		return r -> new Thread(r, systemId + "-worker-" + workerCount.incrementAndGet());
+	}
 
-		public ClientHandler(Socket socket, MessageHandler handler) {
-			this.socket = socket;
-			this.handler = handler;
+	// Every server mode funnels requests through here, on an admission worker
+	private Message handle(Message request) {
+		Message response;
+		long start = System.nanoTime();
+		long previousDeadline = Deadline.set(request.getDeadline());
+		try {
+			String idempotencyKey = request.getIdempotencyKey();
+			if (request.getMessageType() == Message.Type.METRICS) {
+				response = metricsResponse(request);
+			} else if (idempotencyKey != null) {
+				response = idempotency.execute(request.getSenderId(), idempotencyKey,
+						() -> messageHandler.handleMessage(request));
+				if (response == null) {
+					response = errorResponse(request, "An earlier attempt of this request is still in progress");
+					// Not a refusal: the earlier attempt may yet succeed
+					response.addData("inProgress", true);
+				}
+			} else {
+				response = messageHandler.handleMessage(request);
+			}
+		} catch (RuntimeException e) {
+			response = errorResponse(request, "Internal error: " + e.getMessage());
+		} finally {
+			Deadline.set(previousDeadline);
+		}
+		record(request.getMessageType(), RpcMetrics.Stage.HANDLER, System.nanoTime() - start);
+		// Clients match pipelined responses to requests by correlation ID
+		response.setCorrelationId(request.getCorrelationId());
+		return response;
+	}
+
+	private Message metricsResponse(Message request) {
+		Message response = new Message();
+		response.setSenderId(systemId);
+		response.setReceiverId(request.getSenderId());
+		response.setMessageType(Message.Type.SUCCESS);
+		for (Map.Entry<String, Object> entry : RpcMetrics.summary().entrySet()) {
+			response.addData(entry.getKey(), entry.getValue());
+		}
+		return response;
+	}
+
+	private void record(Message.Type type, RpcMetrics.Stage stage, long nanos) {
+		if (type != null) {
+			histograms[type.ordinal()][stage.ordinal()].record(nanos);
+		}
+	}
+
+	private Message errorResponse(Message request, String error) {
+		Message response = new Message();
+		response.setSenderId(systemId);
+		response.setReceiverId(request.getSenderId());
+		response.setMessageType(Message.Type.ERROR);
+		response.addData("Error", error);
+		return response;
+	}
+
+	private class ClientHandler implements Runnable {
+		private Transport.Link link;
+		private InputStream in;
+
+		public ClientHandler(Transport.Link link) {
+			this(link, null);
+		}
+
+		// in replaces the link's input stream, e.g. to replay bytes already read by an event loop
+		public ClientHandler(Transport.Link link, InputStream in) {
+			this.link = link;
+			this.in = in;
 		}
 
 		@Override
 		public void run() {
-			try (
-					ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-					ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream())) {
-				Message request = (Message) in.readObject();
-				Message response = handler.handleMessage(request);
-				out.writeObject(response);
+			try {
+				RpcConnection connection = RpcConnection.accept(link, in != null ? in : link.getInputStream());
+				// Serve requests until the client closes the connection. Requests are queued by priority and each
+				// response is written as soon as it is ready, so a slow request does not hold up the others.
+				while (running) {
+					Message request;
+					try {
+						if (connection.isBinary()) {
+							MessageReader frame = connection.readFrame();
+							long start = System.nanoTime();
+							request = frame.toMessage();
+							record(request.getMessageType(), RpcMetrics.Stage.DESERIALIZE, System.nanoTime() - start);
+						} else {
+							// Java serialization decodes while it reads, so there is no decode time to separate out
+							request = connection.read();
+						}
+					} catch (EOFException e) {
+						break;
+					}
+					Message.Type type = request.getMessageType();
+					admission.submit(request, response -> {
+						try {
+							connection.write(response,
+									type != null ? histograms[type.ordinal()][RpcMetrics.Stage.SERIALIZE.ordinal()] : null);
+						} catch (IOException e) {
+							System.err.println("Error writing response: " + e.getMessage());
+						}
+					});
+				}
 			} catch (IOException | ClassNotFoundException e) {
 				System.err.println("Error handling client request: " + e.getMessage());
+			} catch (RuntimeException e) {
+				System.err.println("Closing connection after bad request: " + e);
 			} finally {
 				try {
-					socket.close();
+					link.close();
 				} catch (IOException e) {
 					System.err.println("Error closing socket: " + e.getMessage());
 				}
@@ -84,7 +325,3 @@ public class Server {
 	}
 
 }
-
-interface MessageHandler {
-	Message handleMessage(Message message);
-}
@@ -0,0 +1,84 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+public class TcpTransport implements Transport {
+	private final String host;
+	private final int port;
+
+	public TcpTransport(String host, int port) {
+		this.host = host;
+		this.port = port;
+	}
+
+	@Override
+	public Link connect() throws IOException {
+		return new SocketLink(new Socket(host, port));
+	}
+
+	@Override
+	public ServerSocketChannel bind(int backlog) throws IOException {
+		ServerSocketChannel channel = ServerSocketChannel.open();
+		try {
+			channel.bind(new InetSocketAddress(port), backlog);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return channel;
+	}
+
+	@Override
+	public Link accepted(SocketChannel channel) throws IOException {
+		return new SocketLink(channel.socket());
+	}
+
+	@Override
+	public String toString() {
+		return "port " + port;
+	}
+
+	private static class SocketLink implements Link {
+		private final Socket socket;
+
+		private SocketLink(Socket socket) throws IOException {
+			this.socket = socket;
+			try {
+				socket.setKeepAlive(true);
+				socket.setTcpNoDelay(true);
+			} catch (IOException e) {
+				socket.close();
+				throw e;
+			}
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			return socket.getInputStream();
+		}
+
+		@Override
+		public OutputStream getOutputStream() throws IOException {
+			return socket.getOutputStream();
+		}
+
+		@Override
+		public void setReadTimeout(int millis) throws IOException {
+			socket.setSoTimeout(millis);
+		}
+
+		@Override
+		public boolean isOpen() {
+			return !socket.isClosed();
+		}
+
+		@Override
+		public void close() throws IOException {
+			socket.close();
+		}
+	}
+}
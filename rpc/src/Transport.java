@@ -0,0 +1,54 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+
+// Where a system listens and how to reach it: TCP, or a Unix domain socket file that skips the network stack
+// when both ends share a host. Servers and clients pick one per system, see forSystem.
+public interface Transport {
+	Link connect() throws IOException;
+
+	// Returns a blocking channel; the NIO server switches it to non-blocking itself
+	ServerSocketChannel bind(int backlog) throws IOException;
+
+	// Wraps a channel accepted from bind(), which must be in blocking mode
+	Link accepted(SocketChannel channel) throws IOException;
+
+	// One connection's byte streams
+	interface Link {
+		InputStream getInputStream() throws IOException;
+
+		OutputStream getOutputStream() throws IOException;
+
+		// 0 waits forever. Transports without read timeouts ignore it
+		void setReadTimeout(int millis) throws IOException;
+
+		boolean isOpen();
+
+		void close() throws IOException;
+	}
+
+	// "tcp:host:port" or "unix:/path/to/file.sock"
+	static Transport parse(String spec) {
+		if (spec.startsWith("unix:")) {
+			return new UnixTransport(Path.of(spec.substring("unix:".length())));
+		}
+		if (spec.startsWith("tcp:")) {
+			String address = spec.substring("tcp:".length());
+			int colon = address.lastIndexOf(':');
+			if (colon > 0) {
+				return new TcpTransport(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+			}
+		}
+		throw new IllegalArgumentException("Unknown transport: " + spec);
+	}
+
+	// -Drpc.transport.<systemId>=<spec> if set, TCP on localhost otherwise. Set it the same way for the system's
+	// own process and for every process that calls it.
+	static Transport forSystem(String systemId, int port) {
+		String spec = System.getProperty("rpc.transport." + systemId);
+		return spec != null ? parse(spec) : new TcpTransport("localhost", port);
+	}
+}
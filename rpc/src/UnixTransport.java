@@ -0,0 +1,121 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// Unix domain sockets for systems on the same host. Reads cannot time out, which only matters for the binary
+// handshake: a local peer that does not answer it shows up once it closes the connection.
+public class UnixTransport implements Transport {
+	private final Path path;
+
+	public UnixTransport(Path path) {
+		this.path = path;
+	}
+
+	@Override
+	public Link connect() throws IOException {
+		return new ChannelLink(SocketChannel.open(UnixDomainSocketAddress.of(path)));
+	}
+
+	@Override
+	public ServerSocketChannel bind(int backlog) throws IOException {
+		// The socket file outlives the server, and binding fails while one from a previous run is still there
+		Files.deleteIfExists(path);
+		ServerSocketChannel channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		try {
+			channel.bind(UnixDomainSocketAddress.of(path), backlog);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return channel;
+	}
+
+	@Override
+	public Link accepted(SocketChannel channel) {
+		return new ChannelLink(channel);
+	}
+
+	@Override
+	public String toString() {
+		return "socket " + path;
+	}
+
+	// Channels.newInputStream and newOutputStream share a lock on JDK 17, so a blocked read would stall every
+	// write on the connection; these streams call the channel directly instead
+	private static class ChannelLink implements Link {
+		private final SocketChannel channel;
+		private final InputStream in;
+		private final OutputStream out;
+
+		private ChannelLink(SocketChannel channel) {
+			this.channel = channel;
+			this.in = new InputStream() {
+				@Override
+				public int read() throws IOException {
+					byte[] one = new byte[1];
+					return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					return len == 0 ? 0 : channel.read(ByteBuffer.wrap(b, off, len));
+				}
+
+				@Override
+				public void close() throws IOException {
+					channel.close();
+				}
+			};
+			this.out = new OutputStream() {
+				@Override
+				public void write(int b) throws IOException {
+					write(new byte[] { (byte) b }, 0, 1);
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+					while (buffer.hasRemaining()) {
+						channel.write(buffer);
+					}
+				}
+
+				@Override
+				public void close() throws IOException {
+					channel.close();
+				}
+			};
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return in;
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return out;
+		}
+
+		@Override
+		public void setReadTimeout(int millis) {
+		}
+
+		@Override
+		public boolean isOpen() {
+			return channel.isOpen();
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+}
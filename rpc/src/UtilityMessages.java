@@ -0,0 +1,135 @@
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+// Typed forms of the requests UTIL accepts and the SUCCESS responses it returns, read from and written to the
+// payload keys already on the wire
+public final class UtilityMessages {
+	// VIEW_BILL_HISTORY responses list at most this many bills, as bills[i].id, bills[i].amount, ...
+	public static final int BILL_HISTORY_LIMIT = 3;
+
+	private UtilityMessages() {
+	}
+
+	private static Message request(String senderId, String receiverId, Message.Type type) {
+		return new Message(senderId, receiverId, type, null);
+	}
+
+	public record LoginRequest(String nameOrNumber, String password) {
+		public static LoginRequest from(Message message) {
+			return new LoginRequest(message.getString("nameOrNumber"), message.getString("password"));
+		}
+
+		public Message toMessage(String senderId, String receiverId) {
+			Message message = request(senderId, receiverId, Message.Type.LOGIN);
+			message.addData("nameOrNumber", nameOrNumber);
+			message.addData("password", password);
+			return message;
+		}
+	}
+
+	public record SignupRequest(String username, String password) {
+		public static SignupRequest from(Message message) {
+			return new SignupRequest(message.getString("username"), message.getString("password"));
+		}
+
+		public Message toMessage(String senderId, String receiverId) {
+			Message message = request(senderId, receiverId, Message.Type.SIGNUP);
+			message.addData("username", username);
+			message.addData("password", password);
+			return message;
+		}
+	}
+
+	public record PayBillRequest(String accountId, double amount) {
+		public static PayBillRequest from(Message message) {
+			return new PayBillRequest(message.getString("accountId"), message.getDouble("amount"));
+		}
+
+		public Message toMessage(String senderId, String receiverId) {
+			Message message = request(senderId, receiverId, Message.Type.PAY_BILL);
+			message.addData("accountId", accountId);
+			message.addData("amount", amount);
+			return message;
+		}
+	}
+
+	public record NextBillRequest(String accountId) {
+		public static NextBillRequest from(Message message) {
+			return new NextBillRequest(message.getString("accountId"));
+		}
+
+		public Message toMessage(String senderId, String receiverId) {
+			Message message = request(senderId, receiverId, Message.Type.VIEW_NEXT_BILL);
+			message.addData("accountId", accountId);
+			return message;
+		}
+	}
+
+	public record BillHistoryRequest(String accountId) {
+		public static BillHistoryRequest from(Message message) {
+			return new BillHistoryRequest(message.getString("accountId"));
+		}
+
+		public Message toMessage(String senderId, String receiverId) {
+			Message message = request(senderId, receiverId, Message.Type.VIEW_BILL_HISTORY);
+			message.addData("accountId", accountId);
+			return message;
+		}
+	}
+
+	// Answers LOGIN and SIGNUP
+	public record AccountResponse(String accountNumber) {
+		public static AccountResponse from(Message message) {
+			return new AccountResponse(message.getString("accountNumber"));
+		}
+
+		public void writeTo(Message response) {
+			response.setMessageType(Message.Type.SUCCESS);
+			response.addData("accountNumber", accountNumber);
+		}
+	}
+
+	public record NextBillResponse(double amount, LocalDate dueDate) {
+		public static NextBillResponse from(Message message) {
+			return new NextBillResponse(message.getDouble("billAmount"), message.getDate("billDueDate"));
+		}
+
+		public void writeTo(Message response) {
+			response.setMessageType(Message.Type.SUCCESS);
+			response.addData("billAmount", amount);
+			response.addData("billDueDate", dueDate);
+		}
+	}
+
+	public record PaidBill(int id, double amount, LocalDate dueDate, LocalDate paidDate) {
+	}
+
+	public record BillHistoryResponse(List<PaidBill> bills) {
+		public static BillHistoryResponse from(Message message) {
+			List<PaidBill> bills = new ArrayList<>();
+			for (int i = 0; i < BILL_HISTORY_LIMIT && message.getData(tag(i) + ".id") != null; i++) {
+				String tag = tag(i);
+				bills.add(new PaidBill(message.getInt(tag + ".id"), message.getDouble(tag + ".amount"),
+						message.getDate(tag + ".dueDate"), message.getDate(tag + ".paidDate")));
+			}
+			return new BillHistoryResponse(bills);
+		}
+
+		public void writeTo(Message response) {
+			response.setMessageType(Message.Type.SUCCESS);
+			for (int i = 0; i < bills.size() && i < BILL_HISTORY_LIMIT; i++) {
+				PaidBill bill = bills.get(i);
+				String tag = tag(i);
+				response.addData(tag + ".id", bill.id());
+				response.addData(tag + ".amount", bill.amount());
+				response.addData(tag + ".dueDate", bill.dueDate());
+				response.addData(tag + ".paidDate", bill.paidDate());
+			}
+		}
+
+		private static String tag(int index) {
+			return "bills[" + index + "]";
+		}
+	}
+}
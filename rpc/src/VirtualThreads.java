@@ -0,0 +1,39 @@
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Virtual threads are a JDK 21 API while the project still builds on JDK 17, so they are looked up reflectively
+public class VirtualThreads {
+	private static final MethodHandle OF_VIRTUAL = lookupOfVirtual();
+
+	public static boolean isSupported() {
+		return OF_VIRTUAL != null;
+	}
+
+	// Returns a factory for virtual threads, or for platform threads when the running JDK has none
+	public static ThreadFactory factory(String prefix) {
+		if (OF_VIRTUAL != null) {
+			try {
+				Object builder = OF_VIRTUAL.invoke();
+				Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+				builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+				return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+			} catch (Throwable e) {
+				System.err.println("Could not create virtual thread factory: " + e.getMessage());
+			}
+		}
+		AtomicLong count = new AtomicLong();
+		return r -> new Thread(r, prefix + count.getAndIncrement());
+	}
+
+	private static MethodHandle lookupOfVirtual() {
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder$OfVirtual");
+			return MethodHandles.publicLookup().findStatic(Thread.class, "ofVirtual", MethodType.methodType(builderClass));
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+}
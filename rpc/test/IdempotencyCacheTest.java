@@ -0,0 +1,160 @@
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class IdempotencyCacheTest {
+
+	private static Message success(int run) {
+		Message response = new Message("BANK", "ATM", Message.Type.SUCCESS, null);
+		response.addData("run", run);
+		return response;
+	}
+
+	@Test
+	public void testDuplicateGetsOriginalResponse() {
+		IdempotencyCache cache = new IdempotencyCache();
+		AtomicInteger runs = new AtomicInteger();
+		Message first = cache.execute("ATM", "key-1", () -> success(runs.incrementAndGet()));
+		Message second = cache.execute("ATM", "key-1", () -> success(runs.incrementAndGet()));
+		assertEquals("The handler should only run once", 1, runs.get());
+		assertEquals(1, second.getData("run"));
+		assertNotSame("Duplicates get a copy of the response", first, second);
+		assertEquals(1, cache.getHitCount());
+	}
+
+	@Test
+	public void testKeysAreScopedBySender() {
+		IdempotencyCache cache = new IdempotencyCache();
+		AtomicInteger runs = new AtomicInteger();
+		cache.execute("ATM", "key-1", () -> success(runs.incrementAndGet()));
+		Message other = cache.execute("UTIL", "key-1", () -> success(runs.incrementAndGet()));
+		assertEquals(2, other.getData("run"));
+		assertEquals(0, cache.getHitCount());
+	}
+
+	@Test
+	public void testErrorsAndFailuresAreNotRemembered() {
+		IdempotencyCache cache = new IdempotencyCache();
+		Message error = new Message("BANK", "ATM", Message.Type.ERROR, null);
+		cache.execute("ATM", "key-1", () -> error);
+		assertEquals(1, cache.execute("ATM", "key-1", () -> success(1)).getData("run"));
+		try {
+			cache.execute("ATM", "key-2", () -> {
+				throw new IllegalStateException("handler failed");
+			});
+			fail("Should rethrow the handler's exception");
+		} catch (IllegalStateException e) {
+			assertEquals("handler failed", e.getMessage());
+		}
+		assertEquals(2, cache.execute("ATM", "key-2", () -> success(2)).getData("run"));
+		assertEquals(0, cache.getHitCount());
+	}
+
+	@Test
+	public void testDuplicateWaitsForRequestInProgress() throws Exception {
+		IdempotencyCache cache = new IdempotencyCache();
+		AtomicInteger runs = new AtomicInteger();
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		CompletableFuture<Message> original = CompletableFuture.supplyAsync(() -> cache.execute("ATM", "key-1", () -> {
+			started.countDown();
+			await(release);
+			return success(runs.incrementAndGet());
+		}));
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		CompletableFuture<Message> duplicate = CompletableFuture
+				.supplyAsync(() -> cache.execute("ATM", "key-1", () -> success(runs.incrementAndGet())));
+		Thread.sleep(100);
+		assertFalse("The duplicate should wait for the original", duplicate.isDone());
+		release.countDown();
+		assertEquals(1, original.get(5, TimeUnit.SECONDS).getData("run"));
+		assertEquals(1, duplicate.get(5, TimeUnit.SECONDS).getData("run"));
+		assertEquals(1, runs.get());
+	}
+
+	@Test
+	public void testDuplicateGivesUpAtItsDeadline() throws Exception {
+		IdempotencyCache cache = new IdempotencyCache();
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		CompletableFuture<Message> original = CompletableFuture.supplyAsync(() -> cache.execute("ATM", "key-1", () -> {
+			started.countDown();
+			await(release);
+			return success(1);
+		}));
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		long previous = Deadline.set(System.currentTimeMillis() + 100);
+		try {
+			assertNull("A duplicate still waiting at its deadline gets no response",
+					cache.execute("ATM", "key-1", () -> success(2)));
+		} finally {
+			Deadline.set(previous);
+			release.countDown();
+		}
+		assertEquals(1, original.get(5, TimeUnit.SECONDS).getData("run"));
+	}
+
+	@Test
+	public void testOldestEntriesAreEvicted() {
+		IdempotencyCache cache = new IdempotencyCache(2, 60_000);
+		AtomicInteger runs = new AtomicInteger();
+		for (int i = 0; i < 4; i++) {
+			cache.execute("ATM", "key-" + i, () -> success(runs.incrementAndGet()));
+		}
+		assertTrue(cache.size() <= 3);
+		assertEquals("key-0 should have been evicted and run again", 5,
+				cache.execute("ATM", "key-0", () -> success(runs.incrementAndGet())).getData("run"));
+		assertEquals(4, cache.execute("ATM", "key-3", () -> success(runs.incrementAndGet())).getData("run"));
+	}
+
+	@Test
+	public void testRequestInFlightIsNotEvicted() throws Exception {
+		IdempotencyCache cache = new IdempotencyCache(1, 60_000);
+		AtomicInteger runs = new AtomicInteger();
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		CompletableFuture<Message> original = CompletableFuture.supplyAsync(() -> cache.execute("ATM", "key-0", () -> {
+			started.countDown();
+			await(release);
+			return success(runs.incrementAndGet());
+		}));
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		for (int i = 1; i < 4; i++) {
+			cache.execute("ATM", "key-" + i, () -> success(0));
+		}
+		CompletableFuture<Message> duplicate = CompletableFuture
+				.supplyAsync(() -> cache.execute("ATM", "key-0", () -> success(runs.incrementAndGet())));
+		Thread.sleep(100);
+		assertFalse("The duplicate should wait for the original", duplicate.isDone());
+		release.countDown();
+		assertEquals(1, original.get(5, TimeUnit.SECONDS).getData("run"));
+		assertEquals("The duplicate should still find the original", 1,
+				duplicate.get(5, TimeUnit.SECONDS).getData("run"));
+		assertEquals(1, runs.get());
+	}
+
+	@Test
+	public void testForgottenErrorsDoNotCountAgainstCapacity() {
+		IdempotencyCache cache = new IdempotencyCache(2, 60_000);
+		AtomicInteger runs = new AtomicInteger();
+		cache.execute("ATM", "key-0", () -> success(runs.incrementAndGet()));
+		for (int i = 0; i < 5; i++) {
+			cache.execute("ATM", "error-" + i, () -> new Message("BANK", "ATM", Message.Type.ERROR, null));
+		}
+		cache.execute("ATM", "key-1", () -> success(runs.incrementAndGet()));
+		assertEquals(2, cache.size());
+		assertEquals("key-0 should still be remembered", 1,
+				cache.execute("ATM", "key-0", () -> success(runs.incrementAndGet())).getData("run"));
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,139 @@
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class MessageCodecTest {
+
+	@Test
+	public void testRoundTripEveryTag() throws Exception {
+		Message message = new Message("ATM", "BANK", Message.Type.DEPOSIT, null);
+		message.setCorrelationId("42");
+		message.setDeadline(1234567890123L);
+		message.setIdempotencyKey("ATM-7");
+		message.addData("null", null);
+		message.addData("string", "Checking1");
+		message.addData("unicode", "caf\u00e9 \u20ac");
+		message.addData("double", 12.5);
+		message.addData("int", -3);
+		message.addData("date", LocalDate.of(2024, 2, 29));
+		message.addData("object", 9_000_000_000L);
+		message.addData("boolean", true);
+		Message nested = new Message("ATM", "BANK", Message.Type.WITHDRAW, null);
+		nested.addData("amount", 20.0);
+		message.addData("messages", List.of(nested));
+
+		Message decoded = roundTrip(message);
+		assertEquals("ATM", decoded.getSenderId());
+		assertEquals("BANK", decoded.getReceiverId());
+		assertEquals(Message.Type.DEPOSIT, decoded.getMessageType());
+		assertEquals("42", decoded.getCorrelationId());
+		assertEquals(1234567890123L, decoded.getDeadline());
+		assertEquals("ATM-7", decoded.getIdempotencyKey());
+		assertTrue(decoded.getPayload().containsKey("null"));
+		assertNull(decoded.getData("null"));
+		assertEquals("Checking1", decoded.getData("string"));
+		assertEquals("caf\u00e9 \u20ac", decoded.getData("unicode"));
+		assertEquals(12.5, decoded.getData("double"));
+		assertEquals(-3, decoded.getData("int"));
+		assertEquals(LocalDate.of(2024, 2, 29), decoded.getData("date"));
+		assertEquals(9_000_000_000L, decoded.getData("object"));
+		assertEquals(Boolean.TRUE, decoded.getData("boolean"));
+		List<?> messages = (List<?>) decoded.getData("messages");
+		assertEquals(1, messages.size());
+		Message decodedNested = (Message) messages.get(0);
+		assertEquals(Message.Type.WITHDRAW, decodedNested.getMessageType());
+		assertEquals(20.0, decodedNested.getData("amount"));
+	}
+
+	@Test
+	public void testRoundTripWithoutTypeOrPayload() throws Exception {
+		Message decoded = roundTrip(new Message());
+		assertNull(decoded.getMessageType());
+		assertNull(decoded.getSenderId());
+		assertNull(decoded.getCorrelationId());
+		assertEquals(0, decoded.getDeadline());
+	}
+
+	@Test
+	public void testEncodeGrowsSmallBuffer() throws Exception {
+		Message message = new Message("ATM", "BANK", Message.Type.DEPOSIT, null);
+		char[] filler = new char[4096];
+		Arrays.fill(filler, 'x');
+		message.addData("filler", new String(filler));
+		ByteBuffer encoded = MessageCodec.encode(message, ByteBuffer.allocate(16));
+		assertEquals(encoded.limit() - Integer.BYTES, encoded.getInt(0));
+		assertEquals(new String(filler), decode(encoded).getData("filler"));
+	}
+
+	// A peer on another codec version answers the handshake with 0; the pool then stays on serialization
+	@Test
+	public void testVersionMismatchFallsBackToSerialization() throws Exception {
+		try (ServerSocket server = new ServerSocket(0)) {
+			Thread peer = new Thread(() -> servePeerOnOtherVersion(server));
+			peer.setDaemon(true);
+			peer.start();
+			RpcConnectionPool pool = new RpcConnectionPool(new TcpTransport("localhost", server.getLocalPort()), 2,
+					60_000, true);
+			try {
+				Message request = new Message("ATM", "BANK", Message.Type.VIEW_BALANCE, null);
+				request.setCorrelationId("1");
+				Message response = pool.send(request).get(10, TimeUnit.SECONDS);
+				assertEquals(Message.Type.SUCCESS, response.getMessageType());
+				assertEquals("serialized", response.getData("codec"));
+				assertFalse("The pool should stay on serialization", pool.isBinary());
+			} finally {
+				pool.close();
+			}
+		}
+	}
+
+	private static void servePeerOnOtherVersion(ServerSocket server) {
+		while (true) {
+			try (Socket socket = server.accept()) {
+				BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
+				in.mark(Integer.BYTES);
+				DataInputStream dataIn = new DataInputStream(in);
+				if (dataIn.readInt() == MessageCodec.MAGIC) {
+					dataIn.readByte();
+					socket.getOutputStream().write(0);
+					socket.getOutputStream().flush();
+					continue;
+				}
+				in.reset();
+				ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+				out.flush();
+				Message request = (Message) new ObjectInputStream(in).readObject();
+				Message response = new Message(request.getReceiverId(), request.getSenderId(), Message.Type.SUCCESS,
+						null);
+				response.setCorrelationId(request.getCorrelationId());
+				response.addData("codec", "serialized");
+				out.writeObject(response);
+				out.flush();
+				// Waits for the client to hang up
+				in.read();
+			} catch (Exception e) {
+				return;
+			}
+		}
+	}
+
+	private static Message roundTrip(Message message) throws Exception {
+		return decode(MessageCodec.encode(message, MessageCodec.allocate()));
+	}
+
+	// Drops the frame length, which the connection reads before handing over the body
+	private static Message decode(ByteBuffer encoded) throws Exception {
+		byte[] body = Arrays.copyOfRange(encoded.array(), Integer.BYTES, encoded.limit());
+		return MessageCodec.decode(ByteBuffer.wrap(body));
+	}
+}
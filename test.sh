@@ -4,6 +4,32 @@
 cd "$(dirname "$0")"
 ROOT_DIR=$(pwd)
 
+echo "=== Running RPC Tests ==="
+
+cd "$ROOT_DIR/rpc" || {
+	echo "Error: rpc directory not found"
+	exit 1
+}
+
+TEST_FILES=$(find test -name "*Test.java" 2>/dev/null)
+
+if [ -z "$TEST_FILES" ]; then
+	echo "No test files found in rpc/test directory"
+	exit 1
+fi
+
+echo "Compiling test files..."
+javac -cp "bin:$ROOT_DIR/_lib/*:test" $TEST_FILES -d bin
+
+echo "Running tests..."
+for test in $TEST_FILES; do
+	TEST_CLASS=$(echo $test | sed 's/\.java$//' | sed 's/test\///g')
+	echo "Running test: $TEST_CLASS"
+	java -cp "bin:$ROOT_DIR/_lib/*" org.junit.runner.JUnitCore $TEST_CLASS
+done
+
+echo "=== RPC Tests Complete ==="
+
 echo "=== Running Bank Tests ==="
 
 # Change to the bank directory for test execution
@@ -10,7 +10,7 @@ public class UtilityAccount {
 	private String password;
 	private List<Bill> bills;
 
-	private static final String DB_URL = "jdbc:sqlite:utility.db";
+	private static final String DB_URL = System.getProperty("utility.db.url", "jdbc:sqlite:utility.db");
 
 	public UtilityAccount(String username, String password) throws SQLException {
 		this.username = username;
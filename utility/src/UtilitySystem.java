@@ -2,31 +2,54 @@ import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
 
 public class UtilitySystem {
 	private static final int PORT = 8082;
 	private static final String SYSTEM_ID = "UTIL";
 
-	private static final String DB_URL = "jdbc:sqlite:utility.db";
+	private static final String DB_URL = System.getProperty("utility.db.url", "jdbc:sqlite:utility.db");
+	private static final int BATCH_THREADS = 4;
 
 	private Map<String, UtilityAccount> utilityAccounts;
 	private Server server;
+	private BatchExecutor batches;
+	private final MessageDispatcher dispatcher = new MessageDispatcher();
 
 	public static void main(String[] args) throws Exception {
-		UtilitySystem utilitySystem = new UtilitySystem();
+		Server.Mode mode = args.length > 0 ? Server.Mode.valueOf(args[0].toUpperCase()) : Server.Mode.BLOCKING;
+		UtilitySystem utilitySystem = new UtilitySystem(mode);
 		utilitySystem.start();
 	}
 
 	public UtilitySystem() {
+		this(Server.Mode.BLOCKING);
+	}
+
+	public UtilitySystem(Server.Mode mode) {
 		initializeDatabase();
 		this.utilityAccounts = loadUtilityAccounts();
-		this.server = new Server(PORT, SYSTEM_ID, this::handleMessage);
+		this.server = new Server(PORT, SYSTEM_ID, this::handleMessage, mode);
+		this.batches = new BatchExecutor(this::handleMessage, Executors.newFixedThreadPool(BATCH_THREADS),
+				UtilitySystem::batchKeys);
+		registerHandlers();
 	}
 
-	private void start() {
+	private void registerHandlers() {
+		dispatcher.register(Message.Type.SIGNUP, UtilityMessages.SignupRequest::from, this::handleSignup);
+		dispatcher.register(Message.Type.LOGIN, UtilityMessages.LoginRequest::from, this::handleLogin);
+		dispatcher.register(Message.Type.PAY_BILL, UtilityMessages.PayBillRequest::from, this::handlePayBill);
+		dispatcher.register(Message.Type.VIEW_NEXT_BILL, UtilityMessages.NextBillRequest::from, this::handleViewBill);
+		dispatcher.register(Message.Type.VIEW_BILL_HISTORY, UtilityMessages.BillHistoryRequest::from,
+				this::handleBillHistory);
+		dispatcher.register(Message.Type.BATCH, this::handleBatch);
+	}
+
+	public void start() {
 		server.start();
 	}
 
@@ -38,26 +61,9 @@ public class UtilitySystem {
 		response.setCorrelationId(message.getCorrelationId());
 
 		try {
-			switch (messageType) {
-				case SIGNUP:
-					handleSignup(message, response);
-					break;
-				case LOGIN:
-					handleLogin(message, response);
-					break;
-				case PAY_BILL:
-					handlePayBill(message, response);
-					break;
-				case VIEW_NEXT_BILL:
-					handleViewBill(message, response);
-					break;
-				case VIEW_BILL_HISTORY:
-					handleBillHistory(message, response);
-					break;
-				default:
-					response.setMessageType(Message.Type.ERROR);
-					response.addData("Error", "Unsupported message type: " + messageType);
-					break;
+			if (!dispatcher.dispatch(message, response)) {
+				response.setMessageType(Message.Type.ERROR);
+				response.addData("Error", "Unsupported message type: " + messageType);
 			}
 		} catch (Exception e) {
 			response.setMessageType(Message.Type.ERROR);
@@ -67,31 +73,44 @@ public class UtilitySystem {
 		return response;
 	}
 
-	private void handleSignup(Message message, Message response) {
-		String username = (String) message.getData("username");
-		String password = (String) message.getData("password");
+	private void handleBatch(Message message, Message response) {
+		if (message.isAtomicBatch()) {
+			response.setMessageType(Message.Type.ERROR);
+			response.addData("Error", "Atomic batches are not supported by " + SYSTEM_ID);
+			return;
+		}
+		response.setMessageType(Message.Type.SUCCESS);
+		response.addData(Message.BATCH_MESSAGES_KEY, batches.execute(message.getBatch()));
+	}
 
+	private static List<String> batchKeys(Message message) {
+		List<String> keys = new ArrayList<>();
+		for (String key : new String[] { "accountId", "nameOrNumber", "username" }) {
+			Object value = message.getData(key);
+			if (value != null) {
+				keys.add((String) value);
+			}
+		}
+		return keys;
+	}
+
+	private void handleSignup(UtilityMessages.SignupRequest request, Message response) {
 		try {
-			UtilityAccount account = new UtilityAccount(username, password);
+			UtilityAccount account = new UtilityAccount(request.username(), request.password());
 			utilityAccounts.put(account.getAccountNumber(), account);
-			response.setMessageType(Message.Type.SUCCESS);
-			response.addData("accountNumber", account.getAccountNumber());
+			new UtilityMessages.AccountResponse(account.getAccountNumber()).writeTo(response);
 		} catch (Exception e) {
 			response.setMessageType(Message.Type.ERROR);
 			response.addData("Error", e.getMessage());
 		}
 	}
 
-	private void handleLogin(Message message, Message response) {
-		String nameOrNumber = (String) message.getData("nameOrNumber");
-		String password = (String) message.getData("password");
-
+	private void handleLogin(UtilityMessages.LoginRequest request, Message response) {
 		try {
-			UtilityAccount account = UtilityAccount.logIn(nameOrNumber, password);
+			UtilityAccount account = UtilityAccount.logIn(request.nameOrNumber(), request.password());
 			if (account != null) {
 				utilityAccounts.put(account.getAccountNumber(), account);
-				response.setMessageType(Message.Type.SUCCESS);
-				response.addData("accountNumber", account.getAccountNumber());
+				new UtilityMessages.AccountResponse(account.getAccountNumber()).writeTo(response);
 			} else {
 				response.setMessageType(Message.Type.ERROR);
 				response.addData("Error", "Invalid username or password");
@@ -102,15 +121,12 @@ public class UtilitySystem {
 		}
 	}
 
-	private void handlePayBill(Message message, Message response) {
-		String accountId = (String) message.getData("accountId");
-		double amount = (double) message.getData("amount");
-
+	private void handlePayBill(UtilityMessages.PayBillRequest request, Message response) {
 		try {
-			UtilityAccount account = utilityAccounts.get(accountId);
+			UtilityAccount account = utilityAccounts.get(request.accountId());
 			if (account != null) {
 				try {
-					account.payBill(amount);
+					account.payBill(request.amount());
 					response.setMessageType(Message.Type.SUCCESS);
 				} catch (Exception e) {
 					response.setMessageType(Message.Type.ERROR);
@@ -126,17 +142,13 @@ public class UtilitySystem {
 		}
 	}
 
-	private void handleViewBill(Message message, Message response) {
-		String accountId = (String) message.getData("accountId");
-
+	private void handleViewBill(UtilityMessages.NextBillRequest request, Message response) {
 		try {
-			UtilityAccount account = utilityAccounts.get(accountId);
+			UtilityAccount account = utilityAccounts.get(request.accountId());
 			if (account != null) {
 				Bill bill = account.getNextBill();
 				if (bill != null) {
-					response.setMessageType(Message.Type.SUCCESS);
-					response.addData("billAmount", bill.getAmount());
-					response.addData("billDueDate", bill.getDueDate());
+					new UtilityMessages.NextBillResponse(bill.getAmount(), bill.getDueDate()).writeTo(response);
 				} else {
 					response.setMessageType(Message.Type.ERROR);
 					response.addData("Error", "No bills available");
@@ -151,23 +163,19 @@ public class UtilitySystem {
 		}
 	}
 
-	private void handleBillHistory(Message message, Message response) {
-		String accountId = (String) message.getData("accountId");
-
+	private void handleBillHistory(UtilityMessages.BillHistoryRequest request, Message response) {
 		try {
-			UtilityAccount account = utilityAccounts.get(accountId);
+			UtilityAccount account = utilityAccounts.get(request.accountId());
 			if (account != null) {
 				List<Bill> paidBills = account.getPaidBills();
 				if (paidBills != null && !paidBills.isEmpty()) {
-					response.setMessageType(Message.Type.SUCCESS);
-					for (int i = 0; i < paidBills.size() && i < 3; i++) {
+					List<UtilityMessages.PaidBill> bills = new ArrayList<>();
+					for (int i = 0; i < paidBills.size() && i < UtilityMessages.BILL_HISTORY_LIMIT; i++) {
 						Bill bill = paidBills.get(i);
-						String billTag = String.format("bills[%d]", i);
-						response.addData(billTag + ".id", bill.getBillId());
-						response.addData(billTag + ".amount", bill.getAmount());
-						response.addData(billTag + ".dueDate", bill.getDueDate());
-						response.addData(billTag + ".paidDate", bill.getPaidDate());
+						bills.add(new UtilityMessages.PaidBill(bill.getBillId(), bill.getAmount(), bill.getDueDate(),
+								bill.getPaidDate()));
 					}
+					new UtilityMessages.BillHistoryResponse(bills).writeTo(response);
 				} else {
 					response.setMessageType(Message.Type.ERROR);
 					response.addData("Error", "No paid bills available");